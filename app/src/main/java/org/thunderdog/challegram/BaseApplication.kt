@@ -20,6 +20,8 @@ import androidx.work.Configuration
 import com.google.firebase.messaging.FirebaseMessaging
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.MainScope
+import org.thunderdog.challegram.loader.BitmapPool
+import org.thunderdog.challegram.loader.ImageCache
 import org.thunderdog.challegram.push.FirebaseDeviceTokenRetriever
 import org.thunderdog.challegram.service.PushHandler
 import org.thunderdog.challegram.telegram.TdlibNotificationUtils
@@ -68,6 +70,12 @@ class BaseApplication : MultiDexApplication(), Configuration.Provider {
     }
   }
 
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    ImageCache.onTrimMemory(level)
+    BitmapPool.onTrimMemory(level)
+  }
+
   override val workManagerConfiguration: Configuration
     get() = Configuration.Builder().build()
 }
\ No newline at end of file
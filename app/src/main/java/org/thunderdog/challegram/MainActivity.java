@@ -36,7 +36,7 @@ import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.data.TD;
 import org.thunderdog.challegram.helper.LiveLocationHelper;
-import org.thunderdog.challegram.loader.gif.LottieCache;
+import org.thunderdog.challegram.loader.gif.LottieFrameCache;
 import org.thunderdog.challegram.navigation.BackHeaderButton;
 import org.thunderdog.challegram.navigation.NavigationStack;
 import org.thunderdog.challegram.navigation.SettingsWrap;
@@ -157,7 +157,7 @@ public class MainActivity extends BaseActivity implements GlobalAccountListener,
         TdlibManager.instance().sync(pushId, TdlibAccount.NO_ID, null, false, false, 3, tdlib -> {
           if (tdlib.checkChangeLogs(sentChangeLogs.get(), false))
             sentChangeLogs.set(true);
-          LottieCache.instance().gc();
+          LottieFrameCache.instance().gc();
         });
       });
     }
@@ -54,7 +54,7 @@ import me.vkryl.core.DateUtils;
 import me.vkryl.core.MathUtils;
 import me.vkryl.core.StringUtils;
 import me.vkryl.core.lambda.RunnableData;
-import org.thunderdog.challegram.data.DeletedMessagesManager; // Anti-Delete
+import org.thunderdog.challegram.data.GhostMessageMerger; // Anti-Delete
 import tgx.td.ChatId;
 import tgx.td.MessageId;
 import tgx.td.Td;
@@ -271,35 +271,20 @@ public class MessagesLoader implements Client.ResultHandler {
             }
             TdApi.Messages result = (TdApi.Messages) object;
             
-            // Anti-Delete Injection
-            List<TdApi.Message> ghosts = DeletedMessagesManager.getInstance().getDeletedMessages(getChatId());
-            if (!ghosts.isEmpty()) {
-                Log.i(Log.TAG_MESSAGES_LOADER, "Injecting " + ghosts.size() + " ghost messages into loader");
-                List<TdApi.Message> combined = new ArrayList<>(result.messages.length + ghosts.size());
-                Collections.addAll(combined, result.messages);
-                
-                // Filter duplicates
-                for (TdApi.Message ghost : ghosts) {
-                    boolean exists = false;
-                    for (TdApi.Message existing : result.messages) {
-                        if (existing.id == ghost.id) {
-                            exists = true;
-                            break;
-                        }
-                    }
-                    if (!exists) {
-                        combined.add(ghost);
-                    }
-                }
-                
-                // Sort descending by ID
-                Collections.sort(combined, (m1, m2) -> Long.compare(m2.id, m1.id));
-                
-                messages = combined.toArray(new TdApi.Message[0]);
-                knownTotalCount = result.totalCount + ghosts.size(); // Approximate
+            // Anti-Delete Injection: only ghosts within this page's id window.
+            // A short local page is only the end of what's cached, not of the history
+            if (specialMode == SPECIAL_MODE_NONE && messageThread == null && !hasSearchFilter() && mergeMode == MERGE_MODE_NONE) {
+              messages = GhostMessageMerger.inject(getChatId(), result.messages, lastFromMessageId != null ? lastFromMessageId.getMessageId() : 0, lastOffset, lastLimit, !loadingLocal, null);
+            } else {
+              messages = result.messages;
+            }
+            if (messages.length != result.messages.length) {
+              if (Log.isEnabled(Log.TAG_MESSAGES_LOADER)) {
+                Log.i(Log.TAG_MESSAGES_LOADER, "Injected %d ghost messages into loader", messages.length - result.messages.length);
+              }
+              knownTotalCount = result.totalCount + (messages.length - result.messages.length);
             } else {
-                messages = result.messages;
-                knownTotalCount = result.totalCount;
+              knownTotalCount = result.totalCount;
             }
             
             nextSearchOffset = null; nextSearchFromMessageId = 0;
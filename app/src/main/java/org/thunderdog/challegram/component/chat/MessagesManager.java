@@ -15,6 +15,7 @@
 package org.thunderdog.challegram.component.chat;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
@@ -100,6 +101,7 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
   private MessagesAdapter adapter;
   private LinearLayoutManager manager;
   private final RecyclerView.OnScrollListener listener;
+  private final MessagesPrefetcher prefetcher = new MessagesPrefetcher();
   private final MessagesSearchManagerMiddleware searchMiddleware;
 
   private final MessagesLoader loader;
@@ -160,6 +162,7 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
           controller.onFirstChatScroll();
         }
         controller.context().reactionsOverlayManager().addOffset(0, -dy);
+        prefetcher.onScrolled(manager, adapter, dy);
       }
     };
 
@@ -540,6 +543,8 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
 
   public void destroy (ViewController<?> context) {
     resetScroll();
+    prefetcher.cancel();
+    cancelPendingLayouts();
     returnToMessageIds = null;
     highlightMode = 0;
     tdlib.settings().removePinnedMessageDismissListener(this);
@@ -1654,6 +1659,8 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
   // Utils
 
   public void clear () {
+    prefetcher.cancel();
+    cancelPendingLayouts();
     adapter.clear(false);
     onTopEndLoaded();
   }
@@ -1732,18 +1739,104 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
     }
   }
 
+  private static final int VISIBLE_LAYOUT_MARGIN = 2;
+  private static final long PENDING_LAYOUTS_FRAME_BUDGET_MS = 4;
+
+  private boolean pendingLayoutsScheduled;
+  private final Runnable pendingLayoutsBuilder = () -> {
+    pendingLayoutsScheduled = false;
+    buildPendingLayouts();
+  };
+
   public void rebuildLayouts () {
     ArrayList<TGMessage> items = adapter.getItems();
-    if (items != null) {
+    if (items == null) {
+      return;
+    }
+    final int firstPosition = manager.findFirstVisibleItemPosition();
+    final int lastPosition = manager.findLastVisibleItemPosition();
+    if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
       for (TGMessage m : items) {
-        int height = m.getHeight();
-        m.rebuildLayout();
-        if (height != m.getHeight() && !useBubbles()) {
-          m.requestLayout();
-        } else {
-          m.invalidate();
+        rebuildLayout(m);
+      }
+      return;
+    }
+    // Rebuild only what's on screen right away, the rest is rebuilt once bound or in the following frames
+    final int fromIndex = Math.max(0, firstPosition - VISIBLE_LAYOUT_MARGIN);
+    final int toIndex = Math.min(items.size() - 1, lastPosition + VISIBLE_LAYOUT_MARGIN);
+    boolean hasPendingLayouts = false;
+    for (int i = 0; i < items.size(); i++) {
+      TGMessage m = items.get(i);
+      if (i >= fromIndex && i <= toIndex) {
+        rebuildLayout(m);
+      } else {
+        m.invalidateLayout();
+        hasPendingLayouts = true;
+      }
+    }
+    if (hasPendingLayouts) {
+      schedulePendingLayouts();
+    }
+  }
+
+  private void rebuildLayout (TGMessage m) {
+    int height = m.getHeight();
+    m.rebuildLayout();
+    if (height != m.getHeight() && !useBubbles()) {
+      m.requestLayout();
+    } else {
+      m.invalidate();
+    }
+  }
+
+  private void schedulePendingLayouts () {
+    if (!pendingLayoutsScheduled) {
+      pendingLayoutsScheduled = true;
+      controller.getMessagesView().postOnAnimation(pendingLayoutsBuilder);
+    }
+  }
+
+  private void cancelPendingLayouts () {
+    if (pendingLayoutsScheduled) {
+      pendingLayoutsScheduled = false;
+      controller.getMessagesView().removeCallbacks(pendingLayoutsBuilder);
+    }
+  }
+
+  private void buildPendingLayouts () {
+    ArrayList<TGMessage> items = adapter.getItems();
+    if (items == null || items.isEmpty()) {
+      return;
+    }
+    final long deadline = SystemClock.uptimeMillis() + PENDING_LAYOUTS_FRAME_BUDGET_MS;
+    int firstPosition = manager.findFirstVisibleItemPosition();
+    int lastPosition = manager.findLastVisibleItemPosition();
+    if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
+      firstPosition = lastPosition = 0;
+    }
+    // Walk away from the visible range, so heights used for scrolling become exact first
+    for (int distance = 0; ; distance++) {
+      final int below = firstPosition - distance;
+      final int above = lastPosition + distance;
+      if (below < 0 && above >= items.size()) {
+        break;
+      }
+      if (below >= 0 && below < items.size()) {
+        TGMessage m = items.get(below);
+        if (m.isLayoutInvalidated()) {
+          rebuildLayout(m);
         }
       }
+      if (above != below && above >= 0 && above < items.size()) {
+        TGMessage m = items.get(above);
+        if (m.isLayoutInvalidated()) {
+          rebuildLayout(m);
+        }
+      }
+      if (SystemClock.uptimeMillis() >= deadline) {
+        schedulePendingLayouts();
+        break;
+      }
     }
   }
 
@@ -1817,6 +1910,7 @@ public class MessagesManager implements Client.ResultHandler, MessagesSearchMana
   }
 
   public void modifyRecycler (Context context, RecyclerView recyclerView, LinearLayoutManager manager) {
+    prefetcher.cancel();
     this.manager = manager;
     this.adapter = new MessagesAdapter(context, this, this.controller);
 
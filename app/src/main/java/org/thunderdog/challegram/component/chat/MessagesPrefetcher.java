@@ -0,0 +1,185 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.component.chat;
+
+import android.os.SystemClock;
+
+import androidx.annotation.UiThread;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.config.Config;
+import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.data.TGMessage;
+import org.thunderdog.challegram.loader.ImageFile;
+import org.thunderdog.challegram.loader.ImageLoader;
+import org.thunderdog.challegram.loader.WatcherReference;
+import org.thunderdog.challegram.loader.gif.GifBridge;
+import org.thunderdog.challegram.loader.gif.GifFile;
+import org.thunderdog.challegram.telegram.Tdlib;
+import org.thunderdog.challegram.telegram.TdlibFilesManager;
+import org.thunderdog.challegram.tool.Screen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Loads media of messages that are about to scroll into view.
+ *
+ * The list is reversed, so scrolling up moves towards higher positions. The number of messages
+ * warmed ahead of the visible range grows with scroll velocity. Images are downloaded at reduced priority
+ * and decoded into the memory cache without a receiver, animations are only downloaded.
+ * When the scroll direction flips, everything still in flight is cancelled.
+ */
+final class MessagesPrefetcher {
+  private static final int MIN_PREFETCH_COUNT = 2;
+  private static final int MAX_PREFETCH_COUNT = 8;
+  private static final float MAX_VELOCITY_DP_PER_MS = 4f;
+  private static final long VELOCITY_TIMEOUT_MS = 250;
+  private static final int MAX_IN_FLIGHT_COUNT = 24;
+
+  private static final int DIRECTION_NONE = 0;
+  private static final int DIRECTION_OLDER = 1;
+  private static final int DIRECTION_NEWER = 2;
+
+  private static class Prefetch {
+    private final WatcherReference imageReference;
+    private final GifFile gifFile;
+
+    Prefetch (WatcherReference imageReference) {
+      this.imageReference = imageReference;
+      this.gifFile = null;
+    }
+
+    Prefetch (GifFile gifFile) {
+      this.imageReference = null;
+      this.gifFile = gifFile;
+    }
+
+    void cancel () {
+      if (imageReference != null) {
+        ImageLoader.instance().removeWatcher(imageReference);
+      } else if (gifFile != null) {
+        TdApi.File file = gifFile.getFile();
+        Tdlib tdlib = gifFile.tdlib();
+        // Receiver might have requested the file in the meantime
+        if (tdlib != null && file != null && !TD.isFileLoaded(file) && !GifBridge.instance().isFileRequested(file.id)) {
+          tdlib.client().send(new TdApi.CancelDownloadFile(file.id, false), tdlib.silentHandler());
+        }
+      }
+    }
+  }
+
+  private final ArrayDeque<Prefetch> inFlight = new ArrayDeque<>();
+  private final ArrayList<ImageFile> imageFiles = new ArrayList<>();
+  private final ArrayList<GifFile> gifFiles = new ArrayList<>();
+
+  private int direction = DIRECTION_NONE;
+  // Newer direction can move past position 0, so NO_POSITION can't mark a missing cursor
+  private boolean hasNextPosition;
+  private int nextPosition;
+  private long lastScrollTime;
+  private float velocity;
+
+  @UiThread
+  public void onScrolled (LinearLayoutManager manager, MessagesAdapter adapter, int dy) {
+    if (dy == 0 || manager == null || adapter == null) {
+      return;
+    }
+    final int direction = dy < 0 ? DIRECTION_OLDER : DIRECTION_NEWER;
+    final long now = SystemClock.uptimeMillis();
+    if (this.direction != direction) {
+      cancel();
+      this.direction = direction;
+    } else {
+      long elapsed = now - lastScrollTime;
+      if (elapsed > 0 && elapsed < VELOCITY_TIMEOUT_MS) {
+        velocity = (velocity + Math.abs(dy) / (float) elapsed) / 2f;
+      } else {
+        velocity = 0;
+      }
+    }
+    lastScrollTime = now;
+
+    final int firstPosition = manager.findFirstVisibleItemPosition();
+    final int lastPosition = manager.findLastVisibleItemPosition();
+    if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
+      return;
+    }
+
+    final float factor = Math.min(1f, velocity / Screen.dp(MAX_VELOCITY_DP_PER_MS));
+    final int count = MIN_PREFETCH_COUNT + Math.round((MAX_PREFETCH_COUNT - MIN_PREFETCH_COUNT) * factor);
+
+    if (direction == DIRECTION_OLDER) {
+      int startPosition = hasNextPosition ? Math.max(nextPosition, lastPosition + 1) : lastPosition + 1;
+      int endPosition = Math.min(lastPosition + count, adapter.getMessageCount() - 1);
+      for (int position = startPosition; position <= endPosition; position++) {
+        prefetch(adapter.getMessage(position));
+      }
+      nextPosition = Math.max(startPosition, endPosition + 1);
+    } else {
+      int startPosition = hasNextPosition ? Math.min(nextPosition, firstPosition - 1) : firstPosition - 1;
+      int endPosition = Math.max(firstPosition - count, 0);
+      for (int position = startPosition; position >= endPosition; position--) {
+        prefetch(adapter.getMessage(position));
+      }
+      nextPosition = Math.min(startPosition, endPosition - 1);
+    }
+    hasNextPosition = true;
+  }
+
+  private void prefetch (TGMessage msg) {
+    if (msg == null) {
+      return;
+    }
+    msg.collectPrefetchFiles(imageFiles, gifFiles);
+    for (ImageFile file : imageFiles) {
+      WatcherReference reference = ImageLoader.instance().prefetchFile(file);
+      if (reference != null) {
+        add(new Prefetch(reference));
+      }
+    }
+    for (GifFile file : gifFiles) {
+      TdApi.File remoteFile = file.getFile();
+      Tdlib tdlib = file.tdlib();
+      if (tdlib != null && remoteFile != null && !TD.isFileLoaded(remoteFile) && !Config.DEBUG_DISABLE_DOWNLOAD) {
+        tdlib.client().send(new TdApi.DownloadFile(remoteFile.id, TdlibFilesManager.PRIORITY_GIFS, 0, 0, false), tdlib.silentHandler());
+        add(new Prefetch(file));
+      }
+    }
+    imageFiles.clear();
+    gifFiles.clear();
+  }
+
+  private void add (Prefetch prefetch) {
+    if (inFlight.size() == MAX_IN_FLIGHT_COUNT) {
+      // Nothing would be able to cancel the oldest request once it is dropped
+      inFlight.poll().cancel();
+    }
+    inFlight.offer(prefetch);
+  }
+
+  @UiThread
+  public void cancel () {
+    Prefetch prefetch;
+    while ((prefetch = inFlight.poll()) != null) {
+      prefetch.cancel();
+    }
+    direction = DIRECTION_NONE;
+    hasNextPosition = false;
+    velocity = 0;
+  }
+}
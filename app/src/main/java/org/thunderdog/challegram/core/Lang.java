@@ -3656,6 +3656,12 @@ public class Lang {
         return (TdApi.LanguagePackStringValueOrdinary) cachedString;
       if (cachedString instanceof TdApi.LanguagePackStringValueDeleted)
         return null;
+      TdApi.LanguagePackStringValue tableString = LangStringTable.find(language, key);
+      if (tableString != null) {
+        TdApi.LanguagePackStringValueOrdinary string = tableString instanceof TdApi.LanguagePackStringValueOrdinary ? (TdApi.LanguagePackStringValueOrdinary) tableString : null;
+        putCachedString(cacheKey, string);
+        return string;
+      }
     }
     TdApi.LanguagePackStringValueOrdinary string = queryTdlibStringValue(key, language.id);
     if (string == null && !StringUtils.isEmpty(language.baseLanguagePackId))
@@ -3691,6 +3697,12 @@ public class Lang {
         return (TdApi.LanguagePackStringValuePluralized) cachedString;
       if (cachedString instanceof TdApi.LanguagePackStringValueDeleted)
         return null;
+      TdApi.LanguagePackStringValue tableString = LangStringTable.find(language, key);
+      if (tableString != null) {
+        TdApi.LanguagePackStringValuePluralized string = tableString instanceof TdApi.LanguagePackStringValuePluralized ? (TdApi.LanguagePackStringValuePluralized) tableString : null;
+        putCachedString(cacheKey, string);
+        return string;
+      }
     }
     TdApi.LanguagePackStringValuePluralized string = queryTdlibStringPluralized(key, language.id);
     if (string == null && !StringUtils.isEmpty(language.baseLanguagePackId))
@@ -3757,6 +3769,7 @@ public class Lang {
   private static void dispatchLanguagePackChanged () {
     boolean wasRtl = languageRtl;
     Lang.clearCachedStrings();
+    LangStringTable.invalidate();
     checkLanguageSettings(false);
     sendLanguageEvent(EVENT_PACK_CHANGED, languageRtl != wasRtl ? 1 : 0);
   }
@@ -3764,6 +3777,8 @@ public class Lang {
   @UiThread
   private static void dispatchLanguagePackStringChanged (String languageCode, TdApi.LanguagePackString[] strings, String actualLanguagePackId) {
     Lang.putCachedStrings(actualLanguagePackId != null ? actualLanguagePackId : languageCode, strings);
+    // Strings that are not cached yet are queried from TDLib until the table is compiled again
+    LangStringTable.invalidate();
     checkLanguageSettings(true);
     if (hasLanguageListeners()) {
       for (TdApi.LanguagePackString string : strings) {
@@ -0,0 +1,385 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.core;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.telegram.TdlibManager;
+import org.thunderdog.challegram.tool.UI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.vkryl.core.StringUtils;
+
+/**
+ * Strings of the active language pack merged with its base pack, stored in a file indexed by key
+ * and memory-mapped, so that looking up a string that is not cached yet doesn't query TDLib.
+ *
+ * The file is compiled in background from {@link TdApi.GetLanguagePackStrings} whenever it is missing,
+ * was built for another pack, or the pack has been updated. Until it is ready, {@link #find} returns null
+ * and strings are queried from TDLib as before.
+ *
+ * Layout: magic, version, pack id, base pack id, string count, sorted key hashes, record offsets,
+ * then records: key, type and one (ordinary) or six (pluralized) values. Strings are length-prefixed UTF-8,
+ * length -1 stands for null.
+ */
+public final class LangStringTable {
+  private static final int MAGIC = 0x4c414e47; // LANG
+  private static final int VERSION = 1;
+
+  private static final byte TYPE_ORDINARY = 0;
+  private static final byte TYPE_PLURALIZED = 1;
+
+  private static final Object lock = new Object();
+  private static volatile Table table;
+  private static String loadedPackKey, buildingPackKey;
+  private static int generation;
+  // File on disk is outdated and must not be mapped until it is compiled again
+  private static boolean isStale;
+
+  private LangStringTable () { }
+
+  private static final class Table {
+    private final String packId, basePackId;
+    private final ByteBuffer buffer;
+    private final int count, hashesOffset, offsetsOffset;
+
+    Table (String packId, String basePackId, ByteBuffer buffer, int count, int hashesOffset) {
+      this.packId = packId;
+      this.basePackId = basePackId;
+      this.buffer = buffer;
+      this.count = count;
+      this.hashesOffset = hashesOffset;
+      this.offsetsOffset = hashesOffset + count * 4;
+    }
+
+    boolean matches (String packId, String basePackId) {
+      return this.packId.equals(packId) && this.basePackId.equals(basePackId);
+    }
+
+    @Nullable
+    TdApi.LanguagePackStringValue find (String key) {
+      final int hash = key.hashCode();
+      int low = 0, high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midHash = buffer.getInt(hashesOffset + mid * 4);
+        if (midHash < hash) {
+          low = mid + 1;
+        } else if (midHash > hash) {
+          high = mid - 1;
+        } else {
+          // Step back to the first entry with this hash, then compare keys
+          while (mid > 0 && buffer.getInt(hashesOffset + (mid - 1) * 4) == hash) {
+            mid--;
+          }
+          ByteBuffer buffer = this.buffer.duplicate();
+          for (int i = mid; i < count && buffer.getInt(hashesOffset + i * 4) == hash; i++) {
+            buffer.position(buffer.getInt(offsetsOffset + i * 4));
+            if (key.equals(readString(buffer))) {
+              return readValue(buffer);
+            }
+          }
+          return null;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static String makePackKey (String packId, @Nullable String basePackId) {
+    return packId + "|" + (basePackId != null ? basePackId : "");
+  }
+
+  private static File getFile (String packId) {
+    File dir = new File(UI.getAppContext().getFilesDir(), "langpack");
+    return new File(dir, "strings_" + packId.replaceAll("[^a-zA-Z0-9_\\-]", "_") + ".bin");
+  }
+
+  /**
+   * @return string value, {@link TdApi.LanguagePackStringValueDeleted} when the pack has no such string,
+   * or null when the table for this pack is not ready and TDLib has to be queried
+   */
+  @AnyThread
+  public static @Nullable TdApi.LanguagePackStringValue find (@NonNull TdApi.LanguagePackInfo language, @NonNull String key) {
+    final String basePackId = StringUtils.isEmpty(language.baseLanguagePackId) ? "" : language.baseLanguagePackId;
+    Table table = LangStringTable.table;
+    if (table == null || !table.matches(language.id, basePackId)) {
+      table = load(language.id, basePackId);
+      if (table == null) {
+        return null;
+      }
+    }
+    TdApi.LanguagePackStringValue value;
+    try {
+      value = table.find(key);
+    } catch (RuntimeException e) {
+      Log.e("Broken language pack table, packId:%s", e, language.id);
+      invalidate();
+      return null;
+    }
+    return value != null ? value : Lang.STRING_DELETED();
+  }
+
+  @Nullable
+  private static Table load (String packId, String basePackId) {
+    final String packKey = makePackKey(packId, basePackId);
+    final int generation;
+    final boolean isStale;
+    synchronized (lock) {
+      Table table = LangStringTable.table;
+      if (table != null && table.matches(packId, basePackId)) {
+        return table;
+      }
+      if (packKey.equals(loadedPackKey)) {
+        // Already tried, waiting for the build
+        return null;
+      }
+      loadedPackKey = packKey;
+      generation = LangStringTable.generation;
+      isStale = LangStringTable.isStale;
+    }
+    Table table = isStale ? null : map(getFile(packId));
+    synchronized (lock) {
+      if (generation != LangStringTable.generation) {
+        return null;
+      }
+      if (table != null && table.matches(packId, basePackId)) {
+        LangStringTable.table = table;
+        return table;
+      }
+    }
+    Background.instance().post(() -> build(packId, basePackId));
+    return null;
+  }
+
+  /**
+   * Drops the table once the pack has been changed or updated, and compiles it again.
+   */
+  @AnyThread
+  public static void invalidate () {
+    synchronized (lock) {
+      table = null;
+      loadedPackKey = null;
+      buildingPackKey = null;
+      generation++;
+      isStale = true;
+    }
+  }
+
+  @Nullable
+  private static Table map (File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      // Mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return null;
+      }
+      String packId = readString(buffer);
+      String basePackId = readString(buffer);
+      int count = buffer.getInt();
+      if (packId == null || basePackId == null || count < 0 || buffer.position() + count * 8L > buffer.limit()) {
+        return null;
+      }
+      return new Table(packId, basePackId, buffer, count, buffer.position());
+    } catch (IOException | RuntimeException e) {
+      Log.e("Cannot map language pack table: %s", e, file.getName());
+      return null;
+    }
+  }
+
+  // Build
+
+  // Background thread
+  private static void build (String packId, String basePackId) {
+    final String packKey = makePackKey(packId, basePackId);
+    final int generation;
+    synchronized (lock) {
+      if (packKey.equals(buildingPackKey)) {
+        return;
+      }
+      buildingPackKey = packKey;
+      generation = LangStringTable.generation;
+    }
+    final Map<String, TdApi.LanguagePackStringValue> strings = new HashMap<>();
+    if (basePackId.isEmpty()) {
+      fetch(packId, strings, () -> write(packId, basePackId, strings, generation));
+    } else {
+      // Strings of the pack override strings of its base pack
+      fetch(basePackId, strings, () ->
+        fetch(packId, strings, () -> write(packId, basePackId, strings, generation))
+      );
+    }
+  }
+
+  private static void fetch (String packId, Map<String, TdApi.LanguagePackStringValue> strings, Runnable after) {
+    TdlibManager.instance().current().client().send(new TdApi.GetLanguagePackStrings(packId, null), result -> {
+      switch (result.getConstructor()) {
+        case TdApi.LanguagePackStrings.CONSTRUCTOR: {
+          for (TdApi.LanguagePackString string : ((TdApi.LanguagePackStrings) result).strings) {
+            // Deleted in the pack still falls back to the base pack
+            if (string.value.getConstructor() != TdApi.LanguagePackStringValueDeleted.CONSTRUCTOR) {
+              strings.put(string.key, string.value);
+            }
+          }
+          Background.instance().post(after);
+          break;
+        }
+        case TdApi.Error.CONSTRUCTOR: {
+          Log.e("Cannot compile language pack table: %s, packId:%s", TD.toErrorString(result), packId);
+          break;
+        }
+      }
+    });
+  }
+
+  // Background thread
+  private static void write (String packId, String basePackId, Map<String, TdApi.LanguagePackStringValue> strings, int generation) {
+    synchronized (lock) {
+      if (generation != LangStringTable.generation) {
+        return;
+      }
+    }
+    final File file = getFile(packId);
+    final File tempFile = new File(file.getPath() + ".tmp");
+    try {
+      ArrayList<String> keys = new ArrayList<>(strings.keySet());
+      Collections.sort(keys, (a, b) -> Integer.compare(a.hashCode(), b.hashCode()));
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream headerOut = new DataOutputStream(header);
+      headerOut.writeInt(MAGIC);
+      headerOut.writeInt(VERSION);
+      writeString(headerOut, packId);
+      writeString(headerOut, basePackId);
+      headerOut.writeInt(keys.size());
+      final int recordsOffset = headerOut.size() + keys.size() * 8;
+
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream recordsOut = new DataOutputStream(records);
+      int[] offsets = new int[keys.size()];
+      for (int i = 0; i < keys.size(); i++) {
+        String key = keys.get(i);
+        offsets[i] = recordsOffset + recordsOut.size();
+        writeString(recordsOut, key);
+        writeValue(recordsOut, strings.get(key));
+      }
+      for (String key : keys) {
+        headerOut.writeInt(key.hashCode());
+      }
+      for (int offset : offsets) {
+        headerOut.writeInt(offset);
+      }
+
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        header.writeTo(out);
+        records.writeTo(out);
+        out.getFD().sync();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Cannot rename " + tempFile.getName());
+      }
+    } catch (IOException e) {
+      Log.e("Cannot write language pack table, packId:%s", e, packId);
+      tempFile.delete();
+      return;
+    }
+    Table table = map(file);
+    synchronized (lock) {
+      if (generation == LangStringTable.generation && table != null && table.matches(packId, basePackId)) {
+        LangStringTable.table = table;
+        loadedPackKey = makePackKey(packId, basePackId);
+        isStale = false;
+      }
+      buildingPackKey = null;
+    }
+    Log.i("Compiled language pack table, packId:%s, stringCount:%d", packId, strings.size());
+  }
+
+  // Encoding
+
+  private static void writeString (DataOutputStream out, @Nullable String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  @Nullable
+  private static String readString (ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeValue (DataOutputStream out, TdApi.LanguagePackStringValue value) throws IOException {
+    if (value.getConstructor() == TdApi.LanguagePackStringValuePluralized.CONSTRUCTOR) {
+      TdApi.LanguagePackStringValuePluralized pluralized = (TdApi.LanguagePackStringValuePluralized) value;
+      out.writeByte(TYPE_PLURALIZED);
+      writeString(out, pluralized.zeroValue);
+      writeString(out, pluralized.oneValue);
+      writeString(out, pluralized.twoValue);
+      writeString(out, pluralized.fewValue);
+      writeString(out, pluralized.manyValue);
+      writeString(out, pluralized.otherValue);
+    } else {
+      out.writeByte(TYPE_ORDINARY);
+      writeString(out, ((TdApi.LanguagePackStringValueOrdinary) value).value);
+    }
+  }
+
+  private static TdApi.LanguagePackStringValue readValue (ByteBuffer buffer) {
+    byte type = buffer.get();
+    if (type == TYPE_PLURALIZED) {
+      TdApi.LanguagePackStringValuePluralized pluralized = new TdApi.LanguagePackStringValuePluralized();
+      pluralized.zeroValue = readString(buffer);
+      pluralized.oneValue = readString(buffer);
+      pluralized.twoValue = readString(buffer);
+      pluralized.fewValue = readString(buffer);
+      pluralized.manyValue = readString(buffer);
+      pluralized.otherValue = readString(buffer);
+      return pluralized;
+    }
+    return new TdApi.LanguagePackStringValueOrdinary(readString(buffer));
+  }
+}
@@ -3,18 +3,20 @@ package org.thunderdog.challegram.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
-import android.util.LruCache;
 
 import org.drinkless.tdlib.TdApi;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
-import java.io.BufferedReader;
+import org.thunderdog.challegram.core.Background;
+import org.thunderdog.challegram.core.BaseThread;
+import org.thunderdog.challegram.telegram.Tdlib;
+import org.thunderdog.challegram.telegram.TdlibUpdateTap;
+import org.thunderdog.challegram.tool.UI;
+
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,30 +24,152 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class DeletedMessagesManager { // Sync fix
+import me.vkryl.core.lambda.RunnableData;
+
+public class DeletedMessagesManager implements TdlibUpdateTap.Observer { // Sync fix
     private static final String TAG = "ANTIDELETE";
     private static final DeletedMessagesManager INSTANCE = new DeletedMessagesManager();
-    private File savedMessagesDir;
-    private File ghostCacheDir;
+    private static final int DEFAULT_MEDIA_CACHE_BUDGET_MB = 512;
+    private static final long MESSAGE_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    private File legacyMessagesDir; // Legacy one-JSON-per-message layout, its media files stay referenced after import
+    private volatile File savedMessagesDir; // Same, until imported
+    // Chats whose legacy messages were imported this session
+    private final Set<Long> legacyImportedChatIds = new HashSet<>();
+    private GhostMessageStore ghostStore;
+    private GhostPersistenceQueue persistenceQueue;
+    private GhostMediaCache ghostMediaCache;
     
     // Cache helper: Store recent messages to grab content when deleted
-    // Limit to 500 messages to prevent memory leak
-    private final LruCache<Long, TdApi.Message> messageCache = new LruCache<>(500);
-    // Map FileID -> MessageIDs to update cache when file downloads
-    private final Map<Integer, Set<Long>> fileIdToMessageIds = Collections.synchronizedMap(new HashMap<>());
+    private final GhostMessageCache messageCache = new GhostMessageCache(Math.min(MESSAGE_CACHE_MAX_BYTES, Runtime.getRuntime().maxMemory() / 32), this::unindexFiles);
+    // Map FileID -> messages to update cache when file downloads, guarded by itself.
+    // Entries are dropped once the file is downloaded or the message leaves the cache
+    private final Map<Integer, Set<MessageKey>> fileIdToMessageIds = new HashMap<>();
     private final Set<Long> deletedMessageIds = Collections.synchronizedSet(new HashSet<>());
     private final Set<Long> deletedByMeMessageIds = Collections.synchronizedSet(new HashSet<>());
+    // chatId -> ids stored in ghostStore, checked on every TGMessage construction
+    private final Map<Long, GhostIdSet> ghostIds = new java.util.concurrent.ConcurrentHashMap<>();
 
     private DeletedMessagesManager() {
     }
+
+    /**
+     * Message ids repeat across chats, so cached messages are looked up by both.
+     */
+    private static final class MessageKey {
+        final long chatId;
+        final long messageId;
+
+        MessageKey(long chatId, long messageId) {
+            this.chatId = chatId;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof MessageKey)) return false;
+            MessageKey other = (MessageKey) obj;
+            return other.chatId == chatId && other.messageId == messageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(chatId) + Long.hashCode(messageId);
+        }
+
+        @Override
+        public String toString() {
+            return chatId + "/" + messageId;
+        }
+    }
+
+    private final List<TdlibUpdateTap> taps = new ArrayList<>();
+
+    /**
+     * Cache updates are handled on the update tap thread, so they never hold up TDLib update dispatch.
+     * Message updates are never dropped, otherwise deleted messages would be lost.
+     */
+    public void subscribe(TdlibUpdateTap tap) {
+        tap.subscribeLossless(this,
+          TdApi.UpdateNewMessage.CONSTRUCTOR,
+          TdApi.UpdateMessageContent.CONSTRUCTOR,
+          TdApi.UpdateMessageSendSucceeded.CONSTRUCTOR,
+          TdApi.UpdateDeleteMessages.CONSTRUCTOR
+        );
+        synchronized (taps) {
+            taps.add(tap);
+            if (isMediaCacheEnabled()) {
+                tap.subscribe(this, TdApi.UpdateFile.CONSTRUCTOR);
+            }
+        }
+    }
+
+    /**
+     * File updates are needed only to copy media of cached messages.
+     */
+    private void subscribeToFiles(boolean enabled) {
+        synchronized (taps) {
+            for (TdlibUpdateTap tap : taps) {
+                if (enabled) {
+                    tap.subscribe(this, TdApi.UpdateFile.CONSTRUCTOR);
+                } else {
+                    tap.unsubscribe(this, TdApi.UpdateFile.CONSTRUCTOR);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTappedUpdate(Tdlib tdlib, TdApi.Update update) {
+        switch (update.getConstructor()) {
+            case TdApi.UpdateNewMessage.CONSTRUCTOR: {
+                TdApi.UpdateNewMessage newMessage = (TdApi.UpdateNewMessage) update;
+                if (newMessage.message != null) {
+                    cacheMessage(newMessage.message);
+                }
+                break;
+            }
+            case TdApi.UpdateMessageContent.CONSTRUCTOR: {
+                TdApi.UpdateMessageContent messageContent = (TdApi.UpdateMessageContent) update;
+                updateMessageContent(messageContent.chatId, messageContent.messageId, messageContent.newContent);
+                break;
+            }
+            case TdApi.UpdateMessageSendSucceeded.CONSTRUCTOR: {
+                TdApi.UpdateMessageSendSucceeded sendSucceeded = (TdApi.UpdateMessageSendSucceeded) update;
+                updateMessageId(sendSucceeded.oldMessageId, sendSucceeded.message);
+                break;
+            }
+            case TdApi.UpdateFile.CONSTRUCTOR: {
+                updateFile(((TdApi.UpdateFile) update).file);
+                break;
+            }
+            case TdApi.UpdateDeleteMessages.CONSTRUCTOR: {
+                TdApi.UpdateDeleteMessages deleteMessages = (TdApi.UpdateDeleteMessages) update;
+                if (!deleteMessages.fromCache) {
+                    captureDeletedMessages(tdlib, deleteMessages.chatId, deleteMessages.messageIds);
+                }
+                break;
+            }
+        }
+    }
     
     
-    public void cacheMessage(TdApi.Message message) {
+    private static boolean isLoggable() {
+        return org.thunderdog.challegram.Log.isEnabled(org.thunderdog.challegram.Log.TAG_MESSAGES_LOADER);
+    }
+
+    /**
+     * Called only from {@link #onTappedUpdate}, once per {@link TdApi.UpdateNewMessage}.
+     * Messages TDLib returns for sent requests arrive there as updates as well.
+     */
+    private void cacheMessage(TdApi.Message message) {
         if (!isGhostEnabled()) return;
         
         if (message.isOutgoing) {
-            android.util.Log.e(TAG, "Caching OUTGOING message: " + message.id + " from chat: " + message.chatId);
-            messageCache.put(message.id, message);
+            if (isLoggable()) {
+                Log.i(TAG, "Caching OUTGOING message: " + message.id + " from chat: " + message.chatId);
+            }
+            messageCache.put(message);
             indexFiles(message);
             return;
         }
@@ -55,51 +179,86 @@ public class DeletedMessagesManager { // Sync fix
             constructor == TdApi.MessagePhoto.CONSTRUCTOR ||
             constructor == TdApi.MessageVideo.CONSTRUCTOR ||
             constructor == TdApi.MessageDocument.CONSTRUCTOR) {
-             android.util.Log.e(TAG, "Caching INCOMING message: " + message.id);
-             messageCache.put(message.id, message);
+             if (isLoggable()) {
+                 Log.i(TAG, "Caching INCOMING message: " + message.id);
+             }
+             messageCache.put(message);
              indexFiles(message);
         }
     }
     
-    private void indexFiles(TdApi.Message message) {
-        // Disabled by user request to fix crash
-        if (true) return;
+    private static List<TdApi.File> filesOf(TdApi.MessageContent content) {
         List<TdApi.File> files = new ArrayList<>();
-        if (message.content instanceof TdApi.MessagePhoto) {
-            for (TdApi.PhotoSize sz : ((TdApi.MessagePhoto) message.content).photo.sizes) {
+        if (content instanceof TdApi.MessagePhoto) {
+            for (TdApi.PhotoSize sz : ((TdApi.MessagePhoto) content).photo.sizes) {
                 files.add(sz.photo);
             }
-        } else if (message.content instanceof TdApi.MessageVideo) {
-            files.add(((TdApi.MessageVideo) message.content).video.video);
-        } else if (message.content instanceof TdApi.MessageDocument) {
-            files.add(((TdApi.MessageDocument) message.content).document.document);
+        } else if (content instanceof TdApi.MessageVideo) {
+            files.add(((TdApi.MessageVideo) content).video.video);
+        } else if (content instanceof TdApi.MessageDocument) {
+            files.add(((TdApi.MessageDocument) content).document.document);
         }
-        
-        for (TdApi.File f : files) {
-            if (f != null) {
-                Set<Long> msgs = fileIdToMessageIds.get(f.id);
-                if (msgs == null) {
-                    msgs = Collections.synchronizedSet(new HashSet<>());
-                    fileIdToMessageIds.put(f.id, msgs);
+        return files;
+    }
+
+    private void indexFiles(TdApi.Message message) {
+        if (ghostMediaCache == null || !isMediaCacheEnabled()) return;
+        for (TdApi.File f : filesOf(message.content)) {
+            if (f != null && !f.local.isDownloadingCompleted) {
+                synchronized (fileIdToMessageIds) {
+                    Set<MessageKey> msgs = fileIdToMessageIds.get(f.id);
+                    if (msgs == null) {
+                        msgs = new HashSet<>();
+                        fileIdToMessageIds.put(f.id, msgs);
+                    }
+                    msgs.add(new MessageKey(message.chatId, message.id));
+                }
+                if (isLoggable()) {
+                    Log.i(TAG, "Indexed file " + f.id + " for msg " + message.id);
+                }
+            } else if (f != null) {
+                // Already downloaded files won't get another updateFile
+                ghostMediaCache.offer(f);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link #messageCache} once a message is evicted or removed, and before its content is replaced.
+     */
+    private void unindexFiles(TdApi.Message message) {
+        MessageKey key = new MessageKey(message.chatId, message.id);
+        for (TdApi.File f : filesOf(message.content)) {
+            if (f == null) continue;
+            synchronized (fileIdToMessageIds) {
+                Set<MessageKey> msgs = fileIdToMessageIds.get(f.id);
+                if (msgs != null && msgs.remove(key) && msgs.isEmpty()) {
+                    fileIdToMessageIds.remove(f.id);
                 }
-                msgs.add(message.id);
-                Log.i(TAG, "Indexed file " + f.id + " for msg " + message.id);
             }
         }
     }
     
     public void updateFile(TdApi.File file) {
         // Log.v(TAG, "updateFile received for " + file.id);
-        Set<Long> msgs = fileIdToMessageIds.get(file.id);
-        if (msgs != null) {
-            Log.i(TAG, "updateFile: Found messages for file " + file.id + ": " + msgs + " completed=" + file.local.isDownloadingCompleted);
-            synchronized(msgs) {
-                for (Long msgId : msgs) {
-                    TdApi.Message cached = messageCache.get(msgId);
-                    if (cached != null) {
-                        updateMessageFile(cached, file);
-                        Log.i(TAG, "Updated cached file in msg " + msgId);
-                    }
+        MessageKey[] keys;
+        synchronized (fileIdToMessageIds) {
+            Set<MessageKey> msgs = file.local.isDownloadingCompleted ? fileIdToMessageIds.remove(file.id) : fileIdToMessageIds.get(file.id);
+            if (msgs == null) {
+                return;
+            }
+            // Copied, as the cache lock is taken below and removals from the cache take the map lock under it
+            keys = msgs.toArray(new MessageKey[0]);
+        }
+        if (isLoggable()) {
+            Log.i(TAG, "updateFile: Found messages for file " + file.id + ": " + Arrays.toString(keys) + " completed=" + file.local.isDownloadingCompleted);
+        }
+        for (MessageKey key : keys) {
+            TdApi.Message cached = messageCache.get(key.chatId, key.messageId);
+            if (cached != null) {
+                updateMessageFile(cached, file);
+                if (isLoggable()) {
+                    Log.i(TAG, "Updated cached file in msg " + key);
                 }
             }
         }
@@ -108,15 +267,10 @@ public class DeletedMessagesManager { // Sync fix
 
     
     private void updateMessageFile(TdApi.Message message, TdApi.File file) {
-        // Pre-cache logic disabled
-        /*
         if (file.local.isDownloadingCompleted) {
-            String safePath = preCacheFile(file);
-            if (safePath != null) {
-                file.local.path = safePath;
-            }
+            // TDLib's File objects are left untouched, the cache is looked up when the message gets deleted
+            ghostMediaCache.offer(file);
         }
-        */
 
         if (message.content instanceof TdApi.MessagePhoto) {
             for (TdApi.PhotoSize sz : ((TdApi.MessagePhoto) message.content).photo.sizes) {
@@ -150,68 +304,86 @@ public class DeletedMessagesManager { // Sync fix
         }
     }
 
-    private String preCacheFile(TdApi.File file) {
-        if (ghostCacheDir == null) return null;
-        try {
-            String originalPath = file.local.path;
-            if (originalPath == null || !new File(originalPath).exists()) return null;
-            
-            // Generate unique name: file_{id}.ext
-            String ext = ".dat";
-            if (originalPath.contains(".")) {
-                ext = originalPath.substring(originalPath.lastIndexOf("."));
-            }
-            File dest = new File(ghostCacheDir, "file_" + file.id + ext);
-            
-            // If already cached, return cached path
-            if (dest.exists() && dest.length() > 0) {
-                 // Log.d(TAG, "File " + file.id + " already pre-cached: " + dest.getAbsolutePath());
-                 return dest.getAbsolutePath();
-            }
-            
-            copyFile(new File(originalPath), dest);
-            Log.i(TAG, "ANTIDELETE: Pre-cached file " + file.id + " to " + dest.getAbsolutePath());
-            return dest.getAbsolutePath();
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to pre-cache file " + file.id + ": " + e.getMessage());
-        }
-        return null;
-    }
-
     private Context context;
     private SharedPreferences prefs;
 
     public void updateMessageContent(long chatId, long messageId, TdApi.MessageContent content) {
-        TdApi.Message cached = messageCache.get(messageId);
-        if (cached != null && cached.chatId == chatId) {
-            cached.content = content;
+        TdApi.Message cached = messageCache.get(chatId, messageId);
+        if (cached != null) {
+            if (isEditHistoryEnabled()) {
+                saveEditVersion(chatId, messageId, cached.content);
+            }
+            // Files of the old content won't be looked up anymore
+            unindexFiles(cached);
+            messageCache.updateContent(chatId, messageId, content);
+            indexFiles(cached);
         }
     }
     
-    public TdApi.Message getCachedMessage(long messageId) {
-        return messageCache.get(messageId);
+    public TdApi.Message getCachedMessage(long chatId, long messageId) {
+        return messageCache.get(chatId, messageId);
+    }
+
+    /**
+     * Opened and pinned chats get a larger share of the message cache.
+     */
+    public void setChatOpened(long chatId, boolean isOpened) {
+        messageCache.setChatPriority(chatId, GhostMessageCache.PRIORITY_OPENED, isOpened);
+    }
+
+    public void setChatPinned(long chatId, boolean isPinned) {
+        messageCache.setChatPriority(chatId, GhostMessageCache.PRIORITY_PINNED, isPinned);
+    }
+
+    /**
+     * Message cache size, hit rate and share of deleted messages that could be recovered, for the debug screen.
+     */
+    public String getMessageCacheStats() {
+        return messageCache.getStats();
     }
 
     public static DeletedMessagesManager getInstance() {
         return INSTANCE;
     }
 
+    private volatile boolean initialized;
+
+    /**
+     * Safe to call repeatedly, e.g. before handling every deletion: only the first call does anything.
+     */
     public void init(Context context) {
+        if (initialized) return;
+        synchronized (this) {
+            if (!initialized) {
+                initImpl(context);
+                initialized = true;
+            }
+        }
+    }
+
+    private void initImpl(Context context) {
         this.context = context;
         this.prefs = context.getSharedPreferences("ghost_settings", Context.MODE_PRIVATE);
-        this.savedMessagesDir = new File(context.getExternalFilesDir(null), "deleted_msgs_v1");
-        if (!savedMessagesDir.exists()) {
-            savedMessagesDir.mkdirs();
-        }
-        this.ghostCacheDir = new File(context.getExternalCacheDir(), "ghost_cache");
-        if (!ghostCacheDir.exists()) {
-            ghostCacheDir.mkdirs();
+        if (ghostStore == null) {
+            this.ghostStore = new GhostMessageStore(new File(context.getExternalFilesDir(null), "deleted_msgs_v2"));
+            this.persistenceQueue = new GhostPersistenceQueue(ghostStore, this::encodeMessage);
+            this.legacyMessagesDir = new File(context.getExternalFilesDir(null), "deleted_msgs_v1");
+            if (legacyMessagesDir.exists() && !ghostStore.isLegacyImported()) {
+                this.savedMessagesDir = legacyMessagesDir;
+                Background.instance().post(this::importAllLegacyMessages);
+            }
         }
-        // Initialize edit history dir
-        this.editHistoryDir = new File(context.getExternalFilesDir(null), "edit_history_v1");
-        if (!editHistoryDir.exists()) {
-            editHistoryDir.mkdirs();
+        if (ghostMediaCache == null) {
+            this.ghostMediaCache = new GhostMediaCache(new File(context.getExternalFilesDir(null), "ghost_media"), getMediaCacheBudgetMb() * 1024L * 1024L);
+            // Unbounded pre-cache keyed by TDLib file id, replaced by ghostMediaCache
+            File legacyCacheDir = new File(context.getExternalCacheDir(), "ghost_cache");
+            if (legacyCacheDir.exists()) {
+                Background.instance().post(() -> deleteRecursive(legacyCacheDir));
+            }
         }
+        initEditHistory(context);
+        // Accounts may have subscribed before preferences were available
+        subscribeToFiles(isMediaCacheEnabled());
     }
  
     public boolean isGhostEnabled() {
@@ -223,19 +395,67 @@ public class DeletedMessagesManager { // Sync fix
             prefs.edit().putBoolean("ghost_enabled", enabled).apply();
         }
     }
+
+    /**
+     * Whether media of cached messages is copied, so photos, videos and files stay viewable after deletion.
+     */
+    public boolean isMediaCacheEnabled() {
+        return prefs != null && prefs.getBoolean("ghost_media_enabled", false);
+    }
+
+    public void setMediaCacheEnabled(boolean enabled) {
+        if (prefs != null) {
+            prefs.edit().putBoolean("ghost_media_enabled", enabled).apply();
+        }
+        subscribeToFiles(enabled);
+        if (!enabled) {
+            synchronized (fileIdToMessageIds) {
+                fileIdToMessageIds.clear();
+            }
+        }
+    }
+
+    public int getMediaCacheBudgetMb() {
+        return prefs != null ? prefs.getInt("ghost_media_budget_mb", DEFAULT_MEDIA_CACHE_BUDGET_MB) : DEFAULT_MEDIA_CACHE_BUDGET_MB;
+    }
+
+    public void setMediaCacheBudgetMb(int budgetMb) {
+        if (prefs != null) {
+            prefs.edit().putInt("ghost_media_budget_mb", budgetMb).apply();
+        }
+        if (ghostMediaCache != null) {
+            ghostMediaCache.setBudget(budgetMb * 1024L * 1024L);
+        }
+    }
+
+    /**
+     * Size, hit and eviction counters of the ghost media cache, for the debug screen.
+     */
+    public String getMediaCacheStats() {
+        return ghostMediaCache != null ? ghostMediaCache.getStats() : "Not initialized";
+    }
     
     public void clearAllGhosts() {
-        messageCache.evictAll();
+        messageCache.clear();
         lastDeletedMessageIds.clear();
         deletedMessageIds.clear();
-        if (savedMessagesDir != null && savedMessagesDir.exists()) {
-            deleteRecursive(savedMessagesDir);
-            savedMessagesDir.mkdirs();
+        ghostIds.clear();
+        synchronized (fileIdToMessageIds) {
+            fileIdToMessageIds.clear();
         }
-        // Also clear edit history
-        if (editHistoryDir != null && editHistoryDir.exists()) {
-            deleteRecursive(editHistoryDir);
-            editHistoryDir.mkdirs();
+        if (ghostStore != null) {
+            persistenceQueue.clear();
+            ghostStore.clear();
+        }
+        if (legacyMessagesDir != null && legacyMessagesDir.exists()) {
+            deleteRecursive(legacyMessagesDir);
+        }
+        if (ghostMediaCache != null) {
+            ghostMediaCache.clear();
+        }
+        // Also clear edit history, after pending writes
+        if (editHistoryLog != null) {
+            editHistoryThread.post(editHistoryLog::clear, 0);
         }
     }
     
@@ -248,13 +468,21 @@ public class DeletedMessagesManager { // Sync fix
 
     // ============ EDIT HISTORY FEATURE ============
     
+    private static final int DEFAULT_EDIT_HISTORY_MAX_VERSIONS = 50;
+
     private File editHistoryDir;
+    // Owned by editHistoryThread, which serializes all reads and writes of the log
+    private EditHistoryLog editHistoryLog;
+    private BaseThread editHistoryThread;
     
     public void initEditHistory(Context ctx) {
+        if (editHistoryLog != null) return;
         this.editHistoryDir = new File(ctx.getExternalFilesDir(null), "edit_history_v1");
         if (!editHistoryDir.exists()) {
             editHistoryDir.mkdirs();
         }
+        this.editHistoryLog = new EditHistoryLog(editHistoryDir, getEditHistoryMaxVersions(), this::importLegacyEditVersions, this::onEditVersionsTrimmed);
+        this.editHistoryThread = new BaseThread("EditHistoryThread");
     }
     
     public boolean isEditHistoryEnabled() {
@@ -266,76 +494,168 @@ public class DeletedMessagesManager { // Sync fix
             prefs.edit().putBoolean("edit_history_enabled", enabled).apply();
         }
     }
+
+    /**
+     * Maximum amount of versions kept per message. Older versions are dropped right away, and their bytes when the chat log is compacted.
+     */
+    public int getEditHistoryMaxVersions() {
+        return prefs != null ? prefs.getInt("edit_history_max_versions", DEFAULT_EDIT_HISTORY_MAX_VERSIONS) : DEFAULT_EDIT_HISTORY_MAX_VERSIONS;
+    }
+
+    public void setEditHistoryMaxVersions(int maxVersions) {
+        if (prefs != null) {
+            prefs.edit().putInt("edit_history_max_versions", maxVersions).apply();
+        }
+        if (editHistoryLog != null) {
+            editHistoryThread.post(() -> editHistoryLog.setMaxVersions(maxVersions), 0);
+        }
+    }
     
     /**
      * Save old content before message is updated.
-     * Called from Tdlib.updateMessageContent() BEFORE the content changes.
+     * Called from updateMessageContent() BEFORE the cached content changes.
      */
     public void saveEditVersion(long chatId, long messageId, TdApi.MessageContent oldContent) {
-        if (!isEditHistoryEnabled() || editHistoryDir == null) return;
+        if (!isEditHistoryEnabled() || editHistoryLog == null) return;
         if (oldContent == null) return;
-        
-        try {
-            // Create directory for this message's history: edit_history_v1/{chatId}/{messageId}/
-            File chatDir = new File(editHistoryDir, String.valueOf(chatId));
-            File msgDir = new File(chatDir, String.valueOf(messageId));
-            if (!msgDir.exists()) msgDir.mkdirs();
-            
-            // Filename is timestamp to preserve order
-            long timestamp = System.currentTimeMillis();
-            File versionFile = new File(msgDir, timestamp + ".json");
-            
-            JSONObject json = new JSONObject();
-            json.put("timestamp", timestamp);
-            json.put("content", serializeContent(oldContent, chatId, messageId));
-            
-            FileWriter writer = new FileWriter(versionFile);
-            writer.write(json.toString());
-            writer.close();
-            
-            Log.i(TAG, "Saved edit version for message " + messageId);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to save edit version: " + e.getMessage());
+
+        // Encoded right away, so the content can't change before it's written
+        long timestamp = System.currentTimeMillis();
+        ByteBuffer payload = encodeEditVersion(oldContent, chatId, messageId, this::referenceMediaFile);
+        editHistoryThread.post(() -> {
+            editHistoryLog.append(chatId, messageId, timestamp, payload);
+            if (isLoggable()) {
+                Log.i(TAG, "Saved edit version for message " + messageId);
+            }
+        }, 0);
+    }
+
+    /**
+     * Loads a page of previous versions of a message, newest first.
+     *
+     * @param callback called on the UI thread
+     */
+    public void loadEditHistory(long chatId, long messageId, int offset, int limit, RunnableData<EditHistoryPage> callback) {
+        if (editHistoryLog == null) {
+            UI.post(() -> callback.runWithData(new EditHistoryPage(offset, offset, 0, new ArrayList<>())));
+            return;
         }
+        editHistoryThread.post(() -> {
+            List<EditHistoryLog.Version> versions = editHistoryLog.read(chatId, messageId, offset, limit);
+            List<EditHistoryEntry> entries = new ArrayList<>(versions.size());
+            for (EditHistoryLog.Version version : versions) {
+                try {
+                    entries.add(new EditHistoryEntry(version.timestamp, decodeEditVersion(version.payload, path ->
+                      ghostMediaCache != null ? ghostMediaCache.resolveVersionPath(path, chatId, messageId, version.timestamp) : path
+                    )));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading edit history: " + e.getMessage());
+                }
+            }
+            EditHistoryPage page = new EditHistoryPage(offset, offset + versions.size(), editHistoryLog.count(chatId, messageId), entries);
+            UI.post(() -> callback.runWithData(page));
+        }, 0);
     }
-    
+
+    private static ByteBuffer encodeEditVersion(TdApi.MessageContent content, long chatId, long messageId, GhostContentCodec.MediaSaver mediaSaver) {
+        GhostContentCodec.Writer out = new GhostContentCodec.Writer(256);
+        out.writeByte(GhostContentCodec.VERSION);
+        GhostContentCodec.writeContent(out, content, chatId, messageId, mediaSaver);
+        return out.toBuffer();
+    }
+
+    private static TdApi.MessageContent decodeEditVersion(ByteBuffer payload, GhostContentCodec.PathResolver pathResolver) throws IOException {
+        GhostContentCodec.Reader in = new GhostContentCodec.Reader(payload.duplicate());
+        int version = in.readByte();
+        if (version != GhostContentCodec.VERSION) {
+            throw new IOException("Unsupported edit version record: " + version);
+        }
+        return GhostContentCodec.readContent(in, pathResolver);
+    }
+
     /**
-     * Get all previous versions of a message (for history viewer)
+     * Keeps media of edit versions once their message got deleted. Versions refer to the evictable cache until then.
      */
-    public List<EditHistoryEntry> getEditHistory(long chatId, long messageId) {
-        List<EditHistoryEntry> history = new ArrayList<>();
-        if (editHistoryDir == null) return history;
-        
-        File chatDir = new File(editHistoryDir, String.valueOf(chatId));
-        File msgDir = new File(chatDir, String.valueOf(messageId));
-        
-        if (!msgDir.exists()) return history;
-        
-        File[] files = msgDir.listFiles();
-        if (files == null) return history;
-        
-        // Sort by timestamp (filename)
-        java.util.Arrays.sort(files, (a, b) -> b.getName().compareTo(a.getName()));
-        
-        for (File f : files) {
+    private void pinEditVersionMedia(long chatId, long messageId) {
+        if (editHistoryLog == null || ghostMediaCache == null || !isMediaCacheEnabled()) return;
+        editHistoryThread.post(() -> {
+            int count = editHistoryLog.count(chatId, messageId);
+            for (EditHistoryLog.Version version : editHistoryLog.read(chatId, messageId, 0, count)) {
+                try {
+                    decodeEditVersion(version.payload, path -> {
+                        if (path != null && !path.isEmpty()) {
+                            ghostMediaCache.pinVersion(path, chatId, messageId, version.timestamp);
+                        }
+                        return path;
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading edit history: " + e.getMessage());
+                }
+            }
+        }, 0);
+    }
+
+    private void onEditVersionsTrimmed(long chatId, long messageId, long[] timestamps) {
+        if (ghostMediaCache != null) {
+            ghostMediaCache.unpinVersions(chatId, messageId, timestamps);
+        }
+    }
+
+    /**
+     * Moves versions saved as {@code edit_history_v1/<chatId>/<messageId>/<timestamp>.json} into the chat log.
+     */
+    private void importLegacyEditVersions(long chatId, File chatDir, EditHistoryLog log) {
+        File[] msgDirs = chatDir.listFiles(File::isDirectory);
+        if (msgDirs == null || msgDirs.length == 0) return;
+        int imported = 0;
+        for (File msgDir : msgDirs) {
+            long messageId;
             try {
-                BufferedReader br = new BufferedReader(new FileReader(f));
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-                br.close();
-                
-                JSONObject json = (JSONObject) new JSONTokener(sb.toString()).nextValue();
-                long timestamp = json.getLong("timestamp");
-                TdApi.MessageContent content = deserializeContent(json.optJSONObject("content"));
-                
-                history.add(new EditHistoryEntry(timestamp, content));
-            } catch (Exception e) {
-                Log.e(TAG, "Error reading edit history: " + e.getMessage());
+                messageId = Long.parseLong(msgDir.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File[] files = msgDir.listFiles();
+            List<EditHistoryEntry> versions = new ArrayList<>();
+            if (files != null) {
+                for (File f : files) {
+                    if (!f.getName().endsWith(GhostLegacyJsonReader.EXTENSION)) continue;
+                    EditHistoryEntry entry = GhostLegacyJsonReader.readEditVersion(f);
+                    if (entry != null) {
+                        versions.add(entry);
+                    }
+                }
+            }
+            // Oldest first, as they would have been appended
+            Collections.sort(versions, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+            for (EditHistoryEntry entry : versions) {
+                // Legacy versions keep referring to the media they were saved with
+                log.append(chatId, messageId, entry.timestamp, encodeEditVersion(entry.content, chatId, messageId, DeletedMessagesManager::legacyMediaPath));
+                imported++;
             }
+            EditHistoryLog.deleteRecursive(msgDir);
+        }
+        if (imported > 0) {
+            Log.i(TAG, "Imported " + imported + " legacy edit versions for chat " + chatId);
+        }
+    }
+
+    /**
+     * Page of edit history returned by {@link #loadEditHistory}
+     */
+    public static class EditHistoryPage {
+        public final int offset;
+        // Offset of the next page: entries may hold fewer versions than were read, when some failed to decode
+        public final int nextOffset;
+        public final int totalCount;
+        public final List<EditHistoryEntry> entries;
+
+        public EditHistoryPage(int offset, int nextOffset, int totalCount, List<EditHistoryEntry> entries) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.totalCount = totalCount;
+            this.entries = entries;
         }
-        
-        return history;
     }
     
     /**
@@ -358,120 +678,114 @@ public class DeletedMessagesManager { // Sync fix
         }
     }
 
-    // Cache for lists of deleted messages per chat to avoid disk reads
-    private final Map<Long, List<TdApi.Message>> chatDeletedMessagesCache = new java.util.concurrent.ConcurrentHashMap<>();
-
-    // ... (existing code) ...
-
     public void saveMessage(long chatId, TdApi.Message message) {
-        // Update memory cache immediately
-        List<TdApi.Message> cachedList = chatDeletedMessagesCache.get(chatId);
-        if (cachedList != null) {
-            synchronized (cachedList) {
-                // Remove if exists (update)
-                for (int i = 0; i < cachedList.size(); i++) {
-                    if (cachedList.get(i).id == message.id) {
-                        cachedList.remove(i);
-                        break;
-                    }
-                }
-                cachedList.add(message);
-                // Sort desc
-                Collections.sort(cachedList, (m1, m2) -> Long.compare(m2.id, m1.id));
-            }
+        obtainGhostIds(chatId).add(message.id);
+        if (persistenceQueue != null) {
+            persistenceQueue.put(chatId, message);
         }
+    }
 
-        new Thread(() -> {
-            if (savedMessagesDir == null) return;
-            
-            try {
-                File chatDir = new File(savedMessagesDir, String.valueOf(chatId));
-                if (!chatDir.exists()) chatDir.mkdirs();
-
-                JSONObject json = new JSONObject();
-                json.put("id", message.id);
-                json.put("chatId", message.chatId);
-                json.put("senderId", serializeSender(message.senderId));
-                json.put("date", message.date);
-                json.put("editDate", message.editDate);
-                json.put("isOutgoing", message.isOutgoing);
-                json.put("content", serializeContent(message.content, message.chatId, message.id));
-
-                // Mark as locally deleted (Ghost)
-                json.put("is_ghost", true);
-
-                File msgFile = new File(chatDir, message.id + ".json");
-                FileWriter writer = new FileWriter(msgFile);
-                writer.write(json.toString());
-                writer.close();
+    /**
+     * Queue depth, coalescing and latency counters of ghost persistence, for the debug screen.
+     */
+    public String getPersistenceStats() {
+        return persistenceQueue != null ? persistenceQueue.getStats() : "Not initialized";
+    }
 
-            } catch (Exception e) {
-                // Ignore
-            }
-        }).start();
+    /**
+     * Ghost messages with ids within {@code [fromMessageId, toMessageId]}, newest first.
+     */
+    public List<TdApi.Message> getDeletedMessages(long chatId, long fromMessageId, long toMessageId) {
+        if (ghostStore == null) {
+            return Collections.emptyList();
+        }
+        importLegacyMessages(chatId);
+        loadGhostIds(chatId, obtainGhostIds(chatId));
+        return persistenceQueue.query(chatId, fromMessageId, toMessageId, this::decodeMessages);
     }
 
-    public List<TdApi.Message> getDeletedMessages(long chatId) {
-        // Check cache first
-        List<TdApi.Message> cachedList = chatDeletedMessagesCache.get(chatId);
-        if (cachedList != null) {
-            synchronized (cachedList) {
-                return new ArrayList<>(cachedList);
+    private List<TdApi.Message> decodeMessages(List<ByteBuffer> records) {
+        List<TdApi.Message> messages = new ArrayList<>(records.size());
+        for (ByteBuffer record : records) {
+            try {
+                TdApi.Message msg = decodeMessage(record);
+                if (msg.content != null) {
+                    messages.add(msg);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error decoding ghost message: " + e.getMessage());
             }
         }
+        return messages;
+    }
 
-        if (savedMessagesDir == null) {
-            return Collections.emptyList();
+    /**
+     * Imports every chat once, then marks the store so the legacy directory is never looked at again.
+     * Chats accessed before this finishes are imported on access by {@link #importLegacyMessages}.
+     */
+    private void importAllLegacyMessages() {
+        File legacyDir = savedMessagesDir;
+        if (legacyDir == null) return;
+        File[] chatDirs = legacyDir.listFiles(File::isDirectory);
+        if (chatDirs != null) {
+            for (File chatDir : chatDirs) {
+                try {
+                    importLegacyMessages(Long.parseLong(chatDir.getName()));
+                } catch (NumberFormatException ignored) { }
+            }
         }
+        ghostStore.markLegacyImported();
+        savedMessagesDir = null;
+    }
 
-        File chatDir = new File(savedMessagesDir, String.valueOf(chatId));
-        if (!chatDir.exists()) {
-             return Collections.emptyList();
+    /**
+     * Moves messages saved in the legacy {@code deleted_msgs_v1/<chatId>/<messageId>.json} layout into {@link #ghostStore}.
+     */
+    private void importLegacyMessages(long chatId) {
+        File legacyDir = savedMessagesDir;
+        if (legacyDir == null) return;
+        synchronized (legacyImportedChatIds) {
+            if (legacyImportedChatIds.add(chatId)) {
+                importLegacyMessages(legacyDir, chatId);
+            }
         }
+    }
 
-        List<TdApi.Message> messages = new ArrayList<>();
+    private void importLegacyMessages(File legacyDir, long chatId) {
+        File chatDir = new File(legacyDir, String.valueOf(chatId));
         File[] files = chatDir.listFiles();
-        if (files == null) {
-             return messages;
-        }
-
+        if (files == null) return;
+        List<TdApi.Message> imported = new ArrayList<>();
+        List<File> importedFiles = new ArrayList<>();
         for (File f : files) {
-            // Only process JSON files, skip media files
-            if (!f.getName().endsWith(".json")) continue;
-            try {
-                BufferedReader br = new BufferedReader(new FileReader(f));
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-                br.close();
-
-                JSONObject json = (JSONObject) new JSONTokener(sb.toString()).nextValue();
-                TdApi.Message msg = new TdApi.Message();
-                msg.id = json.getLong("id");
-                msg.chatId = json.getLong("chatId");
-                msg.date = json.getInt("date");
-                msg.editDate = json.optInt("editDate", 0);
-                msg.isOutgoing = json.optBoolean("isOutgoing");
-                msg.senderId = deserializeSender(json.optJSONObject("senderId"));
-                msg.content = deserializeContent(json.optJSONObject("content"));
-
-                if (msg.content != null) {
-                    messages.add(msg);
-                }
-            } catch (Exception e) {
-                // Ignore
+            // Media files stay in place, restored messages point to them by path
+            if (!f.getName().endsWith(GhostLegacyJsonReader.EXTENSION)) continue;
+            TdApi.Message msg = GhostLegacyJsonReader.readMessage(f);
+            if (msg != null) {
+                imported.add(msg);
+                importedFiles.add(f);
+            } else {
+                f.delete();
             }
         }
-        
-        // Sort
-        Collections.sort(messages, (m1, m2) -> Long.compare(m2.id, m1.id));
-        
-        // Populate cache (synchronized list)
-        chatDeletedMessagesCache.put(chatId, Collections.synchronizedList(new ArrayList<>(messages)));
-        
-        return messages;
+        if (!imported.isEmpty()) {
+            long[] ids = new long[imported.size()];
+            ByteBuffer[] payloads = new ByteBuffer[imported.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = imported.get(i).id;
+                payloads[i] = encodeMessage(imported.get(i));
+            }
+            ghostStore.apply(chatId, ids, payloads, new long[0]);
+            for (File f : importedFiles) {
+                f.delete();
+            }
+        }
+        chatDir.delete(); // Only succeeds when no media files are left
+        if (!imported.isEmpty()) {
+            Log.i(TAG, "Imported " + imported.size() + " legacy ghost messages for chat " + chatId);
+        }
     }
-    
+
     public void markAsDeletedByMe(long[] messageIds) {
         for (long id : messageIds) {
             deletedByMeMessageIds.add(id);
@@ -479,9 +793,9 @@ public class DeletedMessagesManager { // Sync fix
     }
 
     public void updateMessageId(long oldId, TdApi.Message newMessage) {
-        messageCache.remove(oldId);
+        messageCache.remove(newMessage.chatId, oldId);
         if (newMessage.isOutgoing) {
-            messageCache.put(newMessage.id, newMessage);
+            messageCache.put(newMessage);
             indexFiles(newMessage);
         }
     }
@@ -498,8 +812,8 @@ public class DeletedMessagesManager { // Sync fix
         return deletedMessageIds.contains(messageId);
     }
 
-    public String getDeletedMessageText(long messageId) {
-        TdApi.Message cached = messageCache.get(messageId);
+    public String getDeletedMessageText(long chatId, long messageId) {
+        TdApi.Message cached = messageCache.get(chatId, messageId);
         if (cached == null) return null;
         
         if (cached.content instanceof TdApi.MessageText) {
@@ -511,80 +825,74 @@ public class DeletedMessagesManager { // Sync fix
         return null;
     }
 
-    public void deleteGhostMessage(long messageId) {
-        messageCache.remove(messageId);
+    public void deleteGhostMessage(long chatId, long messageId) {
+        messageCache.remove(chatId, messageId);
         deletedMessageIds.remove(messageId);
-        
-        // Update cache
-        for (List<TdApi.Message> list : chatDeletedMessagesCache.values()) {
-             boolean removed = false;
-             synchronized (list) {
-                 for (int i = 0; i < list.size(); i++) {
-                     if (list.get(i).id == messageId) {
-                         list.remove(i);
-                         removed = true;
-                         break;
-                     }
-                 }
-             }
-             if (removed) break;
+
+        GhostIdSet ids = ghostIds.get(chatId);
+        if (ids != null) {
+            ids.remove(messageId);
+        }
+        if (persistenceQueue != null) {
+            persistenceQueue.delete(chatId, messageId);
+        }
+        if (ghostMediaCache != null) {
+            ghostMediaCache.unpin(chatId, messageId);
         }
-        
-        new Thread(() -> {
-            if (savedMessagesDir == null) return;
-            
-            File[] chatDirs = savedMessagesDir.listFiles();
-            if (chatDirs == null) return;
-            
-            for (File chatDir : chatDirs) {
-                if (chatDir != null && chatDir.isDirectory()) {
-                    File msgFile = new File(chatDir, messageId + ".json");
-                    if (msgFile.exists()) {
-                        msgFile.delete();
-                        return;
-                    }
-                }
-            }
-        }).start();
     }
 
     private final Map<Long, Long> lastDeletedMessageIds = Collections.synchronizedMap(new HashMap<>());
 
-    public void onMessagesDeleted(final org.thunderdog.challegram.telegram.Tdlib tdlib, final long chatId, final long[] messageIds) {
-        if (savedMessagesDir == null) return;
+    /**
+     * Marks messages as deleted, so the UI keeps showing them. Called on the TDLib thread before listeners are notified,
+     * with messages deleted by this client already filtered out.
+     * Their contents are captured later by {@link #captureDeletedMessages}, in order with the cache updates.
+     */
+    public void onMessagesDeleted(final long chatId, final long[] messageIds) {
+        if (ghostStore == null) return;
         
         long maxId = lastDeletedMessageIds.containsKey(chatId) ? lastDeletedMessageIds.get(chatId) : 0;
         
         for (final long messageId : messageIds) {
-             if (deletedByMeMessageIds.contains(messageId)) {
-                 deletedByMeMessageIds.remove(messageId);
-                 continue;
-             }
-             
              deletedMessageIds.add(messageId); 
              if (messageId > maxId) {
                  maxId = messageId;
              }
-             
-             TdApi.Message cached = messageCache.get(messageId);
+        }
+        if (maxId > 0) {
+            Long currentMax = lastDeletedMessageIds.get(chatId);
+            if (currentMax == null || maxId > currentMax) {
+                lastDeletedMessageIds.put(chatId, maxId);
+            }
+        }
+    }
+
+    private void captureDeletedMessages(final Tdlib tdlib, final long chatId, final long[] messageIds) {
+        if (ghostStore == null) return;
+
+        for (final long messageId : messageIds) {
+             if (!deletedMessageIds.contains(messageId)) {
+                 // Deleted by this client
+                 continue;
+             }
+
+             TdApi.Message cached = messageCache.get(chatId, messageId);
+             messageCache.onMessageDeleted(cached != null);
              if (cached != null) {
                  saveMessage(chatId, cached);
+                 pinEditVersionMedia(chatId, messageId);
                  continue;
              }
 
              // Fallback to GetMessage (likely to fail for deleted messages)
              tdlib.client().send(new TdApi.GetMessage(chatId, messageId), result -> {
                  if (result.getConstructor() == TdApi.Message.CONSTRUCTOR) {
+                     messageCache.onMessageFetched();
                      saveMessage(chatId, (TdApi.Message) result);
+                     pinEditVersionMedia(chatId, messageId);
                  }
             });
         }
-        if (maxId > 0) {
-            Long currentMax = lastDeletedMessageIds.get(chatId);
-            if (currentMax == null || maxId > currentMax) {
-                lastDeletedMessageIds.put(chatId, maxId);
-            }
-        }
     }
 
     // New method to retrieve the latest ghost message for a chat
@@ -593,31 +901,17 @@ public class DeletedMessagesManager { // Sync fix
         if (lastId == null) return null;
         
         // Try memory cache first
-        TdApi.Message cached = messageCache.get(lastId);
+        TdApi.Message cached = messageCache.get(chatId, lastId);
         if (cached != null) return cached;
         
         // Try disk
-        if (savedMessagesDir != null) {
-            File chatDir = new File(savedMessagesDir, String.valueOf(chatId));
-            File msgFile = new File(chatDir, lastId + ".json");
-            if (msgFile.exists()) {
+        if (ghostStore != null) {
+            importLegacyMessages(chatId);
+            ByteBuffer record = ghostStore.get(chatId, lastId);
+            if (record != null) {
                 try {
-                    BufferedReader br = new BufferedReader(new FileReader(msgFile));
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) sb.append(line);
-                    br.close();
-                    JSONObject json = (JSONObject) new JSONTokener(sb.toString()).nextValue();
-                    TdApi.Message msg = new TdApi.Message();
-                    msg.id = json.getLong("id");
-                    msg.chatId = json.getLong("chatId");
-                    msg.date = json.getInt("date");
-                    msg.editDate = json.optInt("editDate", 0);
-                    msg.isOutgoing = json.optBoolean("isOutgoing");
-                    msg.senderId = deserializeSender(json.optJSONObject("senderId"));
-                    msg.content = deserializeContent(json.optJSONObject("content"));
-                    return msg;
-                } catch (Exception e) {
+                    return decodeMessage(record);
+                } catch (IOException e) {
                     Log.e(TAG, "Error loading last ghost message: " + e.getMessage());
                 }
             }
@@ -625,252 +919,114 @@ public class DeletedMessagesManager { // Sync fix
         return null;
     }
 
-    // --- Serialization Helpers ---
+    // --- Binary Encoding (ghost store records) ---
 
-    private JSONObject serializeSender(TdApi.MessageSender sender) throws Exception {
-        JSONObject obj = new JSONObject();
-        if (sender instanceof TdApi.MessageSenderUser) {
-            obj.put("type", "user");
-            obj.put("userId", ((TdApi.MessageSenderUser) sender).userId);
-        } else if (sender instanceof TdApi.MessageSenderChat) {
-            obj.put("type", "chat");
-            obj.put("chatId", ((TdApi.MessageSenderChat) sender).chatId);
-        }
-        return obj;
+    private ByteBuffer encodeMessage(TdApi.Message message) {
+        GhostContentCodec.Writer out = new GhostContentCodec.Writer(256);
+        GhostContentCodec.writeMessage(out, message, this::saveMediaFile);
+        return out.toBuffer();
+    }
+
+    private TdApi.Message decodeMessage(ByteBuffer record) throws IOException {
+        return GhostContentCodec.readMessage(new GhostContentCodec.Reader(record.duplicate()));
     }
 
-    private TdApi.MessageSender deserializeSender(JSONObject json) {
-        if (json == null) return new TdApi.MessageSenderUser(0);
-        String type = json.optString("type");
-        if ("user".equals(type)) {
-            return new TdApi.MessageSenderUser(json.optLong("userId"));
-        } else if ("chat".equals(type)) {
-            return new TdApi.MessageSenderChat(json.optLong("chatId"));
+    /**
+     * Pins media of a deleted message, called when its ghost record is encoded.
+     */
+    private String saveMediaFile(Object mediaSource, long chatId, long messageId) {
+        if (ghostMediaCache == null || !isMediaCacheEnabled()) return null;
+        TdApi.File file = findMediaFile(mediaSource, messageId);
+        if (file == null) return null;
+        String path = ghostMediaCache.pin(file, chatId, messageId);
+        if (path != null && isLoggable()) {
+            Log.i(TAG, "Pinning media of msg " + messageId + " to: " + path);
         }
-        return new TdApi.MessageSenderUser(0);
+        return path;
+    }
+
+    /**
+     * Refers edit versions to the evictable cache, pinned by {@link #pinEditVersionMedia} only once the message is deleted.
+     */
+    private String referenceMediaFile(Object mediaSource, long chatId, long messageId) {
+        if (ghostMediaCache == null || !isMediaCacheEnabled()) return null;
+        TdApi.File file = findMediaFile(mediaSource, messageId);
+        return file != null ? ghostMediaCache.objectPath(file) : null;
+    }
+
+    private static String legacyMediaPath(Object mediaSource, long chatId, long messageId) {
+        TdApi.File file = findMediaFile(mediaSource, messageId);
+        return file != null && file.local != null ? file.local.path : null;
     }
 
-    private JSONObject serializeContent(TdApi.MessageContent content, long chatId, long messageId) throws Exception {
-        JSONObject obj = new JSONObject();
-        if (content instanceof TdApi.MessageText) {
-            obj.put("type", "text");
-            obj.put("text", ((TdApi.MessageText) content).text.text);
-        } else if (content instanceof TdApi.MessagePhoto) {
-            obj.put("type", "photo");
-            TdApi.MessagePhoto photo = (TdApi.MessagePhoto) content;
-            obj.put("caption", photo.caption.text);
-            
-            // Find best photo size and save dimensions
+    private static TdApi.File findMediaFile(Object mediaSource, long messageId) {
+        TdApi.File file = null;
+        if (mediaSource instanceof TdApi.PhotoSize[]) {
+            // Find biggest downloaded photo
             TdApi.PhotoSize best = null;
-            for (TdApi.PhotoSize sz : photo.photo.sizes) {
+            for (TdApi.PhotoSize sz : (TdApi.PhotoSize[]) mediaSource) {
                 if (sz.photo.local.isDownloadingCompleted) {
-                    if (best == null || sz.width > best.width) best = sz;
+                    if (best == null || sz.width > best.width) {
+                        best = sz;
+                    }
                 }
             }
             if (best != null) {
-                obj.put("width", best.width);
-                obj.put("height", best.height);
-            }
-
-            String savedPath = saveMediaFile(photo.photo.sizes, chatId, messageId);
-            if (savedPath != null) {
-                obj.put("localPath", savedPath);
-            }
-        } else if (content instanceof TdApi.MessageVideo) {
-            obj.put("type", "video");
-            TdApi.MessageVideo video = (TdApi.MessageVideo) content;
-            obj.put("caption", video.caption.text);
-            obj.put("width", video.video.width);
-            obj.put("height", video.video.height);
-            
-            String savedPath = saveMediaFile(video.video.video, chatId, messageId);
-            if (savedPath != null) {
-                obj.put("localPath", savedPath);
-            }
-        } else if (content instanceof TdApi.MessageDocument) {
-            obj.put("type", "document");
-            TdApi.MessageDocument doc = (TdApi.MessageDocument) content;
-            obj.put("caption", doc.caption.text);
-            obj.put("fileName", doc.document.fileName);
-            
-            String savedPath = saveMediaFile(doc.document.document, chatId, messageId);
-            if (savedPath != null) {
-                obj.put("localPath", savedPath);
+                file = best.photo;
             }
+        } else if (mediaSource instanceof TdApi.File) {
+            file = (TdApi.File) mediaSource;
+        }
+        if (file == null && isLoggable()) {
+            Log.w(TAG, "No downloaded media found for msg " + messageId);
         }
-        return obj;
+        return file;
     }
 
-    private TdApi.MessageContent deserializeContent(JSONObject json) {
-        if (json == null) return new TdApi.MessageText(new TdApi.FormattedText("Deleted Message (Error)", null), null, null);
-        String type = json.optString("type");
-        String localPath = json.optString("localPath");
-        
-        if ("text".equals(type)) {
-            return new TdApi.MessageText(new TdApi.FormattedText(json.optString("text"), null), null, null);
-        } else if ("photo".equals(type)) {
-            if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
-                 // Reconstruct Photo using no-arg constructor
-                 TdApi.PhotoSize[] sizes = new TdApi.PhotoSize[1];
-                 TdApi.File f = new TdApi.File();
-                 f.id = 0; // Invalid ID but path matters
-                 f.local = new TdApi.LocalFile();
-                 f.local.path = localPath;
-                 f.local.isDownloadingCompleted = true;
-                 f.local.canBeDownloaded = false;
-                 f.local.downloadedPrefixSize = 0;
-                 f.local.downloadedSize = new File(localPath).length();
-                 f.size = f.local.downloadedSize;
-                 
-                 // Use saved dimensions or safe default (fixes crash)
-                 int w = json.optInt("width");
-                 int h = json.optInt("height");
-                 if (w <= 0) w = 512;
-                 if (h <= 0) h = 512;
-                 
-                 sizes[0] = new TdApi.PhotoSize("x", f, w, h, new int[0]);
-                 TdApi.Photo photo = new TdApi.Photo();
-                 photo.sizes = sizes;
-                 photo.hasStickers = false;
-                 
-                 TdApi.MessagePhoto content = new TdApi.MessagePhoto();
-                 content.photo = photo;
-                 content.caption = new TdApi.FormattedText(json.optString("caption"), null);
-                 return content;
-            }
-            return new TdApi.MessageText(new TdApi.FormattedText("[Deleted Photo] " + json.optString("caption"), null), null, null);
-        } else if ("video".equals(type)) {
-             if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
-                 TdApi.File f = new TdApi.File();
-                 f.local = new TdApi.LocalFile();
-                 f.local.path = localPath;
-                 f.local.isDownloadingCompleted = true;
-                 f.size = new File(localPath).length();
-                 
-                 TdApi.Video video = new TdApi.Video();
-                 video.video = f;
-                 int w = json.optInt("width");
-                 int h = json.optInt("height");
-                 video.width = w > 0 ? w : 512;
-                 video.height = h > 0 ? h : 512;
-                 video.fileName = "deleted_video.mp4";
-                 
-                 TdApi.MessageVideo content = new TdApi.MessageVideo();
-                 content.video = video;
-                 content.caption = new TdApi.FormattedText(json.optString("caption"), null);
-                 return content;
-             }
-             return new TdApi.MessageText(new TdApi.FormattedText("[Deleted Video] " + json.optString("caption"), null), null, null);
-        } else if ("document".equals(type)) {
-             if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
-                 TdApi.File f = new TdApi.File();
-                 f.local = new TdApi.LocalFile();
-                 f.local.path = localPath;
-                 f.local.isDownloadingCompleted = true;
-                 f.size = new File(localPath).length();
-
-                 TdApi.Document doc = new TdApi.Document();
-                 doc.document = f;
-                 doc.fileName = json.optString("fileName", "deleted_file");
-                 
-                 TdApi.MessageDocument content = new TdApi.MessageDocument();
-                 content.document = doc;
-                 content.caption = new TdApi.FormattedText(json.optString("caption"), null);
-                 return content;
-             }
-             return new TdApi.MessageText(new TdApi.FormattedText("[Deleted File] " + json.optString("caption"), null), null, null);
+    // UPDATED: Strictly check if message is confirmed deleted. Never touches the disk.
+    public boolean isDeletedMessage(long chatId, long messageId) {
+        // Check memory set first (fastest)
+        if (deletedMessageIds.contains(messageId)) {
+            return true;
         }
-        return new TdApi.MessageText(new TdApi.FormattedText("[Deleted Content]", null), null, null);
+        // Persistent ghosts: ids are loaded once per chat in background,
+        // usually before the first page of the chat reaches TGMessage via getDeletedMessages
+        GhostIdSet ids = obtainGhostIds(chatId);
+        if (!ids.isLoaded()) {
+            requestGhostIds(chatId, ids);
+        }
+        return ids.contains(messageId);
     }
 
-    private String saveMediaFile(Object mediaSource, long chatId, long messageId) {
-        // Disabled by user request to fix crash
-        if (true) return null;
-        if (savedMessagesDir == null) return null;
-        try {
-            String sourcePath = null;
-            String extension = "";
-            
-            if (mediaSource instanceof TdApi.PhotoSize[]) {
-                // Find biggest downloaded photo
-                TdApi.PhotoSize[] sizes = (TdApi.PhotoSize[]) mediaSource;
-                TdApi.PhotoSize best = null;
-                for (TdApi.PhotoSize sz : sizes) {
-                    if (sz.photo.local.isDownloadingCompleted) {
-                        if (best == null || sz.width > best.width) {
-                            best = sz;
-                        }
-                    }
-                }
-                
-                if (best != null) {
-                    sourcePath = best.photo.local.path;
-                    extension = ".jpg";
-                    Log.i(TAG, "Selected best photo size: " + best.type + " width=" + best.width + " path=" + sourcePath);
-                } else {
-                    Log.w(TAG, "No downloaded photo size found for msg " + messageId);
-                    // Debug availability
-                    for (TdApi.PhotoSize sz : sizes) {
-                         Log.d(TAG, "Size " + sz.type + " #" + sz.photo.id + ": downloaded=" + sz.photo.local.isDownloadingCompleted + " path=" + sz.photo.local.path);
-                    }
-                }
-            } else if (mediaSource instanceof TdApi.File) {
-                TdApi.File f = (TdApi.File) mediaSource;
-                if (f.local.isDownloadingCompleted) {
-                    sourcePath = f.local.path;
-                    // Determine extension from path or default
-                    extension = ".dat"; 
-                    if (sourcePath.contains(".")) {
-                       extension = sourcePath.substring(sourcePath.lastIndexOf("."));
-                    }
-                    Log.i(TAG, "File source path: " + sourcePath);
-                } else {
-                    Log.w(TAG, "File not downloaded for msg " + messageId + " #" + f.id + " path=" + f.local.path);
-                }
-            }
-            
-            if (sourcePath != null && new File(sourcePath).exists()) {
-                File chatDir = new File(savedMessagesDir, String.valueOf(chatId));
-                if (!chatDir.exists()) chatDir.mkdirs();
-                
-                File dest = new File(chatDir, "media_" + messageId + extension);
-                copyFile(new File(sourcePath), dest);
-                Log.i(TAG, "Saved media to: " + dest.getAbsolutePath());
-                return dest.getAbsolutePath();
-            } else {
-                Log.e(TAG, "Source file does not exist or path null: " + sourcePath);
+    private GhostIdSet obtainGhostIds(long chatId) {
+        GhostIdSet ids = ghostIds.get(chatId);
+        if (ids == null) {
+            GhostIdSet newIds = new GhostIdSet();
+            ids = ghostIds.putIfAbsent(chatId, newIds);
+            if (ids == null) {
+                ids = newIds;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to save media: " + e);
         }
-        return null;
+        return ids;
     }
 
-    private void copyFile(File source, File dest) throws Exception {
-        try (java.io.FileInputStream is = new java.io.FileInputStream(source);
-             java.io.FileOutputStream os = new java.io.FileOutputStream(dest)) {
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
-            }
+    private final Set<Long> pendingGhostIdLoads = Collections.synchronizedSet(new HashSet<>());
+
+    private void requestGhostIds(long chatId, GhostIdSet ids) {
+        if (ghostStore == null || !pendingGhostIdLoads.add(chatId)) {
+            return;
         }
+        Background.instance().post(() -> {
+            loadGhostIds(chatId, ids);
+            pendingGhostIdLoads.remove(chatId);
+        });
     }
 
-    // UPDATED: Strictly check if message is confirmed deleted (in memory set or on disk)
-    public boolean isDeletedMessage(long chatId, long messageId) {
-        // Check memory set first (fastest)
-        if (deletedMessageIds.contains(messageId)) {
-            return true;
-        }
-        // Fallback to disk check (slower, but necessary for persistent ghosts)
-        if (savedMessagesDir != null) {
-            File chatDir = new File(savedMessagesDir, String.valueOf(chatId));
-            if (chatDir.exists()) {
-                File msgFile = new File(chatDir, messageId + ".json");
-                return msgFile.exists();
-            }
+    private void loadGhostIds(long chatId, GhostIdSet ids) {
+        if (ghostStore == null || ids.isLoaded()) {
+            return;
         }
-        return false;
+        importLegacyMessages(chatId);
+        ids.onLoaded(ghostStore.ids(chatId));
     }
 }
@@ -0,0 +1,403 @@
+package org.thunderdog.challegram.data;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only edit history storage, one log file per chat.
+ *
+ * Layout: {@code <root>/<chatId>/log.dat} holds records ({@code [int length][long messageId][long timestamp][payload]})
+ * in the order versions were saved. The offset index of every message is rebuilt from record headers
+ * when the chat is first accessed. Only the newest {@code maxVersions} versions of a message are kept;
+ * older ones become dead bytes that are dropped when the log is compacted.
+ *
+ * Not thread-safe: all calls are expected to come from the edit history thread.
+ */
+final class EditHistoryLog {
+    private static final String TAG = "ANTIDELETE";
+
+    private static final String LOG_FILE = "log.dat";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+    private static final int COMPACT_MIN_DEAD_BYTES = 256 * 1024;
+
+    interface LegacyImporter {
+        /**
+         * Called once per chat before its log is loaded, to move versions stored in an older layout into the log.
+         */
+        void importLegacyVersions(long chatId, File chatDir, EditHistoryLog log);
+    }
+
+    interface TrimListener {
+        /**
+         * Called when versions exceed {@code maxVersions}, including versions dropped in an earlier session
+         * but still found in a log that wasn't compacted yet.
+         */
+        void onVersionsTrimmed(long chatId, long messageId, long[] timestamps);
+    }
+
+    static final class Version {
+        final long timestamp;
+        final ByteBuffer payload;
+
+        Version(long timestamp, ByteBuffer payload) {
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private final File rootDir;
+    private final LegacyImporter legacyImporter;
+    private final TrimListener trimListener;
+    private final Map<Long, ChatLog> chats = new HashMap<>();
+    private int maxVersions;
+
+    EditHistoryLog(File rootDir, int maxVersions, LegacyImporter legacyImporter, TrimListener trimListener) {
+        this.rootDir = rootDir;
+        this.maxVersions = maxVersions;
+        this.legacyImporter = legacyImporter;
+        this.trimListener = trimListener;
+    }
+
+    /**
+     * Applies the new cap to chats that are already loaded as well, others are trimmed when loaded.
+     */
+    void setMaxVersions(int maxVersions) {
+        boolean isLower = maxVersions < this.maxVersions;
+        this.maxVersions = maxVersions;
+        if (!isLower) {
+            return;
+        }
+        for (ChatLog log : chats.values()) {
+            log.trim(maxVersions);
+            try {
+                log.compactIfNeeded();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compact edit history of chat " + log.chatId, e);
+            }
+        }
+    }
+
+    void append(long chatId, long messageId, long timestamp, ByteBuffer payload) {
+        ChatLog log = obtainLog(chatId);
+        try {
+            log.append(messageId, timestamp, payload, maxVersions);
+            log.compactIfNeeded();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append edit version of " + messageId + " in chat " + chatId, e);
+        }
+    }
+
+    int count(long chatId, long messageId) {
+        MessageVersions versions = obtainLog(chatId).messages.get(messageId);
+        return versions != null ? versions.count : 0;
+    }
+
+    /**
+     * @return up to {@code limit} versions starting from {@code offset}, newest first
+     */
+    List<Version> read(long chatId, long messageId, int offset, int limit) {
+        ChatLog log = obtainLog(chatId);
+        MessageVersions versions = log.messages.get(messageId);
+        if (versions == null || offset >= versions.count || limit <= 0) {
+            return new ArrayList<>(0);
+        }
+        int end = Math.min(versions.count, offset + limit);
+        List<Version> result = new ArrayList<>(end - offset);
+        try (FileChannel channel = new FileInputStream(log.file).getChannel()) {
+            for (int i = offset; i < end; i++) {
+                // Versions are kept in saving order, newest last
+                int index = versions.count - 1 - i;
+                ByteBuffer payload = log.read(channel, messageId, versions.offsets[index], versions.lengths[index]);
+                result.add(new Version(versions.timestamps[index], payload));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read edit history of " + messageId + " in chat " + chatId, e);
+        }
+        return result;
+    }
+
+    void clear() {
+        chats.clear();
+        deleteRecursive(rootDir);
+        rootDir.mkdirs();
+    }
+
+    private ChatLog obtainLog(long chatId) {
+        ChatLog log = chats.get(chatId);
+        if (log == null) {
+            File chatDir = new File(rootDir, String.valueOf(chatId));
+            log = new ChatLog(chatId, chatDir, trimListener);
+            chats.put(chatId, log);
+            log.load(maxVersions);
+            if (legacyImporter != null) {
+                legacyImporter.importLegacyVersions(chatId, chatDir, this);
+            }
+        }
+        return log;
+    }
+
+    static void deleteRecursive(File fileOrDirectory) {
+        File[] children = fileOrDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        fileOrDirectory.delete();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    // Per-message offset index, in saving order
+
+    private static class MessageVersions {
+        long[] offsets = new long[2];
+        int[] lengths = new int[2];
+        long[] timestamps = new long[2];
+        int count;
+
+        void add(long offset, int length, long timestamp) {
+            if (count == offsets.length) {
+                int newCapacity = count * 2;
+                offsets = Arrays.copyOf(offsets, newCapacity);
+                lengths = Arrays.copyOf(lengths, newCapacity);
+                timestamps = Arrays.copyOf(timestamps, newCapacity);
+            }
+            offsets[count] = offset;
+            lengths[count] = length;
+            timestamps[count] = timestamp;
+            count++;
+        }
+
+        /**
+         * Drops the oldest versions above {@code maxVersions}.
+         *
+         * @return amount of record bytes that became dead
+         */
+        long trim(int maxVersions) {
+            int dropCount = count - maxVersions;
+            if (dropCount <= 0) {
+                return 0;
+            }
+            long droppedBytes = 0;
+            for (int i = 0; i < dropCount; i++) {
+                droppedBytes += RECORD_HEADER_SIZE + lengths[i];
+            }
+            int keepCount = count - dropCount;
+            System.arraycopy(offsets, dropCount, offsets, 0, keepCount);
+            System.arraycopy(lengths, dropCount, lengths, 0, keepCount);
+            System.arraycopy(timestamps, dropCount, timestamps, 0, keepCount);
+            count = keepCount;
+            return droppedBytes;
+        }
+    }
+
+    private static class ChatLog {
+        final long chatId;
+        final File dir;
+        final File file;
+        final Map<Long, MessageVersions> messages = new HashMap<>();
+        final TrimListener trimListener;
+
+        long fileSize;
+        long liveBytes, deadBytes;
+
+        ChatLog(long chatId, File dir, TrimListener trimListener) {
+            this.chatId = chatId;
+            this.dir = dir;
+            this.file = new File(dir, LOG_FILE);
+            this.trimListener = trimListener;
+        }
+
+        void load(int maxVersions) {
+            if (!file.exists()) {
+                return;
+            }
+            long length = file.length();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                while (position + RECORD_HEADER_SIZE <= length) {
+                    header.clear();
+                    while (header.hasRemaining()) {
+                        if (channel.read(header, position + header.position()) < 0) {
+                            break;
+                        }
+                    }
+                    if (header.hasRemaining()) {
+                        break;
+                    }
+                    header.flip();
+                    int recordLength = header.getInt();
+                    long messageId = header.getLong();
+                    long timestamp = header.getLong();
+                    if (recordLength < 0 || position + RECORD_HEADER_SIZE + recordLength > length) {
+                        break;
+                    }
+                    index(messageId, position, recordLength, timestamp, maxVersions);
+                    position += RECORD_HEADER_SIZE + recordLength;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load edit history log for chat " + chatId, e);
+            }
+            if (position != length) {
+                // Torn write at the end of the log, drop the partial record
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(position);
+                } catch (IOException ignored) { }
+            }
+            fileSize = position;
+        }
+
+        void trim(int maxVersions) {
+            for (Map.Entry<Long, MessageVersions> e : messages.entrySet()) {
+                trim(e.getKey(), e.getValue(), maxVersions);
+            }
+        }
+
+        private void trim(long messageId, MessageVersions versions, int maxVersions) {
+            int dropCount = versions.count - maxVersions;
+            if (dropCount <= 0) {
+                return;
+            }
+            long[] droppedTimestamps = Arrays.copyOf(versions.timestamps, dropCount);
+            long droppedBytes = versions.trim(maxVersions);
+            liveBytes -= droppedBytes;
+            deadBytes += droppedBytes;
+            if (trimListener != null) {
+                trimListener.onVersionsTrimmed(chatId, messageId, droppedTimestamps);
+            }
+        }
+
+        private void index(long messageId, long offset, int length, long timestamp, int maxVersions) {
+            MessageVersions versions = messages.get(messageId);
+            if (versions == null) {
+                versions = new MessageVersions();
+                messages.put(messageId, versions);
+            }
+            versions.add(offset, length, timestamp);
+            liveBytes += RECORD_HEADER_SIZE + length;
+            trim(messageId, versions, maxVersions);
+        }
+
+        void append(long messageId, long timestamp, ByteBuffer payload, int maxVersions) throws IOException {
+            if (!dir.exists()) dir.mkdirs();
+            ByteBuffer data = payload.duplicate();
+            int length = data.remaining();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(length).putLong(messageId).putLong(timestamp).flip();
+            long offset = fileSize;
+            try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+                channel.position(offset);
+                writeFully(channel, header, data);
+            }
+            fileSize += RECORD_HEADER_SIZE + length;
+            index(messageId, offset, length, timestamp, maxVersions);
+        }
+
+        ByteBuffer read(FileChannel channel, long messageId, long offset, int length) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            while (record.hasRemaining()) {
+                if (channel.read(record, offset + record.position()) < 0) {
+                    throw new IOException("Truncated edit version of message " + messageId);
+                }
+            }
+            record.flip();
+            if (record.getInt() != length || record.getLong() != messageId) {
+                throw new IOException("Corrupted edit version of message " + messageId);
+            }
+            record.getLong(); // timestamp
+            return record.slice();
+        }
+
+        void compactIfNeeded() throws IOException {
+            if (deadBytes < COMPACT_MIN_DEAD_BYTES || deadBytes < liveBytes) {
+                return;
+            }
+            compact();
+        }
+
+        /**
+         * Copies live records into a new file in their original order and replaces the log with one rename.
+         */
+        private void compact() throws IOException {
+            // Live records sorted by their position in the log
+            int liveCount = 0;
+            for (MessageVersions versions : messages.values()) {
+                liveCount += versions.count;
+            }
+            long[] liveOffsets = new long[liveCount];
+            int i = 0;
+            for (MessageVersions versions : messages.values()) {
+                System.arraycopy(versions.offsets, 0, liveOffsets, i, versions.count);
+                i += versions.count;
+            }
+            Arrays.sort(liveOffsets);
+            long[] newOffsets = new long[liveCount];
+
+            File tmpFile = new File(dir, LOG_FILE + COMPACT_SUFFIX);
+            long newSize = 0;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            try (FileChannel in = new FileInputStream(file).getChannel();
+                 FileChannel out = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+                out.truncate(0);
+                for (i = 0; i < liveCount; i++) {
+                    header.clear();
+                    while (header.hasRemaining()) {
+                        if (in.read(header, liveOffsets[i] + header.position()) < 0) {
+                            throw new IOException("Truncated edit history log for chat " + chatId);
+                        }
+                    }
+                    header.flip();
+                    long recordSize = RECORD_HEADER_SIZE + header.getInt();
+                    long copied = 0;
+                    while (copied < recordSize) {
+                        long count = in.transferTo(liveOffsets[i] + copied, recordSize - copied, out);
+                        if (count <= 0) {
+                            throw new IOException("Truncated edit history log for chat " + chatId);
+                        }
+                        copied += count;
+                    }
+                    newOffsets[i] = newSize;
+                    newSize += recordSize;
+                }
+                out.force(false);
+            } catch (IOException e) {
+                tmpFile.delete();
+                throw e;
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Failed to replace compacted edit history log for chat " + chatId);
+            }
+
+            for (MessageVersions versions : messages.values()) {
+                for (int j = 0; j < versions.count; j++) {
+                    versions.offsets[j] = newOffsets[Arrays.binarySearch(liveOffsets, versions.offsets[j])];
+                }
+            }
+            fileSize = newSize;
+            liveBytes = newSize;
+            deadBytes = 0;
+            Log.i(TAG, "Compacted edit history log for chat " + chatId + ", " + liveCount + " versions left");
+        }
+    }
+}
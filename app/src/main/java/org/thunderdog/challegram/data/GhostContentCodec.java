@@ -0,0 +1,537 @@
+package org.thunderdog.challegram.data;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Versioned binary codec for messages and contents kept by the anti-delete and edit history stores.
+ *
+ * Integers are LEB128 varints (signed values zigzag-encoded), strings and arrays are length-prefixed.
+ * Only content types that are cached are encoded: text, photo, video and document, including
+ * formatted text entities. Everything else is decoded as a placeholder text.
+ */
+final class GhostContentCodec {
+    private GhostContentCodec() { }
+
+    static final int VERSION = 1;
+
+    private static final int SENDER_NONE = 0;
+    private static final int SENDER_USER = 1;
+    private static final int SENDER_CHAT = 2;
+
+    private static final int CONTENT_UNKNOWN = 0;
+    private static final int CONTENT_TEXT = 1;
+    private static final int CONTENT_PHOTO = 2;
+    private static final int CONTENT_VIDEO = 3;
+    private static final int CONTENT_DOCUMENT = 4;
+
+    private static final int ENTITY_UNKNOWN = 0;
+    private static final int ENTITY_BOLD = 1;
+    private static final int ENTITY_ITALIC = 2;
+    private static final int ENTITY_UNDERLINE = 3;
+    private static final int ENTITY_STRIKETHROUGH = 4;
+    private static final int ENTITY_SPOILER = 5;
+    private static final int ENTITY_CODE = 6;
+    private static final int ENTITY_PRE = 7;
+    private static final int ENTITY_PRE_CODE = 8;
+    private static final int ENTITY_TEXT_URL = 9;
+    private static final int ENTITY_MENTION_NAME = 10;
+    private static final int ENTITY_CUSTOM_EMOJI = 11;
+    private static final int ENTITY_BLOCK_QUOTE = 12;
+    private static final int ENTITY_EXPANDABLE_BLOCK_QUOTE = 13;
+    private static final int ENTITY_URL = 14;
+    private static final int ENTITY_MENTION = 15;
+    private static final int ENTITY_HASHTAG = 16;
+    private static final int ENTITY_CASHTAG = 17;
+    private static final int ENTITY_BOT_COMMAND = 18;
+    private static final int ENTITY_EMAIL_ADDRESS = 19;
+    private static final int ENTITY_PHONE_NUMBER = 20;
+    private static final int ENTITY_BANK_CARD_NUMBER = 21;
+    private static final int ENTITY_MEDIA_TIMESTAMP = 22;
+
+    interface MediaSaver {
+        /**
+         * @return path of a copy that outlives TDLib's file, or {@code null}
+         */
+        @Nullable String saveMediaFile(Object mediaSource, long chatId, long messageId);
+    }
+
+    interface PathResolver {
+        /**
+         * @return path media stored at {@code path} can be found at now
+         */
+        @Nullable String resolvePath(@Nullable String path);
+    }
+
+    // Messages
+
+    static void writeMessage(Writer out, TdApi.Message message, @Nullable MediaSaver mediaSaver) {
+        out.writeByte(VERSION);
+        out.writeVarLong(message.id);
+        out.writeVarLong(message.chatId);
+        out.writeVarInt(message.date);
+        out.writeVarInt(message.editDate);
+        out.writeBoolean(message.isOutgoing);
+        if (message.senderId instanceof TdApi.MessageSenderUser) {
+            out.writeByte(SENDER_USER);
+            out.writeVarLong(((TdApi.MessageSenderUser) message.senderId).userId);
+        } else if (message.senderId instanceof TdApi.MessageSenderChat) {
+            out.writeByte(SENDER_CHAT);
+            out.writeVarLong(((TdApi.MessageSenderChat) message.senderId).chatId);
+        } else {
+            out.writeByte(SENDER_NONE);
+        }
+        writeContent(out, message.content, message.chatId, message.id, mediaSaver);
+    }
+
+    static TdApi.Message readMessage(Reader in) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported ghost record version: " + version);
+        }
+        TdApi.Message msg = new TdApi.Message();
+        msg.id = in.readVarLong();
+        msg.chatId = in.readVarLong();
+        msg.date = in.readVarInt();
+        msg.editDate = in.readVarInt();
+        msg.isOutgoing = in.readBoolean();
+        switch (in.readByte()) {
+            case SENDER_USER:
+                msg.senderId = new TdApi.MessageSenderUser(in.readVarLong());
+                break;
+            case SENDER_CHAT:
+                msg.senderId = new TdApi.MessageSenderChat(in.readVarLong());
+                break;
+            default:
+                msg.senderId = new TdApi.MessageSenderUser(0);
+                break;
+        }
+        msg.content = readContent(in);
+        return msg;
+    }
+
+    // Contents
+
+    static void writeContent(Writer out, TdApi.MessageContent content, long chatId, long messageId, @Nullable MediaSaver mediaSaver) {
+        if (content instanceof TdApi.MessageText) {
+            out.writeByte(CONTENT_TEXT);
+            writeFormattedText(out, ((TdApi.MessageText) content).text);
+        } else if (content instanceof TdApi.MessagePhoto) {
+            TdApi.MessagePhoto photo = (TdApi.MessagePhoto) content;
+            TdApi.PhotoSize best = null;
+            for (TdApi.PhotoSize sz : photo.photo.sizes) {
+                if (sz.photo.local.isDownloadingCompleted) {
+                    if (best == null || sz.width > best.width) best = sz;
+                }
+            }
+            out.writeByte(CONTENT_PHOTO);
+            writeFormattedText(out, photo.caption);
+            out.writeVarInt(best != null ? best.width : 0);
+            out.writeVarInt(best != null ? best.height : 0);
+            out.writeString(mediaSaver != null ? mediaSaver.saveMediaFile(photo.photo.sizes, chatId, messageId) : null);
+        } else if (content instanceof TdApi.MessageVideo) {
+            TdApi.MessageVideo video = (TdApi.MessageVideo) content;
+            out.writeByte(CONTENT_VIDEO);
+            writeFormattedText(out, video.caption);
+            out.writeVarInt(video.video.width);
+            out.writeVarInt(video.video.height);
+            out.writeString(mediaSaver != null ? mediaSaver.saveMediaFile(video.video.video, chatId, messageId) : null);
+        } else if (content instanceof TdApi.MessageDocument) {
+            TdApi.MessageDocument doc = (TdApi.MessageDocument) content;
+            out.writeByte(CONTENT_DOCUMENT);
+            writeFormattedText(out, doc.caption);
+            out.writeString(doc.document.fileName);
+            out.writeString(mediaSaver != null ? mediaSaver.saveMediaFile(doc.document.document, chatId, messageId) : null);
+        } else {
+            out.writeByte(CONTENT_UNKNOWN);
+        }
+    }
+
+    static TdApi.MessageContent readContent(Reader in) throws IOException {
+        return readContent(in, null);
+    }
+
+    static TdApi.MessageContent readContent(Reader in, @Nullable PathResolver pathResolver) throws IOException {
+        switch (in.readByte()) {
+            case CONTENT_TEXT: {
+                TdApi.FormattedText text = readFormattedText(in);
+                return new TdApi.MessageText(text, null, null);
+            }
+            case CONTENT_PHOTO: {
+                TdApi.FormattedText caption = readFormattedText(in);
+                int width = in.readVarInt();
+                int height = in.readVarInt();
+                return buildPhotoContent(resolvePath(in.readString(), pathResolver), width, height, caption);
+            }
+            case CONTENT_VIDEO: {
+                TdApi.FormattedText caption = readFormattedText(in);
+                int width = in.readVarInt();
+                int height = in.readVarInt();
+                return buildVideoContent(resolvePath(in.readString(), pathResolver), width, height, caption);
+            }
+            case CONTENT_DOCUMENT: {
+                TdApi.FormattedText caption = readFormattedText(in);
+                String fileName = in.readString();
+                return buildDocumentContent(resolvePath(in.readString(), pathResolver), fileName, caption);
+            }
+            default:
+                return newText("[Deleted Content]", null);
+        }
+    }
+
+    @Nullable
+    private static String resolvePath(@Nullable String path, @Nullable PathResolver pathResolver) {
+        return pathResolver != null ? pathResolver.resolvePath(path) : path;
+    }
+
+    // Formatted text
+
+    static void writeFormattedText(Writer out, @Nullable TdApi.FormattedText text) {
+        if (text == null) {
+            out.writeString(null);
+            return;
+        }
+        out.writeString(text.text);
+        TdApi.TextEntity[] entities = text.entities;
+        int count = entities != null ? entities.length : 0;
+        out.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            TdApi.TextEntity entity = entities[i];
+            out.writeVarInt(entity.offset);
+            out.writeVarInt(entity.length);
+            writeEntityType(out, entity.type);
+        }
+    }
+
+    static TdApi.FormattedText readFormattedText(Reader in) throws IOException {
+        String text = in.readString();
+        if (text == null) {
+            return new TdApi.FormattedText("", new TdApi.TextEntity[0]);
+        }
+        int count = in.readVarInt();
+        // Offset, length and type take at least a byte each
+        if (count < 0 || count > in.remaining() / 3) {
+            throw new IOException("Entity count " + count + " exceeds record");
+        }
+        TdApi.TextEntity[] entities = new TdApi.TextEntity[count];
+        int knownCount = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = in.readVarInt();
+            int length = in.readVarInt();
+            TdApi.TextEntityType type = readEntityType(in);
+            if (type != null) {
+                entities[knownCount++] = new TdApi.TextEntity(offset, length, type);
+            }
+        }
+        if (knownCount != count) {
+            TdApi.TextEntity[] known = new TdApi.TextEntity[knownCount];
+            System.arraycopy(entities, 0, known, 0, knownCount);
+            entities = known;
+        }
+        return new TdApi.FormattedText(text, entities);
+    }
+
+    private static void writeEntityType(Writer out, TdApi.TextEntityType type) {
+        switch (type.getConstructor()) {
+            case TdApi.TextEntityTypeBold.CONSTRUCTOR: out.writeVarInt(ENTITY_BOLD); break;
+            case TdApi.TextEntityTypeItalic.CONSTRUCTOR: out.writeVarInt(ENTITY_ITALIC); break;
+            case TdApi.TextEntityTypeUnderline.CONSTRUCTOR: out.writeVarInt(ENTITY_UNDERLINE); break;
+            case TdApi.TextEntityTypeStrikethrough.CONSTRUCTOR: out.writeVarInt(ENTITY_STRIKETHROUGH); break;
+            case TdApi.TextEntityTypeSpoiler.CONSTRUCTOR: out.writeVarInt(ENTITY_SPOILER); break;
+            case TdApi.TextEntityTypeCode.CONSTRUCTOR: out.writeVarInt(ENTITY_CODE); break;
+            case TdApi.TextEntityTypePre.CONSTRUCTOR: out.writeVarInt(ENTITY_PRE); break;
+            case TdApi.TextEntityTypeBlockQuote.CONSTRUCTOR: out.writeVarInt(ENTITY_BLOCK_QUOTE); break;
+            case TdApi.TextEntityTypeExpandableBlockQuote.CONSTRUCTOR: out.writeVarInt(ENTITY_EXPANDABLE_BLOCK_QUOTE); break;
+            case TdApi.TextEntityTypeUrl.CONSTRUCTOR: out.writeVarInt(ENTITY_URL); break;
+            case TdApi.TextEntityTypeMention.CONSTRUCTOR: out.writeVarInt(ENTITY_MENTION); break;
+            case TdApi.TextEntityTypeHashtag.CONSTRUCTOR: out.writeVarInt(ENTITY_HASHTAG); break;
+            case TdApi.TextEntityTypeCashtag.CONSTRUCTOR: out.writeVarInt(ENTITY_CASHTAG); break;
+            case TdApi.TextEntityTypeBotCommand.CONSTRUCTOR: out.writeVarInt(ENTITY_BOT_COMMAND); break;
+            case TdApi.TextEntityTypeEmailAddress.CONSTRUCTOR: out.writeVarInt(ENTITY_EMAIL_ADDRESS); break;
+            case TdApi.TextEntityTypePhoneNumber.CONSTRUCTOR: out.writeVarInt(ENTITY_PHONE_NUMBER); break;
+            case TdApi.TextEntityTypeBankCardNumber.CONSTRUCTOR: out.writeVarInt(ENTITY_BANK_CARD_NUMBER); break;
+            case TdApi.TextEntityTypePreCode.CONSTRUCTOR:
+                out.writeVarInt(ENTITY_PRE_CODE);
+                out.writeString(((TdApi.TextEntityTypePreCode) type).language);
+                break;
+            case TdApi.TextEntityTypeTextUrl.CONSTRUCTOR:
+                out.writeVarInt(ENTITY_TEXT_URL);
+                out.writeString(((TdApi.TextEntityTypeTextUrl) type).url);
+                break;
+            case TdApi.TextEntityTypeMentionName.CONSTRUCTOR:
+                out.writeVarInt(ENTITY_MENTION_NAME);
+                out.writeVarLong(((TdApi.TextEntityTypeMentionName) type).userId);
+                break;
+            case TdApi.TextEntityTypeCustomEmoji.CONSTRUCTOR:
+                out.writeVarInt(ENTITY_CUSTOM_EMOJI);
+                out.writeVarLong(((TdApi.TextEntityTypeCustomEmoji) type).customEmojiId);
+                break;
+            case TdApi.TextEntityTypeMediaTimestamp.CONSTRUCTOR:
+                out.writeVarInt(ENTITY_MEDIA_TIMESTAMP);
+                out.writeVarInt(((TdApi.TextEntityTypeMediaTimestamp) type).mediaTimestamp);
+                break;
+            default:
+                out.writeVarInt(ENTITY_UNKNOWN);
+                break;
+        }
+    }
+
+    @Nullable
+    private static TdApi.TextEntityType readEntityType(Reader in) throws IOException {
+        switch (in.readVarInt()) {
+            case ENTITY_BOLD: return new TdApi.TextEntityTypeBold();
+            case ENTITY_ITALIC: return new TdApi.TextEntityTypeItalic();
+            case ENTITY_UNDERLINE: return new TdApi.TextEntityTypeUnderline();
+            case ENTITY_STRIKETHROUGH: return new TdApi.TextEntityTypeStrikethrough();
+            case ENTITY_SPOILER: return new TdApi.TextEntityTypeSpoiler();
+            case ENTITY_CODE: return new TdApi.TextEntityTypeCode();
+            case ENTITY_PRE: return new TdApi.TextEntityTypePre();
+            case ENTITY_BLOCK_QUOTE: return new TdApi.TextEntityTypeBlockQuote();
+            case ENTITY_EXPANDABLE_BLOCK_QUOTE: return new TdApi.TextEntityTypeExpandableBlockQuote();
+            case ENTITY_URL: return new TdApi.TextEntityTypeUrl();
+            case ENTITY_MENTION: return new TdApi.TextEntityTypeMention();
+            case ENTITY_HASHTAG: return new TdApi.TextEntityTypeHashtag();
+            case ENTITY_CASHTAG: return new TdApi.TextEntityTypeCashtag();
+            case ENTITY_BOT_COMMAND: return new TdApi.TextEntityTypeBotCommand();
+            case ENTITY_EMAIL_ADDRESS: return new TdApi.TextEntityTypeEmailAddress();
+            case ENTITY_PHONE_NUMBER: return new TdApi.TextEntityTypePhoneNumber();
+            case ENTITY_BANK_CARD_NUMBER: return new TdApi.TextEntityTypeBankCardNumber();
+            case ENTITY_PRE_CODE: return new TdApi.TextEntityTypePreCode(in.readString());
+            case ENTITY_TEXT_URL: return new TdApi.TextEntityTypeTextUrl(in.readString());
+            case ENTITY_MENTION_NAME: return new TdApi.TextEntityTypeMentionName(in.readVarLong());
+            case ENTITY_CUSTOM_EMOJI: return new TdApi.TextEntityTypeCustomEmoji(in.readVarLong());
+            case ENTITY_MEDIA_TIMESTAMP: return new TdApi.TextEntityTypeMediaTimestamp(in.readVarInt());
+            default: return null;
+        }
+    }
+
+    // Restored contents
+
+    static TdApi.MessageText newText(String text, @Nullable TdApi.TextEntity[] entities) {
+        return new TdApi.MessageText(new TdApi.FormattedText(text, entities), null, null);
+    }
+
+    private static String captionText(@Nullable TdApi.FormattedText caption) {
+        return caption != null && caption.text != null ? caption.text : "";
+    }
+
+    static TdApi.MessageContent buildPhotoContent(String localPath, int w, int h, TdApi.FormattedText caption) {
+        if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
+             // Reconstruct Photo using no-arg constructor
+             TdApi.PhotoSize[] sizes = new TdApi.PhotoSize[1];
+             TdApi.File f = new TdApi.File();
+             f.id = 0; // Invalid ID but path matters
+             f.local = new TdApi.LocalFile();
+             f.local.path = localPath;
+             f.local.isDownloadingCompleted = true;
+             f.local.canBeDownloaded = false;
+             f.local.downloadedPrefixSize = 0;
+             f.local.downloadedSize = new File(localPath).length();
+             f.size = f.local.downloadedSize;
+
+             // Use saved dimensions or safe default (fixes crash)
+             if (w <= 0) w = 512;
+             if (h <= 0) h = 512;
+
+             sizes[0] = new TdApi.PhotoSize("x", f, w, h, new int[0]);
+             TdApi.Photo photo = new TdApi.Photo();
+             photo.sizes = sizes;
+             photo.hasStickers = false;
+
+             TdApi.MessagePhoto content = new TdApi.MessagePhoto();
+             content.photo = photo;
+             content.caption = caption;
+             return content;
+        }
+        return newText("[Deleted Photo] " + captionText(caption), null);
+    }
+
+    static TdApi.MessageContent buildVideoContent(String localPath, int w, int h, TdApi.FormattedText caption) {
+        if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
+             TdApi.File f = new TdApi.File();
+             f.local = new TdApi.LocalFile();
+             f.local.path = localPath;
+             f.local.isDownloadingCompleted = true;
+             f.size = new File(localPath).length();
+
+             TdApi.Video video = new TdApi.Video();
+             video.video = f;
+             video.width = w > 0 ? w : 512;
+             video.height = h > 0 ? h : 512;
+             video.fileName = "deleted_video.mp4";
+
+             TdApi.MessageVideo content = new TdApi.MessageVideo();
+             content.video = video;
+             content.caption = caption;
+             return content;
+        }
+        return newText("[Deleted Video] " + captionText(caption), null);
+    }
+
+    static TdApi.MessageContent buildDocumentContent(String localPath, String fileName, TdApi.FormattedText caption) {
+        if (localPath != null && !localPath.isEmpty() && new File(localPath).exists()) {
+             TdApi.File f = new TdApi.File();
+             f.local = new TdApi.LocalFile();
+             f.local.path = localPath;
+             f.local.isDownloadingCompleted = true;
+             f.size = new File(localPath).length();
+
+             TdApi.Document doc = new TdApi.Document();
+             doc.document = f;
+             doc.fileName = fileName != null ? fileName : "deleted_file";
+
+             TdApi.MessageDocument content = new TdApi.MessageDocument();
+             content.document = doc;
+             content.caption = caption;
+             return content;
+        }
+        return newText("[Deleted File] " + captionText(caption), null);
+    }
+
+    // Streams
+
+    /**
+     * Growable heap buffer.
+     */
+    static final class Writer {
+        private ByteBuffer buffer;
+
+        Writer(int initialCapacity) {
+            this.buffer = ByteBuffer.allocate(initialCapacity);
+        }
+
+        private void ensureRemaining(int count) {
+            if (buffer.remaining() < count) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+                buffer.flip();
+                newBuffer.put(buffer);
+                buffer = newBuffer;
+            }
+        }
+
+        void writeByte(int value) {
+            ensureRemaining(1);
+            buffer.put((byte) value);
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value);
+        }
+
+        void writeVarLong(long value) {
+            ensureRemaining(10);
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            buffer.put((byte) zigzag);
+        }
+
+        void writeString(@Nullable String value) {
+            if (value == null) {
+                writeVarInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            ensureRemaining(bytes.length);
+            buffer.put(bytes);
+        }
+
+        /**
+         * @return read-only view of written bytes
+         */
+        ByteBuffer toBuffer() {
+            ByteBuffer result = buffer.asReadOnlyBuffer();
+            result.flip();
+            return result;
+        }
+    }
+
+    /**
+     * Reads records from storage that may be corrupted: every read is bounds-checked and fails with {@link IOException}.
+     */
+    static final class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        private void require(int count) throws IOException {
+            if (buffer.remaining() < count) {
+                throw new IOException("Unexpected end of record");
+            }
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return buffer.get() & 0xFF;
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long zigzag = 0;
+            int shift = 0;
+            while (true) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IOException("Malformed varint");
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        @Nullable
+        String readString() throws IOException {
+            int length = readVarInt();
+            if (length < 0) {
+                return null;
+            }
+            return readUtf8(length);
+        }
+
+        private String readUtf8(int length) throws IOException {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("String length " + length + " exceeds record");
+            }
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+    }
+}
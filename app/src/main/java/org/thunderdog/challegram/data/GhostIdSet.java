@@ -0,0 +1,82 @@
+package org.thunderdog.challegram.data;
+
+import java.util.Arrays;
+
+/**
+ * Sorted primitive set of ghost message ids of a single chat.
+ *
+ * Membership checks are a binary search over a {@code long[]}, so they are safe to call
+ * from {@link TGMessage} construction on the UI thread.
+ */
+final class GhostIdSet {
+    private long[] ids = new long[0];
+    private int size;
+    private boolean loaded;
+
+    synchronized boolean contains(long messageId) {
+        return Arrays.binarySearch(ids, 0, size, messageId) >= 0;
+    }
+
+    synchronized boolean add(long messageId) {
+        int i = Arrays.binarySearch(ids, 0, size, messageId);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(16, size * 2));
+        }
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = messageId;
+        size++;
+        return true;
+    }
+
+    synchronized boolean remove(long messageId) {
+        int i = Arrays.binarySearch(ids, 0, size, messageId);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        size--;
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Merges ids read from disk with the ones added while loading was in progress.
+     *
+     * @param sortedIds ids in ascending order
+     */
+    synchronized void onLoaded(long[] sortedIds) {
+        if (size == 0) {
+            ids = Arrays.copyOf(sortedIds, Math.max(16, sortedIds.length));
+            size = sortedIds.length;
+        } else {
+            long[] merged = new long[Math.max(16, size + sortedIds.length)];
+            int i = 0, j = 0, count = 0;
+            while (i < size || j < sortedIds.length) {
+                long next;
+                if (j == sortedIds.length || (i < size && ids[i] < sortedIds[j])) {
+                    next = ids[i++];
+                } else if (i == size || sortedIds[j] < ids[i]) {
+                    next = sortedIds[j++];
+                } else {
+                    next = ids[i++];
+                    j++;
+                }
+                merged[count++] = next;
+            }
+            ids = merged;
+            size = count;
+        }
+        loaded = true;
+    }
+}
@@ -0,0 +1,107 @@
+package org.thunderdog.challegram.data;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads ghost messages and edit history versions written as one JSON file per entry by older builds.
+ *
+ * Used only to migrate that data into the binary formats of {@link GhostContentCodec}.
+ */
+final class GhostLegacyJsonReader {
+    private static final String TAG = "ANTIDELETE";
+
+    static final String EXTENSION = ".json";
+
+    private GhostLegacyJsonReader() { }
+
+    @Nullable
+    static TdApi.Message readMessage(File msgFile) {
+        try {
+            JSONObject json = readObject(msgFile);
+            TdApi.Message msg = new TdApi.Message();
+            msg.id = json.getLong("id");
+            msg.chatId = json.getLong("chatId");
+            msg.date = json.getInt("date");
+            msg.editDate = json.optInt("editDate", 0);
+            msg.isOutgoing = json.optBoolean("isOutgoing");
+            msg.senderId = readSender(json.optJSONObject("senderId"));
+            msg.content = readContent(json.optJSONObject("content"));
+            return msg;
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading legacy ghost message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Nullable
+    static DeletedMessagesManager.EditHistoryEntry readEditVersion(File versionFile) {
+        try {
+            JSONObject json = readObject(versionFile);
+            return new DeletedMessagesManager.EditHistoryEntry(json.getLong("timestamp"), readContent(json.optJSONObject("content")));
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading legacy edit history: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static JSONObject readObject(File file) throws Exception {
+        String text;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Legacy file is too large: " + file.getName());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading
+            }
+            text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        }
+        return (JSONObject) new JSONTokener(text).nextValue();
+    }
+
+    private static TdApi.MessageSender readSender(JSONObject json) {
+        if (json == null) return new TdApi.MessageSenderUser(0);
+        String type = json.optString("type");
+        if ("user".equals(type)) {
+            return new TdApi.MessageSenderUser(json.optLong("userId"));
+        } else if ("chat".equals(type)) {
+            return new TdApi.MessageSenderChat(json.optLong("chatId"));
+        }
+        return new TdApi.MessageSenderUser(0);
+    }
+
+    private static TdApi.MessageContent readContent(JSONObject json) {
+        if (json == null) return GhostContentCodec.newText("Deleted Message (Error)", null);
+        String type = json.optString("type");
+        String localPath = json.optString("localPath");
+
+        if ("text".equals(type)) {
+            return GhostContentCodec.newText(json.optString("text"), null);
+        } else if ("photo".equals(type)) {
+            return GhostContentCodec.buildPhotoContent(localPath, json.optInt("width"), json.optInt("height"), caption(json));
+        } else if ("video".equals(type)) {
+            return GhostContentCodec.buildVideoContent(localPath, json.optInt("width"), json.optInt("height"), caption(json));
+        } else if ("document".equals(type)) {
+            return GhostContentCodec.buildDocumentContent(localPath, json.optString("fileName", "deleted_file"), caption(json));
+        }
+        return GhostContentCodec.newText("[Deleted Content]", null);
+    }
+
+    private static TdApi.FormattedText caption(JSONObject json) {
+        return new TdApi.FormattedText(json.optString("caption"), null);
+    }
+}
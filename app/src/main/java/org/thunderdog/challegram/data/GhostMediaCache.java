@@ -0,0 +1,512 @@
+package org.thunderdog.challegram.data;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.core.BaseThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content-addressed copies of media of cached messages, so it can still be shown after the message is deleted.
+ *
+ * Files are stored once per content under {@code objects/<hash><ext>}, where the hash is taken from
+ * the TDLib remote unique id (same for forwarded copies of the media), or from the file contents for local files.
+ * Objects are evicted in LRU order once they, together with pinned files, exceed the byte budget, or once they exceed the maximum age.
+ * Edit versions refer to objects, so their media stays viewable for as long as it is cached.
+ *
+ * When a message is actually deleted, its media is promoted to {@code pinned/<chatId>/<messageId>/<hash><ext>},
+ * and media of its edit versions to {@code pinned/<chatId>/<messageId>/v<timestamp>_<hash><ext>}. Pinned files are
+ * never evicted, they are removed with the ghost message or the edit version. Copies are made on the cache thread,
+ * with hard links when the file system allows it, otherwise with {@link FileChannel#transferTo}.
+ */
+final class GhostMediaCache {
+    private static final String TAG = "ANTIDELETE";
+
+    private static final String OBJECTS_DIR = "objects";
+    private static final String PINNED_DIR = "pinned";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String VERSION_PREFIX = "v";
+
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static class Entry {
+        final File file;
+        final long size;
+
+        Entry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final File objectsDir;
+    private final File pinnedDir;
+    private final BaseThread thread;
+
+    // Guarded by this, access-ordered: eldest entry is the least recently used one.
+    // Files are hashed and copied by the cache thread outside of the lock, which is held only to update the index
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private boolean loaded;
+    // Incremented by clear(), copies made before it are not indexed
+    private int generation;
+    private long totalBytes, pinnedBytes;
+    private int pinnedFileCount;
+    private long budgetBytes;
+
+    private long hitCount, addCount, linkCount, copyCount, evictCount, pinCount, unpinCount;
+
+    GhostMediaCache(File rootDir, long budgetBytes) {
+        this.objectsDir = new File(rootDir, OBJECTS_DIR);
+        this.pinnedDir = new File(rootDir, PINNED_DIR);
+        this.budgetBytes = budgetBytes;
+        this.thread = new BaseThread("GhostMediaThread");
+    }
+
+    synchronized void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        if (loaded) {
+            trim();
+        }
+    }
+
+    /**
+     * Schedules a copy of a downloaded file, unless the same content is already cached.
+     */
+    void offer(TdApi.File file) {
+        if (file == null || file.local == null || !file.local.isDownloadingCompleted || file.local.path == null || file.local.path.isEmpty()) {
+            return;
+        }
+        String path = file.local.path;
+        String uniqueId = file.remote != null ? file.remote.uniqueId : null;
+        thread.post(() -> add(path, uniqueId), 0);
+    }
+
+    private void add(String path, @Nullable String uniqueId) {
+        File source = new File(path);
+        if (!source.exists()) {
+            return;
+        }
+        String name;
+        try {
+            name = objectName(source, uniqueId);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to hash ghost media " + path + ": " + e.getMessage());
+            return;
+        }
+        int generation;
+        synchronized (this) {
+            ensureLoaded();
+            Entry entry = entries.get(name);
+            if (entry != null && entry.file.exists()) {
+                hitCount++;
+                entry.file.setLastModified(System.currentTimeMillis());
+                return;
+            }
+            generation = this.generation;
+        }
+        File dest = new File(objectsDir, name);
+        boolean linked;
+        try {
+            linked = linkOrCopy(source, dest);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to cache ghost media " + path + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (generation != this.generation) {
+                dest.delete();
+                return;
+            }
+            onCopied(linked);
+            long size = dest.length();
+            Entry prev = entries.put(name, new Entry(dest, size));
+            if (prev != null) {
+                totalBytes -= prev.size;
+            }
+            totalBytes += size;
+            addCount++;
+            trim();
+        }
+    }
+
+    /**
+     * Path the cached copy of {@code file} has or will have once downloaded. Used by edit versions,
+     * which don't keep media of messages that were not deleted.
+     *
+     * @return path inside the evictable cache, or {@code null} when the file has no remote unique id to address it by
+     */
+    @Nullable
+    String objectPath(TdApi.File file) {
+        String uniqueId = file.remote != null ? file.remote.uniqueId : null;
+        if (uniqueId == null || uniqueId.isEmpty()) {
+            return null;
+        }
+        offer(file);
+        return new File(objectsDir, hash(uniqueId) + extensionOf(file.local != null ? file.local.path : null)).getAbsolutePath();
+    }
+
+    /**
+     * Keeps the media of a deleted message outside of the evictable cache. The copy is made on the cache thread.
+     *
+     * @return path the pinned copy will have, or {@code null} when the media is neither cached nor downloaded
+     */
+    @Nullable
+    String pin(TdApi.File file, long chatId, long messageId) {
+        String sourcePath = file.local != null ? file.local.path : null;
+        boolean isDownloaded = file.local != null && file.local.isDownloadingCompleted && sourcePath != null && !sourcePath.isEmpty();
+        String uniqueId = file.remote != null ? file.remote.uniqueId : null;
+        String key;
+        if (uniqueId != null && !uniqueId.isEmpty()) {
+            key = hash(uniqueId);
+        } else if (isDownloaded) {
+            // Local file that was never uploaded, its path is unique enough
+            key = hash(sourcePath);
+        } else {
+            return null;
+        }
+        String extension = extensionOf(sourcePath);
+        File dest = new File(messageDir(chatId, messageId), key + extension);
+        String objectName = uniqueId != null && !uniqueId.isEmpty() ? key + extension : null;
+        thread.post(() -> pinNow(objectName, isDownloaded ? sourcePath : null, dest, messageId), 0);
+        return dest.getAbsolutePath();
+    }
+
+    /**
+     * Keeps the media an edit version refers to, once its message got deleted.
+     *
+     * @param path path returned by {@link #objectPath} when the version was saved
+     */
+    void pinVersion(String path, long chatId, long messageId, long timestamp) {
+        File object = new File(path);
+        if (!objectsDir.getAbsolutePath().equals(object.getParent())) {
+            return;
+        }
+        File dest = versionFile(chatId, messageId, timestamp, object.getName());
+        thread.post(() -> pinNow(object.getName(), null, dest, messageId), 0);
+    }
+
+    /**
+     * @return path of the pinned copy made by {@link #pinVersion}, or {@code path} itself when there is none
+     */
+    @Nullable
+    String resolveVersionPath(@Nullable String path, long chatId, long messageId, long timestamp) {
+        if (path == null || path.isEmpty()) {
+            return path;
+        }
+        File pinned = versionFile(chatId, messageId, timestamp, new File(path).getName());
+        return pinned.exists() ? pinned.getAbsolutePath() : path;
+    }
+
+    private void pinNow(@Nullable String objectName, @Nullable String sourcePath, File dest, long messageId) {
+        File source = null;
+        int generation;
+        synchronized (this) {
+            ensureLoaded();
+            if (objectName != null) {
+                // TDLib may have removed its copy already, look for ours first
+                Entry entry = entries.get(objectName);
+                if (entry != null && entry.file.exists()) {
+                    source = entry.file;
+                }
+            }
+            generation = this.generation;
+        }
+        if (source == null && sourcePath != null) {
+            source = new File(sourcePath);
+        }
+        if (source == null || !source.exists()) {
+            return;
+        }
+        if (dest.exists()) {
+            if (dest.length() == source.length()) {
+                return;
+            }
+            synchronized (this) {
+                removePinned(dest);
+            }
+        }
+        boolean linked;
+        try {
+            linked = linkOrCopy(source, dest);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to pin ghost media of " + messageId + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (generation != this.generation) {
+                dest.delete();
+                return;
+            }
+            onCopied(linked);
+            pinnedBytes += dest.length();
+            pinnedFileCount++;
+            pinCount++;
+            trim();
+        }
+    }
+
+    /**
+     * Removes pinned media of a ghost message and of its edit versions.
+     */
+    void unpin(long chatId, long messageId) {
+        thread.post(() -> unpinNow(chatId, messageId), 0);
+    }
+
+    private synchronized void unpinNow(long chatId, long messageId) {
+        ensureLoaded();
+        removePinnedRecursive(messageDir(chatId, messageId));
+    }
+
+    /**
+     * Removes pinned media of edit versions that were dropped from the edit history.
+     */
+    void unpinVersions(long chatId, long messageId, long[] timestamps) {
+        File messageDir = messageDir(chatId, messageId);
+        thread.post(() -> {
+            synchronized (this) {
+                File[] files = messageDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                ensureLoaded();
+                for (long timestamp : timestamps) {
+                    String prefix = VERSION_PREFIX + timestamp + "_";
+                    for (File file : files) {
+                        if (file.getName().startsWith(prefix)) {
+                            removePinned(file);
+                        }
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    private File messageDir(long chatId, long messageId) {
+        return new File(new File(pinnedDir, String.valueOf(chatId)), String.valueOf(messageId));
+    }
+
+    private File versionFile(long chatId, long messageId, long timestamp, String objectName) {
+        return new File(messageDir(chatId, messageId), VERSION_PREFIX + timestamp + "_" + objectName);
+    }
+
+    private void removePinned(File file) {
+        long size = file.length();
+        if (file.delete()) {
+            pinnedBytes -= size;
+            pinnedFileCount--;
+            unpinCount++;
+        }
+    }
+
+    private void removePinnedRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                removePinnedRecursive(child);
+            }
+            file.delete();
+        } else {
+            removePinned(file);
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalBytes = 0;
+        pinnedBytes = 0;
+        pinnedFileCount = 0;
+        EditHistoryLog.deleteRecursive(objectsDir);
+        EditHistoryLog.deleteRecursive(pinnedDir);
+        loaded = false;
+    }
+
+    synchronized String getStats() {
+        if (!loaded) {
+            // Directories are scanned on the cache thread, not the caller's
+            thread.post(this::load, 0);
+        }
+        return String.format(Locale.US,
+          "cached %d files, pinned %d files, %d+%d/%d MB, hits %d, added %d (linked %d, copied %d), evicted %d, pinned %d, unpinned %d",
+          entries.size(), pinnedFileCount, totalBytes / (1024 * 1024), pinnedBytes / (1024 * 1024), budgetBytes / (1024 * 1024),
+          hitCount, addCount, linkCount, copyCount, evictCount, pinCount, unpinCount);
+    }
+
+    // Internal
+
+    private synchronized void load() {
+        ensureLoaded();
+    }
+
+    private void onCopied(boolean linked) {
+        if (linked) {
+            linkCount++;
+        } else {
+            copyCount++;
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        countPinned(pinnedDir);
+        if (!objectsDir.exists()) {
+            objectsDir.mkdirs();
+        }
+        File[] files = objectsDir.listFiles();
+        if (files == null) return;
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        for (int i : order) {
+            File file = files[i];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            long size = file.length();
+            entries.put(file.getName(), new Entry(file, size));
+            totalBytes += size;
+        }
+        trim();
+    }
+
+    private void countPinned(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                countPinned(file);
+            } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                pinnedBytes += file.length();
+                pinnedFileCount++;
+            }
+        }
+    }
+
+    private void trim() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            // Pinned files can't be evicted, but take their part of the budget
+            if (totalBytes + pinnedBytes <= budgetBytes && now - entry.file.lastModified() < MAX_AGE_MS) {
+                break;
+            }
+            entry.file.delete();
+            totalBytes -= entry.size;
+            evictCount++;
+            it.remove();
+        }
+    }
+
+    private static String objectName(File source, @Nullable String uniqueId) throws IOException {
+        String key = uniqueId != null && !uniqueId.isEmpty() ? hash(uniqueId) : hashContents(source);
+        return key + extensionOf(source.getPath());
+    }
+
+    private static String extensionOf(@Nullable String path) {
+        if (path == null) return "";
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        return dot > slash ? path.substring(dot) : "";
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(String uniqueId) {
+        return toHex(newDigest().digest(uniqueId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hashContents(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder b = new StringBuilder(bytes.length * 2);
+        for (byte x : bytes) {
+            b.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return true when a hard link was made, false when the file was copied
+     */
+    private static boolean linkOrCopy(File source, File dest) throws IOException {
+        File dir = dest.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        dest.delete();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                // Not supported by the file system (e.g. emulated external storage), copy instead
+            }
+        }
+        File tmp = new File(dest.getPath() + TEMP_SUFFIX);
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(tmp).getChannel()) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = in.transferTo(position, size - position, out);
+                if (count <= 0) {
+                    throw new IOException("Source file shrunk while copying: " + source);
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Failed to move ghost media into place: " + dest);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,272 @@
+package org.thunderdog.challegram.data;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory copies of recent messages, used to recover a message once TDLib reports it deleted.
+ *
+ * The cache is bounded by an estimated size in bytes instead of a message count. When it is full,
+ * the oldest message of the chat using the most memory relative to its share is evicted, so a few
+ * busy groups can't push out everything else. Chats that are open or pinned get a larger share,
+ * and every chat keeps its newest {@link #MIN_MESSAGES_PER_CHAT} messages while others have more.
+ * Message ids repeat across chats, so every lookup takes the chat id as well.
+ */
+final class GhostMessageCache {
+    static final int PRIORITY_OPENED = 1;
+    static final int PRIORITY_PINNED = 1 << 1;
+
+    private static final int PRIORITY_WEIGHT = 4;
+    private static final int MIN_MESSAGES_PER_CHAT = 16;
+
+    /**
+     * Called under the cache lock, must not call back into the cache.
+     */
+    interface RemovalListener {
+        void onMessageRemoved(TdApi.Message message);
+    }
+
+    private static class ChatCache {
+        // Insertion order, eldest first
+        final LinkedHashMap<Long, Entry> messages = new LinkedHashMap<>();
+        long bytes;
+    }
+
+    private static class Entry {
+        final TdApi.Message message;
+        int size;
+
+        Entry(TdApi.Message message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+    }
+
+    private final long budgetBytes;
+    @Nullable
+    private final RemovalListener removalListener;
+    private final Map<Long, ChatCache> chats = new HashMap<>();
+    private final Map<Long, Integer> chatPriorities = new HashMap<>();
+    private long totalBytes;
+    private int totalCount;
+
+    private long hitCount, missCount, evictCount;
+    private long deletedCount, capturedCount, fetchedCount;
+    // Same message object stored more than once, expected to stay at zero
+    private long storedCount, repeatedCount;
+
+    GhostMessageCache(long budgetBytes, @Nullable RemovalListener removalListener) {
+        this.budgetBytes = budgetBytes;
+        this.removalListener = removalListener;
+    }
+
+    synchronized void put(TdApi.Message message) {
+        ChatCache chat = chats.get(message.chatId);
+        if (chat == null) {
+            chat = new ChatCache();
+            chats.put(message.chatId, chat);
+        }
+        Entry entry = new Entry(message, estimateSize(message));
+        Entry prev = chat.messages.remove(message.id);
+        storedCount++;
+        if (prev != null) {
+            if (prev.message == message) {
+                repeatedCount++;
+            } else {
+                notifyRemoved(prev.message);
+            }
+            chat.bytes -= prev.size;
+            totalBytes -= prev.size;
+            totalCount--;
+        }
+        chat.messages.put(message.id, entry);
+        chat.bytes += entry.size;
+        totalBytes += entry.size;
+        totalCount++;
+        trim();
+    }
+
+    @Nullable
+    synchronized TdApi.Message get(long chatId, long messageId) {
+        ChatCache chat = chats.get(chatId);
+        Entry entry = chat != null ? chat.messages.get(messageId) : null;
+        if (entry != null) {
+            hitCount++;
+            return entry.message;
+        }
+        missCount++;
+        return null;
+    }
+
+    synchronized void remove(long chatId, long messageId) {
+        ChatCache chat = chats.get(chatId);
+        Entry entry = chat != null ? chat.messages.remove(messageId) : null;
+        if (entry != null) {
+            chat.bytes -= entry.size;
+            totalBytes -= entry.size;
+            totalCount--;
+            if (chat.messages.isEmpty()) {
+                chats.remove(chatId);
+            }
+            notifyRemoved(entry.message);
+        }
+    }
+
+    /**
+     * Size changes when a message is edited, e.g. text grows. The entry is updated in place,
+     * so edits are not counted as stores.
+     */
+    synchronized void updateContent(long chatId, long messageId, TdApi.MessageContent content) {
+        ChatCache chat = chats.get(chatId);
+        Entry entry = chat != null ? chat.messages.get(messageId) : null;
+        if (entry != null) {
+            entry.message.content = content;
+            int size = estimateSize(entry.message);
+            chat.bytes += size - entry.size;
+            totalBytes += size - entry.size;
+            entry.size = size;
+            trim();
+        }
+    }
+
+    synchronized void setChatPriority(long chatId, int flag, boolean enabled) {
+        Integer current = chatPriorities.get(chatId);
+        int flags = current != null ? current : 0;
+        flags = enabled ? flags | flag : flags & ~flag;
+        if (flags != 0) {
+            chatPriorities.put(chatId, flags);
+        } else {
+            chatPriorities.remove(chatId);
+        }
+    }
+
+    synchronized void clear() {
+        chats.clear();
+        totalBytes = 0;
+        totalCount = 0;
+    }
+
+    // Metrics
+
+    /**
+     * @param captured whether the deleted message was found in the cache
+     */
+    synchronized void onMessageDeleted(boolean captured) {
+        deletedCount++;
+        if (captured) {
+            capturedCount++;
+        }
+    }
+
+    /**
+     * Deleted message missed by the cache, but still returned by TDLib.
+     */
+    synchronized void onMessageFetched() {
+        fetchedCount++;
+    }
+
+    synchronized String getStats() {
+        long lookups = hitCount + missCount;
+        return String.format(Locale.US,
+          "%d messages in %d chats, %d/%d KB, hits %d/%d (%.1f%%), evicted %d, captured %d/%d deleted (%.1f%%), fetched %d, stored %d, repeated %d",
+          totalCount, chats.size(), totalBytes / 1024, budgetBytes / 1024,
+          hitCount, lookups, lookups > 0 ? hitCount * 100.0 / lookups : 0.0,
+          evictCount, capturedCount, deletedCount, deletedCount > 0 ? capturedCount * 100.0 / deletedCount : 0.0,
+          fetchedCount, storedCount, repeatedCount);
+    }
+
+    // Eviction
+
+    private void trim() {
+        while (totalBytes > budgetBytes) {
+            ChatCache victim = findVictim(true);
+            if (victim == null) {
+                victim = findVictim(false);
+                if (victim == null) {
+                    break;
+                }
+            }
+            Iterator<Entry> it = victim.messages.values().iterator();
+            Entry eldest = it.next();
+            it.remove();
+            victim.bytes -= eldest.size;
+            totalBytes -= eldest.size;
+            totalCount--;
+            evictCount++;
+            if (victim.messages.isEmpty()) {
+                chats.remove(eldest.message.chatId);
+            }
+            notifyRemoved(eldest.message);
+        }
+    }
+
+    private void notifyRemoved(TdApi.Message message) {
+        if (removalListener != null) {
+            removalListener.onMessageRemoved(message);
+        }
+    }
+
+    @Nullable
+    private ChatCache findVictim(boolean respectMinimum) {
+        ChatCache victim = null;
+        double victimUsage = 0;
+        for (Map.Entry<Long, ChatCache> e : chats.entrySet()) {
+            ChatCache chat = e.getValue();
+            if (chat.messages.isEmpty() || (respectMinimum && chat.messages.size() <= MIN_MESSAGES_PER_CHAT)) {
+                continue;
+            }
+            Integer priority = chatPriorities.get(e.getKey());
+            double usage = (double) chat.bytes / (priority != null && priority != 0 ? PRIORITY_WEIGHT : 1);
+            if (victim == null || usage > victimUsage) {
+                victim = chat;
+                victimUsage = usage;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Rough retained size of the parts of a message that are kept by the cache.
+     */
+    static int estimateSize(TdApi.Message message) {
+        int size = 256;
+        TdApi.MessageContent content = message.content;
+        if (content instanceof TdApi.MessageText) {
+            size += estimateSize(((TdApi.MessageText) content).text);
+        } else if (content instanceof TdApi.MessagePhoto) {
+            TdApi.MessagePhoto photo = (TdApi.MessagePhoto) content;
+            size += estimateSize(photo.caption);
+            if (photo.photo != null && photo.photo.sizes != null) {
+                size += photo.photo.sizes.length * 320;
+            }
+        } else if (content instanceof TdApi.MessageVideo) {
+            size += 640 + estimateSize(((TdApi.MessageVideo) content).caption);
+        } else if (content instanceof TdApi.MessageDocument) {
+            size += 480 + estimateSize(((TdApi.MessageDocument) content).caption);
+        } else {
+            size += 256;
+        }
+        return size;
+    }
+
+    private static int estimateSize(@Nullable TdApi.FormattedText text) {
+        if (text == null) {
+            return 0;
+        }
+        int size = 48;
+        if (text.text != null) {
+            size += text.text.length() * 2;
+        }
+        if (text.entities != null) {
+            size += text.entities.length * 56;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+package org.thunderdog.challegram.data;
+
+import androidx.annotation.Nullable;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.List;
+
+import me.vkryl.core.lambda.Filter;
+
+/**
+ * Injects ghost messages into a page of chat history.
+ *
+ * Only ghosts whose ids fall into the id window covered by the page are merged, so each ghost
+ * appears in exactly one page and loading cost does not depend on the total number of ghosts.
+ */
+public final class GhostMessageMerger {
+    private GhostMessageMerger() { }
+
+    /**
+     * @param page messages returned by TDLib, sorted by id descending
+     * @param fromMessageId anchor of the request, {@code 0} when loading from the last message
+     * @param offset request offset, negative when newer messages were requested
+     * @param limit requested amount of messages
+     * @param canReachEnd whether a page shorter than {@code limit} means there are no more messages in that direction.
+     *                    False for requests that return only locally available messages, and for searches that
+     *                    report more results
+     * @param filter optional filter ghosts have to pass, e.g. a shared media filter
+     * @return {@code page} itself when there was nothing to inject, otherwise a new merged array
+     */
+    public static TdApi.Message[] inject(long chatId, TdApi.Message[] page, long fromMessageId, int offset, int limit, boolean canReachEnd, @Nullable Filter<TdApi.Message> filter) {
+        DeletedMessagesManager manager = DeletedMessagesManager.getInstance();
+        if (!manager.isGhostEnabled()) {
+            return page;
+        }
+        long minId, maxId;
+        boolean newerOnly = offset < 0 && offset + limit <= 1;
+        boolean endReached = canReachEnd && page.length < limit;
+        if (page.length == 0 && !canReachEnd) {
+            // Nothing known about this range yet, ghosts go into the page that covers it
+            return page;
+        }
+        if (page.length == 0) {
+            if (fromMessageId == 0) {
+                minId = Long.MIN_VALUE;
+                maxId = Long.MAX_VALUE;
+            } else if (offset < 0) {
+                // Nothing newer than the anchor: ghosts after the last message
+                minId = fromMessageId + 1;
+                maxId = Long.MAX_VALUE;
+            } else {
+                // Nothing older than the anchor: ghosts before the first message
+                minId = Long.MIN_VALUE;
+                maxId = fromMessageId - 1;
+            }
+        } else {
+            long pageMax = page[0].id;
+            long pageMin = page[page.length - 1].id;
+            if (fromMessageId == 0 || (newerOnly && endReached)) {
+                maxId = Long.MAX_VALUE;
+            } else if (offset == 0) {
+                // Fill the gap between the anchor (already displayed) and this page
+                maxId = Math.max(pageMax, fromMessageId - 1);
+            } else {
+                maxId = pageMax;
+            }
+            if (offset >= 0 && endReached) {
+                minId = Long.MIN_VALUE;
+            } else if (newerOnly) {
+                minId = Math.min(pageMin, fromMessageId + 1);
+            } else {
+                minId = pageMin;
+            }
+        }
+        if (minId > maxId) {
+            return page;
+        }
+        List<TdApi.Message> ghosts = manager.getDeletedMessages(chatId, minId, maxId);
+        if (ghosts.isEmpty()) {
+            return page;
+        }
+        return merge(page, ghosts, filter);
+    }
+
+    /**
+     * Linear merge of two arrays sorted by id descending. Messages returned by TDLib win over ghosts with the same id.
+     */
+    public static TdApi.Message[] merge(TdApi.Message[] page, List<TdApi.Message> ghosts, @Nullable Filter<TdApi.Message> filter) {
+        TdApi.Message[] result = new TdApi.Message[page.length + ghosts.size()];
+        int i = 0, j = 0, count = 0;
+        while (i < page.length || j < ghosts.size()) {
+            if (j == ghosts.size()) {
+                result[count++] = page[i++];
+                continue;
+            }
+            TdApi.Message ghost = ghosts.get(j);
+            if (i == page.length || ghost.id > page[i].id) {
+                if (filter == null || filter.accept(ghost)) {
+                    result[count++] = ghost;
+                }
+                j++;
+            } else if (ghost.id == page[i].id) {
+                j++;
+            } else {
+                result[count++] = page[i++];
+            }
+        }
+        if (count == page.length) {
+            return page;
+        }
+        if (count < result.length) {
+            TdApi.Message[] trimmed = new TdApi.Message[count];
+            System.arraycopy(result, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return result;
+    }
+}
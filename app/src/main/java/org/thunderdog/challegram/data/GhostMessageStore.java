@@ -0,0 +1,570 @@
+package org.thunderdog.challegram.data;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only on-disk store for ghost (locally kept deleted) messages.
+ *
+ * Layout: {@code <root>/<chatId>/segment_<n>.dat} holds records
+ * ({@code [int length][long messageId][payload]}) and {@code <root>/<chatId>/index.dat}
+ * holds fixed-size entries pointing into segments. Index entries are replayed in order on load,
+ * so a later entry (or tombstone) for the same message id overrides an earlier one.
+ * All file access goes through {@link FileChannel} positional reads and gathering writes.
+ *
+ * The index is the only source of truth: on load, segments it doesn't account for
+ * (written by an interrupted append or compaction) are deleted before anything is appended.
+ */
+public class GhostMessageStore {
+    private static final String TAG = "ANTIDELETE";
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String LEGACY_IMPORTED_FILE = "legacy_imported";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int SEGMENT_LIMIT = 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4 + 4 + 4;
+    private static final int FLAG_TOMBSTONE = 1;
+    private static final int COMPACT_MIN_DEAD_BYTES = 256 * 1024;
+
+    private final File rootDir;
+    private final ConcurrentHashMap<Long, ChatIndex> chats = new ConcurrentHashMap<>();
+
+    public GhostMessageStore(File rootDir) {
+        this.rootDir = rootDir;
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+    }
+
+    // Public API
+
+    /**
+     * Writes a batch of records and tombstones of a single chat with one fsync per touched file.
+     * Deletes are applied after puts, so an id present in both ends up deleted.
+     */
+    public void apply(long chatId, long[] putIds, ByteBuffer[] payloads, long[] deleteIds) {
+        ChatIndex index = obtainIndex(chatId);
+        synchronized (index) {
+            try {
+                index.applyBatch(putIds, payloads, deleteIds);
+                index.compactIfNeeded();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to apply ghost batch of " + putIds.length + "+" + deleteIds.length + " in chat " + chatId, e);
+            }
+        }
+    }
+
+    /**
+     * Whether messages of the legacy one-file-per-message layout were already moved into the store.
+     */
+    public boolean isLegacyImported() {
+        return new File(rootDir, LEGACY_IMPORTED_FILE).exists();
+    }
+
+    public void markLegacyImported() {
+        try {
+            new File(rootDir, LEGACY_IMPORTED_FILE).createNewFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to mark legacy import", e);
+        }
+    }
+
+    /**
+     * @return sorted (ascending) copy of all message ids stored for the chat.
+     */
+    public long[] ids(long chatId) {
+        ChatIndex index = obtainIndex(chatId);
+        synchronized (index) {
+            return Arrays.copyOf(index.ids, index.size);
+        }
+    }
+
+    @Nullable
+    public ByteBuffer get(long chatId, long messageId) {
+        ChatIndex index = obtainIndex(chatId);
+        synchronized (index) {
+            int i = index.indexOf(messageId);
+            if (i < 0) return null;
+            try {
+                return index.read(i);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read ghost message " + messageId + " in chat " + chatId, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads records whose message id is within {@code [fromMessageId, toMessageId]}, newest first.
+     */
+    public List<ByteBuffer> query(long chatId, long fromMessageId, long toMessageId) {
+        ChatIndex index = obtainIndex(chatId);
+        synchronized (index) {
+            int start = index.lowerBound(fromMessageId);
+            int end = index.lowerBound(toMessageId == Long.MAX_VALUE ? toMessageId : toMessageId + 1);
+            List<ByteBuffer> result = new ArrayList<>(Math.max(0, end - start));
+            for (int i = end - 1; i >= start; i--) {
+                try {
+                    result.add(index.read(i));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read ghost message " + index.ids[i] + " in chat " + chatId, e);
+                }
+            }
+            index.closeReader();
+            return result;
+        }
+    }
+
+    public void clear() {
+        for (ChatIndex index : chats.values()) {
+            synchronized (index) {
+                index.closeReader();
+            }
+        }
+        chats.clear();
+        deleteRecursive(rootDir);
+        rootDir.mkdirs();
+    }
+
+    private ChatIndex obtainIndex(long chatId) {
+        ChatIndex index = chats.get(chatId);
+        if (index == null) {
+            ChatIndex newIndex = new ChatIndex(chatId, new File(rootDir, String.valueOf(chatId)));
+            index = chats.putIfAbsent(chatId, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+        synchronized (index) {
+            index.ensureLoaded();
+        }
+        return index;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private static void deleteRecursive(File fileOrDirectory) {
+        File[] children = fileOrDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        fileOrDirectory.delete();
+    }
+
+    // Per-chat index
+
+    private static class ChatIndex {
+        final long chatId;
+        final File dir;
+
+        boolean loaded;
+
+        // Sorted by message id, parallel arrays
+        long[] ids = new long[0];
+        int[] segments = new int[0];
+        int[] offsets = new int[0];
+        int[] lengths = new int[0];
+        int size;
+
+        int currentSegment;
+        long currentSegmentSize;
+        long liveBytes, deadBytes;
+
+        private FileChannel reader;
+        private int readerSegment = -1;
+
+        ChatIndex(long chatId, File dir) {
+            this.chatId = chatId;
+            this.dir = dir;
+        }
+
+        void ensureLoaded() {
+            if (loaded) return;
+            loaded = true;
+            File indexFile = new File(dir, INDEX_FILE);
+            // Index of a compaction that didn't reach the swap
+            new File(dir, INDEX_FILE + COMPACT_SUFFIX).delete();
+            if (indexFile.exists()) {
+                loadIndex(indexFile);
+            }
+            dropUnindexedSegments();
+            currentSegmentSize = segmentFile(currentSegment).length();
+        }
+
+        private void loadIndex(File indexFile) {
+            long fileLength = indexFile.length();
+            long validLength = (fileLength / INDEX_ENTRY_SIZE) * INDEX_ENTRY_SIZE;
+            try (FileChannel channel = new FileInputStream(indexFile).getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(validLength, INDEX_ENTRY_SIZE * 1024));
+                long position = 0;
+                while (position < validLength) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), validLength - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of ghost index");
+                        }
+                    }
+                    buffer.flip();
+                    position += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        long messageId = buffer.getLong();
+                        int segment = buffer.getInt();
+                        int offset = buffer.getInt();
+                        int length = buffer.getInt();
+                        int flags = buffer.getInt();
+                        if ((flags & FLAG_TOMBSTONE) != 0) {
+                            removeEntry(messageId);
+                        } else {
+                            putEntry(messageId, segment, offset, length);
+                        }
+                        if (segment > currentSegment) {
+                            currentSegment = segment;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load ghost index for chat " + chatId, e);
+            }
+            if (validLength != fileLength) {
+                // Torn write at the end of the index, drop the partial entry
+                try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                    file.setLength(validLength);
+                } catch (IOException ignored) { }
+            }
+        }
+
+        /**
+         * Deletes segments newer than the last indexed one, their records never reached the index,
+         * and older segments without live records, e.g. left behind by a compaction interrupted after the swap.
+         * Appending then continues at the real end of the current segment.
+         */
+        private void dropUnindexedSegments() {
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            int[] liveSegments = Arrays.copyOf(segments, size);
+            Arrays.sort(liveSegments);
+            for (File file : files) {
+                int segment = parseSegment(file.getName());
+                if (segment == -1 || segment == currentSegment) {
+                    continue;
+                }
+                if (segment > currentSegment || Arrays.binarySearch(liveSegments, segment) < 0) {
+                    file.delete();
+                }
+            }
+        }
+
+        private static int parseSegment(String name) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                return -1;
+            }
+            try {
+                return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        int indexOf(long messageId) {
+            return Arrays.binarySearch(ids, 0, size, messageId);
+        }
+
+        int lowerBound(long messageId) {
+            int i = Arrays.binarySearch(ids, 0, size, messageId);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        private void putEntry(long messageId, int segment, int offset, int length) {
+            int i = indexOf(messageId);
+            if (i >= 0) {
+                deadBytes += lengths[i] + RECORD_HEADER_SIZE;
+                liveBytes -= lengths[i] + RECORD_HEADER_SIZE;
+            } else {
+                i = -i - 1;
+                ensureCapacity(size + 1);
+                System.arraycopy(ids, i, ids, i + 1, size - i);
+                System.arraycopy(segments, i, segments, i + 1, size - i);
+                System.arraycopy(offsets, i, offsets, i + 1, size - i);
+                System.arraycopy(lengths, i, lengths, i + 1, size - i);
+                size++;
+                ids[i] = messageId;
+            }
+            segments[i] = segment;
+            offsets[i] = offset;
+            lengths[i] = length;
+            liveBytes += length + RECORD_HEADER_SIZE;
+        }
+
+        private boolean removeEntry(long messageId) {
+            int i = indexOf(messageId);
+            if (i < 0) return false;
+            deadBytes += lengths[i] + RECORD_HEADER_SIZE;
+            liveBytes -= lengths[i] + RECORD_HEADER_SIZE;
+            int moveCount = size - i - 1;
+            System.arraycopy(ids, i + 1, ids, i, moveCount);
+            System.arraycopy(segments, i + 1, segments, i, moveCount);
+            System.arraycopy(offsets, i + 1, offsets, i, moveCount);
+            System.arraycopy(lengths, i + 1, lengths, i, moveCount);
+            size--;
+            return true;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (ids.length >= capacity) return;
+            int newCapacity = Math.max(capacity, Math.max(16, ids.length * 2));
+            ids = Arrays.copyOf(ids, newCapacity);
+            segments = Arrays.copyOf(segments, newCapacity);
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+        }
+
+        File segmentFile(int segment) {
+            return new File(dir, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+        }
+
+        void applyBatch(long[] putIds, ByteBuffer[] payloads, long[] deleteIds) throws IOException {
+            if (!dir.exists()) dir.mkdirs();
+            int[] putSegments = new int[putIds.length];
+            int[] putOffsets = new int[putIds.length];
+            int[] putLengths = new int[putIds.length];
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            FileChannel segmentChannel = null;
+            try {
+                for (int i = 0; i < putIds.length; i++) {
+                    ByteBuffer payload = payloads[i].duplicate();
+                    int length = payload.remaining();
+                    int recordSize = RECORD_HEADER_SIZE + length;
+                    if (currentSegmentSize > 0 && currentSegmentSize + recordSize > SEGMENT_LIMIT) {
+                        if (segmentChannel != null) {
+                            segmentChannel.force(false);
+                            segmentChannel.close();
+                            segmentChannel = null;
+                        }
+                        currentSegment++;
+                        currentSegmentSize = 0;
+                    }
+                    if (segmentChannel == null) {
+                        segmentChannel = new FileOutputStream(segmentFile(currentSegment), true).getChannel();
+                    }
+                    putSegments[i] = currentSegment;
+                    putOffsets[i] = (int) currentSegmentSize;
+                    putLengths[i] = length;
+                    header.clear();
+                    header.putInt(length).putLong(putIds[i]).flip();
+                    writeFully(segmentChannel, header, payload);
+                    currentSegmentSize += recordSize;
+                }
+                if (segmentChannel != null) {
+                    segmentChannel.force(false);
+                }
+            } finally {
+                if (segmentChannel != null) {
+                    segmentChannel.close();
+                }
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * (putIds.length + deleteIds.length));
+            for (int i = 0; i < putIds.length; i++) {
+                putIndexEntry(entries, putIds[i], putSegments[i], putOffsets[i], putLengths[i], 0);
+            }
+            long[] sortedPutIds = null;
+            for (long messageId : deleteIds) {
+                boolean isStored = indexOf(messageId) >= 0;
+                if (!isStored && putIds.length > 0) {
+                    // Written by this batch, the tombstone has to follow it on disk too
+                    if (sortedPutIds == null) {
+                        sortedPutIds = putIds.clone();
+                        Arrays.sort(sortedPutIds);
+                    }
+                    isStored = Arrays.binarySearch(sortedPutIds, messageId) >= 0;
+                }
+                if (isStored) {
+                    putIndexEntry(entries, messageId, 0, 0, 0, FLAG_TOMBSTONE);
+                }
+            }
+            entries.flip();
+            if (entries.hasRemaining()) {
+                try (FileChannel indexChannel = new FileOutputStream(new File(dir, INDEX_FILE), true).getChannel()) {
+                    writeFully(indexChannel, entries);
+                    indexChannel.force(false);
+                }
+            }
+
+            for (int i = 0; i < putIds.length; i++) {
+                putEntry(putIds[i], putSegments[i], putOffsets[i], putLengths[i]);
+            }
+            for (long messageId : deleteIds) {
+                removeEntry(messageId);
+            }
+        }
+
+        private static void putIndexEntry(ByteBuffer out, long messageId, int segment, int offset, int length, int flags) {
+            out.putLong(messageId).putInt(segment).putInt(offset).putInt(length).putInt(flags);
+        }
+
+        private FileChannel segmentReader(int segment) throws IOException {
+            if (reader == null || readerSegment != segment) {
+                closeReader();
+                reader = new FileInputStream(segmentFile(segment)).getChannel();
+                readerSegment = segment;
+            }
+            return reader;
+        }
+
+        /**
+         * Reads header and payload of the record in one positional read.
+         *
+         * @return buffer positioned at the payload start
+         */
+        ByteBuffer read(int i) throws IOException {
+            FileChannel channel = segmentReader(segments[i]);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + lengths[i]);
+            long position = offsets[i];
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0) {
+                    throw new IOException("Truncated ghost record for message " + ids[i]);
+                }
+            }
+            record.flip();
+            int length = record.getInt();
+            long messageId = record.getLong();
+            if (length != lengths[i] || messageId != ids[i]) {
+                throw new IOException("Corrupted ghost record for message " + ids[i]);
+            }
+            return record.slice();
+        }
+
+        void closeReader() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) { }
+                reader = null;
+                readerSegment = -1;
+            }
+        }
+
+        void compactIfNeeded() throws IOException {
+            if (deadBytes < COMPACT_MIN_DEAD_BYTES || deadBytes < liveBytes) {
+                return;
+            }
+            compact();
+        }
+
+        /**
+         * Rewrites live records into segments numbered after the current one, then swaps the index in one rename.
+         * Until the rename, the old index and segments stay intact; after it, old segments are garbage,
+         * dropped here or by {@link #dropUnindexedSegments} when interrupted.
+         */
+        private void compact() throws IOException {
+            final int firstSegment = currentSegment + 1;
+            int[] newSegments = new int[size];
+            int[] newOffsets = new int[size];
+            int segment = firstSegment;
+            long segmentSize = 0;
+            File indexFile = new File(dir, INDEX_FILE);
+            File tmpIndexFile = new File(dir, INDEX_FILE + COMPACT_SUFFIX);
+            FileChannel segmentOut = null;
+            try {
+                for (int i = 0; i < size; i++) {
+                    int recordSize = RECORD_HEADER_SIZE + lengths[i];
+                    if (segmentOut == null || (segmentSize > 0 && segmentSize + recordSize > SEGMENT_LIMIT)) {
+                        if (segmentOut != null) {
+                            segmentOut.force(false);
+                            segmentOut.close();
+                            segment++;
+                        }
+                        segmentOut = new FileOutputStream(segmentFile(segment)).getChannel();
+                        segmentSize = 0;
+                    }
+                    newSegments[i] = segment;
+                    newOffsets[i] = (int) segmentSize;
+                    // Live records are copied as-is, without passing through the heap
+                    FileChannel in = segmentReader(segments[i]);
+                    long copied = 0;
+                    while (copied < recordSize) {
+                        long count = in.transferTo(offsets[i] + copied, recordSize - copied, segmentOut);
+                        if (count <= 0) {
+                            throw new IOException("Truncated ghost record for message " + ids[i]);
+                        }
+                        copied += count;
+                    }
+                    segmentSize += recordSize;
+                }
+                if (segmentOut != null) {
+                    segmentOut.force(false);
+                    segmentOut.close();
+                    segmentOut = null;
+                }
+                ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * size);
+                for (int i = 0; i < size; i++) {
+                    putIndexEntry(entries, ids[i], newSegments[i], newOffsets[i], lengths[i], 0);
+                }
+                entries.flip();
+                try (FileChannel indexChannel = new FileOutputStream(tmpIndexFile).getChannel()) {
+                    writeFully(indexChannel, entries);
+                    indexChannel.force(false);
+                }
+                if (!tmpIndexFile.renameTo(indexFile)) {
+                    throw new IOException("Failed to swap compacted ghost index for chat " + chatId);
+                }
+            } catch (IOException e) {
+                if (segmentOut != null) {
+                    try {
+                        segmentOut.close();
+                    } catch (IOException ignored) { }
+                }
+                tmpIndexFile.delete();
+                for (int newSegment = firstSegment; newSegment <= segment; newSegment++) {
+                    segmentFile(newSegment).delete();
+                }
+                throw e;
+            } finally {
+                closeReader();
+            }
+
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    int oldSegment = parseSegment(file.getName());
+                    if (oldSegment != -1 && oldSegment < firstSegment) {
+                        file.delete();
+                    }
+                }
+            }
+
+            System.arraycopy(newSegments, 0, segments, 0, size);
+            System.arraycopy(newOffsets, 0, offsets, 0, size);
+            currentSegment = segment;
+            currentSegmentSize = segmentSize;
+            deadBytes = 0;
+            Log.i(TAG, "Compacted ghost store for chat " + chatId + ", " + size + " records left");
+        }
+    }
+}
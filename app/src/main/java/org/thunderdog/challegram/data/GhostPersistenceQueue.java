@@ -0,0 +1,306 @@
+package org.thunderdog.challegram.data;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.core.BaseThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single bounded writer for {@link GhostMessageStore}.
+ *
+ * Producers only record intent under a short lock: puts and deletes are coalesced per chat and message id,
+ * and the worker thread flushes each chat's batch with one fsync. When {@link #MAX_PENDING} distinct
+ * operations are waiting, producers request an immediate flush and wait for it instead of growing memory
+ * without bound. Nothing is dropped: callers have already shown the message by the time it is queued.
+ */
+final class GhostPersistenceQueue {
+    private static final String TAG = "ANTIDELETE";
+
+    private static final int MAX_PENDING = 20000;
+    private static final long FLUSH_DELAY_MS = 150;
+
+    interface Encoder {
+        ByteBuffer encode(TdApi.Message message) throws IOException;
+    }
+
+    interface Decoder {
+        List<TdApi.Message> decode(List<ByteBuffer> records);
+    }
+
+    private static class ChatBatch {
+        final LinkedHashMap<Long, TdApi.Message> puts = new LinkedHashMap<>();
+        final LinkedHashSet<Long> deletes = new LinkedHashSet<>();
+        final long createTime = SystemClock.elapsedRealtime();
+
+        ChatBatch() { }
+
+        ChatBatch(ChatBatch batch) {
+            puts.putAll(batch.puts);
+            deletes.addAll(batch.deletes);
+        }
+    }
+
+    private final GhostMessageStore store;
+    private final Encoder encoder;
+    private final BaseThread thread;
+    private final Runnable flushRunnable = this::flush;
+
+    private final Object lock = new Object();
+    private LinkedHashMap<Long, ChatBatch> pending = new LinkedHashMap<>();
+    private LinkedHashMap<Long, ChatBatch> inFlight;
+    private int pendingCount;
+    private boolean flushScheduled;
+    // Incremented by clear(), a flush in progress stops before its next batch
+    private int generation;
+
+    // Counters, guarded by lock
+    private long enqueuedCount, coalescedCount, blockedCount, writtenCount, deletedCount, batchCount;
+    private long lastLatencyMs, maxLatencyMs, totalLatencyMs;
+
+    GhostPersistenceQueue(GhostMessageStore store, Encoder encoder) {
+        this.store = store;
+        this.encoder = encoder;
+        this.thread = new BaseThread("GhostPersistenceThread");
+    }
+
+    void put(long chatId, TdApi.Message message) {
+        synchronized (lock) {
+            ChatBatch batch = pending.get(chatId);
+            boolean isNew = batch == null || (!batch.puts.containsKey(message.id) && !batch.deletes.contains(message.id));
+            if (isNew && pendingCount >= MAX_PENDING) {
+                awaitCapacity();
+                batch = pending.get(chatId);
+            }
+            if (batch == null) {
+                batch = new ChatBatch();
+                pending.put(chatId, batch);
+            }
+            enqueuedCount++;
+            if (isNew) {
+                pendingCount++;
+            } else {
+                coalescedCount++;
+                batch.deletes.remove(message.id);
+            }
+            batch.puts.put(message.id, message);
+            scheduleFlush();
+        }
+    }
+
+    void delete(long chatId, long messageId) {
+        synchronized (lock) {
+            ChatBatch batch = pending.get(chatId);
+            if (batch != null && batch.puts.remove(messageId) != null) {
+                // Message was never written, but an older version may be on disk
+                enqueuedCount++;
+                coalescedCount++;
+                batch.deletes.add(messageId);
+                scheduleFlush();
+                return;
+            }
+            if (batch != null && batch.deletes.contains(messageId)) {
+                coalescedCount++;
+                return;
+            }
+            if (pendingCount >= MAX_PENDING) {
+                awaitCapacity();
+                batch = pending.get(chatId);
+            }
+            if (batch == null) {
+                batch = new ChatBatch();
+                pending.put(chatId, batch);
+            }
+            enqueuedCount++;
+            pendingCount++;
+            batch.deletes.add(messageId);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Drops pending operations and waits for a flush in progress to finish its current batch,
+     * so nothing is written back after the store gets cleared.
+     */
+    void clear() {
+        synchronized (lock) {
+            pending.clear();
+            pendingCount = 0;
+            generation++;
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (inFlight != null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called under lock when the queue is full. Flushes right away and waits until it takes the pending operations.
+     */
+    private void awaitCapacity() {
+        blockedCount++;
+        thread.cancel(flushRunnable);
+        thread.post(flushRunnable, 0);
+        flushScheduled = true;
+        boolean interrupted = false;
+        while (pendingCount >= MAX_PENDING) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            thread.post(flushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    private void flush() {
+        LinkedHashMap<Long, ChatBatch> batches;
+        int flushGeneration;
+        synchronized (lock) {
+            batches = pending;
+            pending = new LinkedHashMap<>();
+            pendingCount = 0;
+            flushScheduled = false;
+            inFlight = batches;
+            flushGeneration = generation;
+            // Producers waiting for capacity
+            lock.notifyAll();
+        }
+        for (Map.Entry<Long, ChatBatch> entry : batches.entrySet()) {
+            synchronized (lock) {
+                if (generation != flushGeneration) {
+                    break;
+                }
+            }
+            long chatId = entry.getKey();
+            ChatBatch batch = entry.getValue();
+            writeBatch(chatId, batch);
+            long latency = SystemClock.elapsedRealtime() - batch.createTime;
+            synchronized (lock) {
+                batchCount++;
+                writtenCount += batch.puts.size();
+                deletedCount += batch.deletes.size();
+                lastLatencyMs = latency;
+                maxLatencyMs = Math.max(maxLatencyMs, latency);
+                totalLatencyMs += latency;
+            }
+        }
+        synchronized (lock) {
+            inFlight = null;
+            // clear() waiting for this flush
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads messages within {@code [fromMessageId, toMessageId]} from the store and applies operations that are not on disk yet.
+     * Operations are copied before reading, so a flush finishing in between only writes what gets applied again,
+     * and producers never wait for the disk read.
+     *
+     * @return messages sorted by id descending
+     */
+    List<TdApi.Message> query(long chatId, long fromMessageId, long toMessageId, Decoder decoder) {
+        ChatBatch inFlightBatch, pendingBatch;
+        synchronized (lock) {
+            // Not modified anymore once taken by a flush
+            inFlightBatch = inFlight != null ? inFlight.get(chatId) : null;
+            pendingBatch = pending.get(chatId);
+            if (pendingBatch != null) {
+                pendingBatch = new ChatBatch(pendingBatch);
+            }
+        }
+        List<TdApi.Message> messages = decoder.decode(store.query(chatId, fromMessageId, toMessageId));
+        boolean changed = mergePending(inFlightBatch, messages, fromMessageId, toMessageId);
+        changed = mergePending(pendingBatch, messages, fromMessageId, toMessageId) || changed;
+        if (changed) {
+            Collections.sort(messages, (m1, m2) -> Long.compare(m2.id, m1.id));
+        }
+        return messages;
+    }
+
+    private static boolean mergePending(ChatBatch batch, List<TdApi.Message> messages, long fromMessageId, long toMessageId) {
+        if (batch == null) {
+            return false;
+        }
+        boolean changed = false;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            long messageId = messages.get(i).id;
+            if (batch.deletes.contains(messageId) || batch.puts.containsKey(messageId)) {
+                messages.remove(i);
+                changed = true;
+            }
+        }
+        for (TdApi.Message message : batch.puts.values()) {
+            if (message.id >= fromMessageId && message.id <= toMessageId) {
+                messages.add(message);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void writeBatch(long chatId, ChatBatch batch) {
+        List<ByteBuffer> payloads = new ArrayList<>(batch.puts.size());
+        long[] putIds = new long[batch.puts.size()];
+        int count = 0;
+        for (TdApi.Message message : batch.puts.values()) {
+            try {
+                payloads.add(encoder.encode(message));
+                putIds[count++] = message.id;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to encode ghost message " + message.id + ": " + e.getMessage());
+            }
+        }
+        if (count != putIds.length) {
+            long[] trimmed = new long[count];
+            System.arraycopy(putIds, 0, trimmed, 0, count);
+            putIds = trimmed;
+        }
+        long[] deleteIds = new long[batch.deletes.size()];
+        int i = 0;
+        for (Long messageId : batch.deletes) {
+            deleteIds[i++] = messageId;
+        }
+        store.apply(chatId, putIds, payloads.toArray(new ByteBuffer[0]), deleteIds);
+    }
+
+    // Stats
+
+    String getStats() {
+        synchronized (lock) {
+            long avgLatencyMs = batchCount > 0 ? totalLatencyMs / batchCount : 0;
+            return String.format(Locale.US,
+              "queue %d, enqueued %d, coalesced %d, blocked %d, written %d, deleted %d, batches %d, latency %d/%d/%dms (last/avg/max)",
+              pendingCount, enqueuedCount, coalescedCount, blockedCount,
+              writtenCount, deletedCount, batchCount,
+              lastLatencyMs, avgLatencyMs, maxLatencyMs);
+        }
+    }
+}
@@ -75,6 +75,7 @@ import org.thunderdog.challegram.util.DrawableProvider;
 import org.thunderdog.challegram.widget.FileProgressComponent;
 import org.thunderdog.challegram.widget.SimplestCheckBox;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.vkryl.android.AnimatorUtils;
@@ -822,6 +823,16 @@ public class MediaWrapper implements FileProgressComponent.SimpleListener, FileP
     receiver.requestFile(targetGifFile != null && TD.isFileLoaded(targetFile) && (fileProgress == null || fileProgress.isDownloaded()) && !isHot() ? targetGifFile : null);
   }
 
+  public void collectPrefetchFiles (List<ImageFile> imageFiles) {
+    // Target files are downloaded according to auto-download settings, only decode those that are already there
+    if (showPreview() && previewFile != null) {
+      imageFiles.add(previewFile);
+    }
+    if (showImage()) {
+      imageFiles.add(targetImageFile);
+    }
+  }
+
   public boolean needGif () {
     return targetGifFile != null;
   }
@@ -25,6 +25,7 @@ import androidx.annotation.Nullable;
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.loader.ComplexReceiver;
 import org.thunderdog.challegram.loader.DoubleImageReceiver;
+import org.thunderdog.challegram.loader.ImageFile;
 import org.thunderdog.challegram.loader.ImageReceiver;
 import org.thunderdog.challegram.loader.Receiver;
 import org.thunderdog.challegram.loader.gif.GifReceiver;
@@ -1046,6 +1047,19 @@ public class MosaicWrapper implements FactorAnimator.Target, ComplexReceiver.Key
     complexReceiver.clearReceivers(this);
   }
 
+  public void collectPrefetchFiles (List<ImageFile> imageFiles) {
+    collectPrefetchFiles(mosaicItems, imageFiles);
+    collectPrefetchFiles(addedMosaicItems, imageFiles);
+  }
+
+  private static void collectPrefetchFiles (MosaicItemInfo[] items, List<ImageFile> imageFiles) {
+    if (items != null) {
+      for (MosaicItemInfo item : items) {
+        item.target.collectPrefetchFiles(imageFiles);
+      }
+    }
+  }
+
   // Touch events
 
   public MediaWrapper findMediaWrapperByMessageId (long messageId) {
@@ -72,6 +72,7 @@ import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.loader.AvatarReceiver;
 import org.thunderdog.challegram.loader.ComplexReceiver;
 import org.thunderdog.challegram.loader.DoubleImageReceiver;
+import org.thunderdog.challegram.loader.ImageFile;
 import org.thunderdog.challegram.loader.ImageReceiver;
 import org.thunderdog.challegram.loader.Receiver;
 import org.thunderdog.challegram.loader.gif.GifFile;
@@ -218,6 +219,7 @@ public abstract class TGMessage implements InvalidateContentProvider, TdlibDeleg
 
   protected int width;
   protected int height;
+  private boolean isLayoutInvalidated;
 
   protected String time;
 
@@ -1204,6 +1206,20 @@ public abstract class TGMessage implements InvalidateContentProvider, TdlibDeleg
     messageReactions.onUpdateTextSize();
   }
 
+  /**
+   * Marks layout as outdated without rebuilding it. Current layout stays usable
+   * until the next {@link #buildLayout(int)} call, which rebuilds it even when the width is the same.
+   */
+  public final void invalidateLayout () {
+    if (this.width != 0) {
+      isLayoutInvalidated = true;
+    }
+  }
+
+  public final boolean isLayoutInvalidated () {
+    return isLayoutInvalidated;
+  }
+
   public void prepareLayout () {
     if (this.width != 0) {
       rebuildLayout();
@@ -1213,11 +1229,12 @@ public abstract class TGMessage implements InvalidateContentProvider, TdlibDeleg
   }
 
   public void buildLayout (int width) {
-    if (width == 0 || this.width == width) {
+    if (width == 0 || (this.width == width && !isLayoutInvalidated)) {
       return;
     }
 
     this.width = width;
+    this.isLayoutInvalidated = false;
 
     if (useBubbles()) {
       pRealContentX = computeBubbleLeft();
@@ -4336,6 +4353,14 @@ public abstract class TGMessage implements InvalidateContentProvider, TdlibDeleg
     receiver.clear();
   }
 
+  /**
+   * Adds files that receivers will request once the message is displayed,
+   * so they can be loaded while the message is still off screen.
+   */
+  public void collectPrefetchFiles (List<ImageFile> imageFiles, List<GifFile> gifFiles) {
+    // override in children
+  }
+
   // Getters
 
   public boolean onMessageClick (MessageView v, MessagesController c) {
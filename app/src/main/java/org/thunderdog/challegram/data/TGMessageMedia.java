@@ -32,6 +32,8 @@ import org.thunderdog.challegram.component.chat.MessagesManager;
 import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.loader.ComplexReceiver;
+import org.thunderdog.challegram.loader.ImageFile;
+import org.thunderdog.challegram.loader.gif.GifFile;
 import org.thunderdog.challegram.mediaview.MediaViewController;
 import org.thunderdog.challegram.mediaview.MediaViewThumbLocation;
 import org.thunderdog.challegram.navigation.ViewController;
@@ -47,6 +49,7 @@ import org.thunderdog.challegram.util.text.TextEntity;
 import org.thunderdog.challegram.util.text.TextWrapper;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import me.vkryl.android.animator.FactorAnimator;
 import me.vkryl.core.MathUtils;
@@ -797,6 +800,13 @@ public class TGMessageMedia extends TGMessage {
     mosaicWrapper.requestFiles(receiver, invalidate);
   }
 
+  @Override
+  public void collectPrefetchFiles (List<ImageFile> imageFiles, List<GifFile> gifFiles) {
+    if (mosaicWrapper != null) {
+      mosaicWrapper.collectPrefetchFiles(imageFiles);
+    }
+  }
+
   @Override
   protected int getContentWidth () {
     int mosaicWidth = mosaicWrapper != null ? mosaicWrapper.getWidth() : 0;
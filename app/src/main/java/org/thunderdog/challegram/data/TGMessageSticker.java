@@ -193,6 +193,20 @@ public class TGMessageSticker extends TGMessage implements AnimatedEmojiListener
       receiver.getImageReceiver(key).requestFile(staticFile);
     }
 
+    public void collectPrefetchFiles (List<ImageFile> imageFiles, List<GifFile> gifFiles) {
+      if (sticker == null)
+        return;
+      if (preview != null && !hasAnimationEnded() && (isAnimated() || !TD.isFileLoaded(sticker.sticker))) {
+        imageFiles.add(preview);
+      }
+      if (staticFile != null) {
+        imageFiles.add(staticFile);
+      }
+      if (animatedFile != null) {
+        gifFiles.add(animatedFile);
+      }
+    }
+
     public void setSize (int width, int height) {
       this.width = width;
       this.height = height;
@@ -752,6 +766,15 @@ public class TGMessageSticker extends TGMessage implements AnimatedEmojiListener
     }
   }
 
+  @Override
+  public void collectPrefetchFiles (List<ImageFile> imageFiles, List<GifFile> gifFiles) {
+    if (representation != null) {
+      for (Representation representation : representation) {
+        representation.collectPrefetchFiles(imageFiles, gifFiles);
+      }
+    }
+  }
+
   private boolean isCaught;
   private float startX, startY;
 
@@ -23,7 +23,7 @@ import org.thunderdog.challegram.R;
 import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.core.Lang;
 import org.thunderdog.challegram.emoji.Emoji;
-import org.thunderdog.challegram.loader.gif.LottieCache;
+import org.thunderdog.challegram.loader.gif.LottieFrameCache;
 import org.thunderdog.challegram.mediaview.paint.PaintState;
 import org.thunderdog.challegram.telegram.TdlibManager;
 import org.thunderdog.challegram.tool.Strings;
@@ -75,7 +75,7 @@ public class TGStorageStatsFast {
     this.accountsConfigSize = TdlibManager.getAccountConfigFileSize();
     this.voipConfigSize = VoIPPersistentConfig.getVoipConfigFileSize();
 
-    this.lottieFiles = FileUtils.getAllFiles(LottieCache.getCacheDir());
+    this.lottieFiles = FileUtils.getAllFiles(LottieFrameCache.getCacheDir());
     long lottieSize = 0;
     for (File file : lottieFiles) {
       if (file.isFile())
@@ -155,7 +155,7 @@ public class TGStorageStatsFast {
   }
 
   public boolean deleteLottieFiles () {
-    return LottieCache.instance().clear();
+    return LottieFrameCache.instance().clear();
   }
 
   public boolean deletePrivateCameraMedia () {
@@ -0,0 +1,211 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.loader;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.tool.UI;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import me.vkryl.core.unit.ByteUnit;
+
+/**
+ * Mutable bitmaps that are no longer used, kept for reuse instead of being recycled.
+ *
+ * Bitmaps are grouped by allocation size, and a request is served by the smallest one that fits
+ * without wasting more than a half of it, reconfigured to the requested dimensions.
+ * Only bitmaps that were exclusively owned by the caller may be returned: animation frames and decoded
+ * images that never got to the cache. The pool has a byte budget derived from the memory class,
+ * evicts the oldest bitmaps first and is emptied on memory pressure. Requires KitKat, does nothing on older versions.
+ */
+public final class BitmapPool {
+  private static volatile BitmapPool instance;
+
+  public static BitmapPool instance () {
+    if (instance == null) {
+      synchronized (BitmapPool.class) {
+        if (instance == null) {
+          instance = new BitmapPool();
+        }
+      }
+    }
+    return instance;
+  }
+
+  public static void onTrimMemory (int level) {
+    BitmapPool pool = instance;
+    if (pool != null) {
+      pool.trimMemory(level);
+    }
+  }
+
+  private static final boolean IS_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+  private static final int MAX_SIZE_DIVIDER = 16;
+  private static final long MAX_SIZE_LIMIT = ByteUnit.MIB.toBytes(32);
+
+  private final long maxSize;
+  private long size;
+
+  private final TreeMap<Integer, ArrayDeque<Bitmap>> sizeClasses = new TreeMap<>();
+  private final ArrayDeque<Bitmap> order = new ArrayDeque<>(); // Oldest first
+
+  private long hitCount, missCount, putCount, evictionCount;
+
+  private BitmapPool () {
+    long maxSize = ByteUnit.MIB.toBytes(4);
+    if (IS_SUPPORTED) {
+      ActivityManager manager = (ActivityManager) UI.getAppContext().getSystemService(Context.ACTIVITY_SERVICE);
+      if (!manager.isLowRamDevice()) {
+        maxSize = Math.min(MAX_SIZE_LIMIT, Math.max(maxSize, ByteUnit.MIB.toBytes(manager.getMemoryClass()) / MAX_SIZE_DIVIDER));
+      }
+    }
+    this.maxSize = maxSize;
+  }
+
+  private static int getBytesPerPixel (Bitmap.Config config) {
+    if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+      return 2;
+    } else if (config == Bitmap.Config.ALPHA_8) {
+      return 1;
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16) {
+      return 8;
+    }
+    return 4;
+  }
+
+  /**
+   * @return bitmap of the given size and config, filled with transparent color when {@code clear} is set,
+   * or {@code null} when there's nothing suitable in the pool
+   */
+  @Nullable
+  public synchronized Bitmap take (int width, int height, @NonNull Bitmap.Config config, boolean clear) {
+    if (!IS_SUPPORTED || width <= 0 || height <= 0) {
+      return null;
+    }
+    final int byteCount = width * height * getBytesPerPixel(config);
+    Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizeClasses.ceilingEntry(byteCount);
+    if (entry == null || entry.getKey() / 2 > byteCount) {
+      missCount++;
+      return null;
+    }
+    ArrayDeque<Bitmap> bitmaps = entry.getValue();
+    Bitmap bitmap = bitmaps.poll();
+    if (bitmaps.isEmpty()) {
+      sizeClasses.remove(entry.getKey());
+    }
+    order.remove(bitmap);
+    size -= entry.getKey();
+    try {
+      bitmap.reconfigure(width, height, config);
+    } catch (IllegalArgumentException e) {
+      Log.e(Log.TAG_IMAGE_LOADER, "Cannot reconfigure pooled bitmap", e);
+      bitmap.recycle();
+      missCount++;
+      return null;
+    }
+    if (clear) {
+      bitmap.eraseColor(0);
+    }
+    hitCount++;
+    return bitmap;
+  }
+
+  /**
+   * @return bitmap from the pool, or a new one
+   */
+  @NonNull
+  public Bitmap obtain (int width, int height, @NonNull Bitmap.Config config) {
+    Bitmap bitmap = take(width, height, config, true);
+    return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+  }
+
+  /**
+   * Returns bitmap for reuse, or recycles it when it can't be reused.
+   * Caller must be the only owner of the bitmap.
+   */
+  public void put (@Nullable Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled())
+      return;
+    if (!IS_SUPPORTED || !bitmap.isMutable() || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE)) {
+      bitmap.recycle();
+      return;
+    }
+    final int byteCount = bitmap.getAllocationByteCount();
+    if (byteCount > maxSize / 4) {
+      bitmap.recycle();
+      return;
+    }
+    synchronized (this) {
+      ArrayDeque<Bitmap> bitmaps = sizeClasses.get(byteCount);
+      if (bitmaps == null) {
+        sizeClasses.put(byteCount, bitmaps = new ArrayDeque<>());
+      }
+      bitmaps.offer(bitmap);
+      order.offer(bitmap);
+      size += byteCount;
+      putCount++;
+      trimToSize(maxSize);
+    }
+  }
+
+  private void trimToSize (long targetSize) {
+    Iterator<Bitmap> it = order.iterator();
+    while (size > targetSize && it.hasNext()) {
+      Bitmap bitmap = it.next();
+      it.remove();
+      final int byteCount = bitmap.getAllocationByteCount();
+      ArrayDeque<Bitmap> bitmaps = sizeClasses.get(byteCount);
+      if (bitmaps != null) {
+        bitmaps.remove(bitmap);
+        if (bitmaps.isEmpty()) {
+          sizeClasses.remove(byteCount);
+        }
+      }
+      size -= byteCount;
+      evictionCount++;
+      bitmap.recycle();
+    }
+  }
+
+  private synchronized void trimMemory (int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      trimToSize(0);
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      trimToSize(maxSize / 2);
+    }
+  }
+
+  /**
+   * Pool usage and reuse counters, for the debug screen.
+   */
+  public synchronized String getStats () {
+    return String.format(Locale.US, "%d bitmaps, %.1f/%d MB, hits %d, misses %d, returned %d, evicted %d",
+      order.size(), size / 1024f / 1024f, maxSize / (1024 * 1024), hitCount, missCount, putCount, evictionCount
+    );
+  }
+}
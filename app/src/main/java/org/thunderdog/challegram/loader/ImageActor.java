@@ -33,13 +33,30 @@ public class ImageActor implements ImageReader.Listener, AudioController.ApicLis
   private ImageFile file;
 
   private volatile boolean isCancelled;
+  private volatile int priority = ImageDecodePool.PRIORITY_VISIBLE;
 
   public ImageActor (ImageFile file) {
     this.file = file;
   }
 
+  ImageFile getFile () {
+    return file;
+  }
+
+  int getPriority () {
+    return priority;
+  }
+
+  void setPriority (int priority) {
+    if (this.priority != priority) {
+      this.priority = priority;
+      ImageReader.instance().updatePriority(this);
+    }
+  }
+
   public void cancel () {
     this.isCancelled = true;
+    ImageReader.instance().cancel(this);
     if (cancellationSignal != null)
       cancellationSignal.cancel();
     if (file instanceof ImageApicFile) {
@@ -127,7 +144,7 @@ public class ImageActor implements ImageReader.Listener, AudioController.ApicLis
         ImageCache.instance().putBitmap(file, result);
       } else if (isCancelled) {
         Log.i(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap because associated actor is canceled and image should not be cached", file.toString());
-        result.recycle();
+        BitmapPool.instance().put(result);
         return;
       }
       /*if (file.needOverlayCalcs()) {
@@ -42,6 +42,11 @@ public class ImageApicFile extends ImageFile {
     return resultFrame;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return accountId() +
@@ -15,13 +15,14 @@
 package org.thunderdog.challegram.loader;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
-import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
 
 import org.thunderdog.challegram.Log;
 import org.thunderdog.challegram.U;
@@ -29,11 +30,24 @@ import org.thunderdog.challegram.tool.UI;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.vkryl.core.unit.ByteUnit;
 
+/**
+ * Decoded bitmaps, in two tiers.
+ *
+ * The first tier is a strong LRU with a byte budget derived from the memory class of the device,
+ * trimmed on {@link ComponentCallbacks2#onTrimMemory}. The second tier keeps weak references to bitmaps
+ * that were evicted from the first one, but are still displayed somewhere, so they can be reused without decoding.
+ * It is split into stripes, so lookups don't contend with each other or with reference counting.
+ */
 public class ImageCache {
   private static ImageCache instance;
 
@@ -44,21 +58,42 @@ public class ImageCache {
     return instance;
   }
 
-  public static HashMap<String, AtomicInteger> getReferenceCounters () {
+  public static HashMap<ImageCacheKey, AtomicInteger> getReferenceCounters () {
     return instance().getCounters();
   }
 
-  private final HashMap<String, AtomicInteger> counters;
-  private final HashMap<String, Integer> rotations;
-  private final HashMap<String, WeakReference<Bitmap>> references;
-  private class BitmapLruCache extends LruCache<String, Bitmap> {
+  /**
+   * Trims the strong tier according to the level passed to {@link ComponentCallbacks2#onTrimMemory}.
+   * Does nothing when the cache wasn't created yet.
+   */
+  public static void onTrimMemory (int level) {
+    ImageCache cache = instance;
+    if (cache != null) {
+      cache.trimMemory(level);
+    }
+  }
+
+  // Strong tier budget, as a fraction of the memory class
+  private static final int MEMCACHE_DIVIDER = 6;
+  private static final int MEMCACHE_DIVIDER_LOW_RAM = 10;
+  private static final long MEMCACHE_MIN_SIZE = ByteUnit.MIB.toBytes(4);
+  private static final long MEMCACHE_MAX_SIZE = ByteUnit.MIB.toBytes(128);
+
+  // Recently evicted keys remembered to detect decoding the same image again
+  private static final int EVICTED_KEYS_LIMIT = 1024;
+
+  private final HashMap<ImageCacheKey, AtomicInteger> counters;
+  // Written by decode workers in parallel, read by any thread
+  private final ConcurrentHashMap<ImageCacheKey, Integer> rotations;
+  private final ReferenceTier references;
+  private class BitmapLruCache extends LruCache<ImageCacheKey, Bitmap> {
     public BitmapLruCache (int maxSize) {
       super(maxSize);
     }
 
     @Override
-    protected int sizeOf (String key, Bitmap value) {
-      if (value == null || value.isRecycled())
+    protected int sizeOf (@NonNull ImageCacheKey key, @NonNull Bitmap value) {
+      if (value.isRecycled())
         return 1;
       if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) {
         return value.getRowBytes() * value.getHeight();
@@ -70,7 +105,13 @@ public class ImageCache {
     }
 
     @Override
-    protected void entryRemoved (boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+    protected void entryRemoved (boolean evicted, @NonNull ImageCacheKey key, @NonNull Bitmap oldValue, @Nullable Bitmap newValue) {
+      if (evicted) {
+        evictionCount.incrementAndGet();
+        synchronized (evictedKeys) {
+          evictedKeys.put(key, Boolean.TRUE);
+        }
+      }
       if (!counters.containsKey(key)) {
         if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
           Log.v(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap in entryRemoved", key);
@@ -84,34 +125,69 @@ public class ImageCache {
 
   private static final boolean ALLOW_REFERENCES = true;
 
+  private final AtomicLong hitCount = new AtomicLong(), referenceHitCount = new AtomicLong(), missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong(), redecodeCount = new AtomicLong(), trimCount = new AtomicLong();
+  private final LinkedHashMap<ImageCacheKey, Boolean> evictedKeys = new LinkedHashMap<ImageCacheKey, Boolean>(16, .75f, false) {
+    @Override
+    protected boolean removeEldestEntry (Map.Entry<ImageCacheKey, Boolean> eldest) {
+      return size() > EVICTED_KEYS_LIMIT;
+    }
+  };
+
   private ImageCache () {
     counters = new HashMap<>();
-    rotations = new HashMap<>();
+    rotations = new ConcurrentHashMap<>();
     memcache = new BitmapLruCache(getMemcacheSize());
-    references = new HashMap<>();
+    references = new ReferenceTier();
   }
 
-  private boolean hasInMemcache (String key) {
+  private boolean hasInMemcache (ImageCacheKey key) {
     return memcache.get(key) != null;
   }
 
-  private int getMemcacheSize () {
+  private static int getMemcacheSize () {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-      int mib = Math.min(15, ((ActivityManager) UI.getAppContext().getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 7);
-      return (int) ByteUnit.MIB.toBytes(mib);
+      ActivityManager manager = (ActivityManager) UI.getAppContext().getSystemService(Context.ACTIVITY_SERVICE);
+      boolean isLowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && manager.isLowRamDevice();
+      long bytes = ByteUnit.MIB.toBytes(manager.getMemoryClass()) / (isLowRam ? MEMCACHE_DIVIDER_LOW_RAM : MEMCACHE_DIVIDER);
+      return (int) Math.max(MEMCACHE_MIN_SIZE, Math.min(MEMCACHE_MAX_SIZE, bytes));
     } else {
       return (int) ByteUnit.MIB.toBytes(3);
     }
   }
 
-  public HashMap<String, AtomicInteger> getCounters () {
+  private void trimMemory (int level) {
+    final int maxSize = memcache.maxSize();
+    final int targetSize;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      // Process is in the background and likely to be killed soon
+      targetSize = 0;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      targetSize = maxSize / 4;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      targetSize = maxSize / 2;
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      targetSize = maxSize / 4 * 3;
+    } else {
+      return;
+    }
+    if (memcache.size() > targetSize) {
+      if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
+        Log.i(Log.TAG_IMAGE_LOADER, "Trimming memcache, level: %d, size: %d, target: %d", level, memcache.size(), targetSize);
+      }
+      trimCount.incrementAndGet();
+      memcache.trimToSize(targetSize);
+    }
+  }
+
+  public HashMap<ImageCacheKey, AtomicInteger> getCounters () {
     return counters;
   }
 
   public void addReference (ImageFile file, Bitmap bitmap) {
     if (file != null && bitmap != null) {
       synchronized (counters) {
-        final String key = file.toString();
+        final ImageCacheKey key = file.getCacheKey();
         AtomicInteger count = counters.get(key);
         if (count != null) {
           count.incrementAndGet();
@@ -132,7 +208,7 @@ public class ImageCache {
   public void removeReference (ImageFile file, Bitmap bitmap) {
     if (file != null && bitmap != null) {
       synchronized (counters) {
-        String key = file.toString();
+        ImageCacheKey key = file.getCacheKey();
 
         AtomicInteger count = counters.get(key);
         if (count != null) {
@@ -144,15 +220,15 @@ public class ImageCache {
           }
           if (result == 0) {
             counters.remove(key);
+            if (ALLOW_REFERENCES) {
+              references.remove(key);
+            }
             if (!hasInMemcache(key)) {
               if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
                 Log.v(Log.TAG_IMAGE_LOADER, "#%s: recycling bitmap in removeReference", key);
               }
               U.recycle(bitmap);
             }
-            if (ALLOW_REFERENCES) {
-              references.remove(key);
-            }
           }
         }
       }
@@ -168,39 +244,62 @@ public class ImageCache {
   }
 
   public void putBitmap (ImageFile file, Bitmap bitmap) {
-    final String key = file.toString();
+    final ImageCacheKey key = file.getCacheKey();
+    synchronized (evictedKeys) {
+      if (evictedKeys.remove(key) != null) {
+        redecodeCount.incrementAndGet();
+      }
+    }
     memcache.put(key, bitmap);
     if (file.getRotation() != 0) {
       rotations.put(key, file.getRotation());
     }
     if (ALLOW_REFERENCES) {
-      synchronized (counters) {
-        references.put(key, new WeakReference<>(bitmap));
-      }
+      references.put(key, bitmap);
     }
   }
 
+  /**
+   * Checks the memory cache without counting a hit or a miss. Found entry becomes the most recently used one.
+   */
+  public boolean hasBitmap (ImageFile file) {
+    return hasInMemcache(file.getCacheKey());
+  }
+
   public Bitmap getBitmap (ImageFile file) {
-    final String key = file.toString();
+    final ImageCacheKey key = file.getCacheKey();
     final Bitmap cached = memcache.get(key);
     if (cached != null) {
+      hitCount.incrementAndGet();
       Integer rotation = rotations.get(key);
       if (rotation != null) {
         file.setRotation(rotation);
       }
+      return cached;
     }
-    if (ALLOW_REFERENCES && cached == null) {
-      synchronized (counters) {
-        final WeakReference<Bitmap> reference = references.get(key);
-        final Bitmap referenced = reference != null ? reference.get() : null;
-        if (referenced == null || referenced.isRecycled()) {
-          references.remove(key);
-        } else {
-          return referenced;
-        }
+    if (ALLOW_REFERENCES) {
+      final Bitmap referenced = references.get(key);
+      if (referenced != null) {
+        referenceHitCount.incrementAndGet();
+        return referenced;
       }
     }
-    return cached;
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Budget usage, hit rate and eviction counters, for the debug screen.
+   */
+  public String getStats () {
+    long hits = hitCount.get(), referenceHits = referenceHitCount.get(), misses = missCount.get();
+    long total = hits + referenceHits + misses;
+    return String.format(Locale.US, "%d/%d MB, %d bitmaps, hits %.1f%% (weak %.1f%%), misses %d, evicted %d, redecoded %d, trims %d",
+      memcache.size() / (1024 * 1024), memcache.maxSize() / (1024 * 1024), memcache.snapshot().size(),
+      total != 0 ? (hits + referenceHits) * 100f / total : 0f,
+      total != 0 ? referenceHits * 100f / total : 0f,
+      misses, evictionCount.get(), redecodeCount.get(), trimCount.get()
+    );
   }
 
   @Override
@@ -222,18 +321,63 @@ public class ImageCache {
 
   public void clearForAccount (int accountId) {
     synchronized (counters) {
-      final String prefix = "account" + accountId + "_";
-      /*U.removeByPrefix(counters, prefix);
-      U.removeByPrefix(rotations, prefix);
-      if (ALLOW_REFERENCES) {
-        U.removeByPrefix(references, prefix);
-      }*/
-      Set<String> snapshot = memcache.snapshot().keySet();
-      for (String key : snapshot) {
-        if (key.startsWith(prefix)) {
+      Set<ImageCacheKey> snapshot = memcache.snapshot().keySet();
+      for (ImageCacheKey key : snapshot) {
+        if (key.isImageOfAccount(accountId)) {
           memcache.remove(key);
         }
       }
     }
   }
+
+  /**
+   * Weak references to bitmaps, split into independently locked stripes by key hash.
+   */
+  private static class ReferenceTier {
+    private static final int STRIPE_COUNT = 16; // Must be a power of two
+
+    @SuppressWarnings("unchecked")
+    private final HashMap<ImageCacheKey, WeakReference<Bitmap>>[] stripes = new HashMap[STRIPE_COUNT];
+
+    ReferenceTier () {
+      for (int i = 0; i < STRIPE_COUNT; i++) {
+        stripes[i] = new HashMap<>();
+      }
+    }
+
+    private HashMap<ImageCacheKey, WeakReference<Bitmap>> stripe (ImageCacheKey key) {
+      int hash = key.hashCode();
+      return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    void put (ImageCacheKey key, Bitmap bitmap) {
+      HashMap<ImageCacheKey, WeakReference<Bitmap>> stripe = stripe(key);
+      synchronized (stripe) {
+        stripe.put(key, new WeakReference<>(bitmap));
+      }
+    }
+
+    @Nullable
+    Bitmap get (ImageCacheKey key) {
+      HashMap<ImageCacheKey, WeakReference<Bitmap>> stripe = stripe(key);
+      synchronized (stripe) {
+        final WeakReference<Bitmap> reference = stripe.get(key);
+        if (reference == null)
+          return null;
+        final Bitmap referenced = reference.get();
+        if (referenced == null || referenced.isRecycled()) {
+          stripe.remove(key);
+          return null;
+        }
+        return referenced;
+      }
+    }
+
+    void remove (ImageCacheKey key) {
+      HashMap<ImageCacheKey, WeakReference<Bitmap>> stripe = stripe(key);
+      synchronized (stripe) {
+        stripe.remove(key);
+      }
+    }
+  }
 }
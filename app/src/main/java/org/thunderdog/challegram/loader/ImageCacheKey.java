@@ -0,0 +1,101 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.loader;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Identity of a decoded image or animation in caches and loader maps.
+ *
+ * Files with the standard key are packed into two longs (account and file id, then size or animation
+ * parameters and flags), so comparing keys doesn't touch strings. Files with their own key format
+ * (local paths, remote ids, filters) keep using that string. The hash is computed once.
+ */
+public final class ImageCacheKey {
+  private static final int KIND_STRING = 0;
+  private static final int KIND_IMAGE = 1;
+  private static final int KIND_GIF = 2;
+
+  public static final int FLAG_DECODE_SQUARE = 1;
+  public static final int FLAG_FORCE_SW_RENDER = 1 << 1;
+
+  private final int kind;
+  private final long id; // accountId << 32 | fileId
+  private final long params;
+  private final @Nullable String key;
+  private final int hash;
+
+  private ImageCacheKey (int kind, long id, long params, @Nullable String key) {
+    this.kind = kind;
+    this.id = id;
+    this.params = params;
+    this.key = key;
+    if (key != null) {
+      this.hash = key.hashCode();
+    } else {
+      long h = (id * 0x9E3779B97F4A7C15L + params) * 0x9E3779B97F4A7C15L + kind;
+      this.hash = (int) (h ^ (h >>> 32));
+    }
+  }
+
+  public static ImageCacheKey forImage (int accountId, int fileId, int size, int flags) {
+    return new ImageCacheKey(KIND_IMAGE, pack(accountId, fileId), pack(size, flags), null);
+  }
+
+  public static ImageCacheKey forGif (int accountId, int fileId, int flags, int optimizationMode, int fitzpatrickType) {
+    return new ImageCacheKey(KIND_GIF, pack(accountId, fileId), pack(flags, (optimizationMode & 0xffff) | (fitzpatrickType << 16)), null);
+  }
+
+  public static ImageCacheKey forString (@NonNull String key) {
+    return new ImageCacheKey(KIND_STRING, 0, 0, key);
+  }
+
+  private static long pack (int high, int low) {
+    return ((long) high << 32) | (low & 0xffffffffL);
+  }
+
+  /**
+   * @return whether this is a standard image key of the given account
+   */
+  public boolean isImageOfAccount (int accountId) {
+    return kind == KIND_IMAGE && (int) (id >>> 32) == accountId;
+  }
+
+  @Override
+  public boolean equals (Object obj) {
+    if (this == obj)
+      return true;
+    if (!(obj instanceof ImageCacheKey))
+      return false;
+    ImageCacheKey other = (ImageCacheKey) obj;
+    return hash == other.hash && kind == other.kind && id == other.id && params == other.params && (key == null ? other.key == null : key.equals(other.key));
+  }
+
+  @Override
+  public int hashCode () {
+    return hash;
+  }
+
+  @Override
+  @NonNull
+  public String toString () {
+    if (key != null)
+      return key;
+    return String.format(Locale.US, "%s%d_%d_%d,%d", kind == KIND_GIF ? "gif" : "account", (int) (id >>> 32), (int) id, (int) (params >>> 32), (int) params);
+  }
+}
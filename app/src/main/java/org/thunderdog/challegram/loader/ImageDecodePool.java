@@ -0,0 +1,274 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.loader;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded pool of threads decoding images for {@link ImageReader}.
+ *
+ * Tasks are ordered by priority (images requested by visible receivers before prefetch), then by submission order.
+ * There is at most one queued task per cache key: a request for a key that is already queued takes its place,
+ * and the replaced request of another actor waits for it the same way a request for a key that is being decoded does.
+ * Waiting requests are dropped if the result was delivered, otherwise decoded again.
+ * Queued tasks of cancelled actors are removed right away, passing their waiting requests on.
+ */
+final class ImageDecodePool {
+  static final int PRIORITY_VISIBLE = 0;
+  static final int PRIORITY_PREFETCH = 1;
+
+  private final Worker[] workers;
+
+  private final PriorityQueue<Task> queue = new PriorityQueue<>();
+  private final HashMap<ImageCacheKey, Task> queuedTasks = new HashMap<>();
+  private final HashMap<ImageCacheKey, Task> runningTasks = new HashMap<>();
+  private long nextSequence;
+
+  private long submittedCount, coalescedCount, cancelledCount, completedCount;
+
+  ImageDecodePool () {
+    int threadCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    workers = new Worker[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      workers[i] = new Worker(this, i);
+      workers[i].start();
+    }
+  }
+
+  synchronized void submit (ImageActor actor, ImageFile file, String path, ImageReader.Listener listener) {
+    final ImageCacheKey key = file.getCacheKey();
+    final Task task = new Task(actor, file, path, listener, actor.getPriority(), nextSequence++);
+    submittedCount++;
+
+    Task running = runningTasks.get(key);
+    if (running != null && running.actor != actor) {
+      coalescedCount++;
+      running.addFollower(task);
+      return;
+    }
+
+    Task queued = queuedTasks.remove(key);
+    if (queued != null) {
+      queue.remove(queued);
+      coalescedCount++;
+      if (queued.priority < task.priority) {
+        task.priority = queued.priority;
+      }
+      task.takeFollowers(queued);
+      if (queued.actor != actor) {
+        task.addFollower(queued);
+      }
+    }
+    enqueue(task);
+  }
+
+  /**
+   * Queues a waiting request, or makes it wait for the task already queued for the same key.
+   */
+  private void enqueueOrFollow (Task task) {
+    Task queued = queuedTasks.get(task.file.getCacheKey());
+    if (queued == null) {
+      enqueue(task);
+      return;
+    }
+    queued.addFollower(task);
+    if (task.priority < queued.priority) {
+      queue.remove(queued);
+      queued.priority = task.priority;
+      queue.add(queued);
+    }
+  }
+
+  private void enqueue (Task task) {
+    queuedTasks.put(task.file.getCacheKey(), task);
+    queue.add(task);
+    notify();
+  }
+
+  /**
+   * Removes queued task of the actor, if any.
+   */
+  synchronized void cancel (ImageActor actor) {
+    ImageCacheKey key = actor.getFile().getCacheKey();
+    Task queued = queuedTasks.get(key);
+    if (queued != null && queued.actor == actor) {
+      queuedTasks.remove(key);
+      queue.remove(queued);
+      cancelledCount++;
+      if (queued.followers != null) {
+        Task next = null;
+        for (Task follower : queued.followers) {
+          if (follower.actor.isCancelled()) {
+            cancelledCount++;
+          } else if (next == null) {
+            next = follower;
+          } else {
+            next.addFollower(follower);
+          }
+        }
+        queued.followers = null;
+        if (next != null) {
+          enqueue(next);
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves queued task of the actor according to its new priority.
+   */
+  synchronized void updatePriority (ImageActor actor) {
+    Task queued = queuedTasks.get(actor.getFile().getCacheKey());
+    if (queued != null && queued.actor == actor && queued.priority != actor.getPriority()) {
+      queue.remove(queued);
+      queued.priority = actor.getPriority();
+      queue.add(queued);
+    }
+  }
+
+  private synchronized Task take () throws InterruptedException {
+    Task task;
+    while ((task = queue.poll()) == null) {
+      wait();
+    }
+    ImageCacheKey key = task.file.getCacheKey();
+    queuedTasks.remove(key);
+    runningTasks.put(key, task);
+    return task;
+  }
+
+  private synchronized void finish (Task task) {
+    completedCount++;
+    runningTasks.remove(task.file.getCacheKey());
+    if (task.followers == null)
+      return;
+    for (Task follower : task.followers) {
+      if (follower.actor.isCancelled()) {
+        cancelledCount++;
+      } else if (!task.isDelivered) {
+        // Result of the previous decode could not be reused, decode again
+        enqueueOrFollow(follower);
+      }
+    }
+    task.followers = null;
+  }
+
+  private void run (Task task) {
+    if (task.actor.isCancelled()) {
+      synchronized (this) {
+        cancelledCount++;
+      }
+    } else {
+      try {
+        ImageReader.instance().decode(task.actor, task.file, task.path, task);
+      } catch (Throwable t) {
+        Log.e(Log.TAG_IMAGE_LOADER, "#%s: decode failed", t, task.file.toString());
+      }
+    }
+    finish(task);
+  }
+
+  synchronized String getStats () {
+    return String.format(Locale.US, "%d threads, queued %d, running %d, submitted %d, coalesced %d, cancelled %d, completed %d",
+      workers.length, queue.size(), runningTasks.size(), submittedCount, coalescedCount, cancelledCount, completedCount
+    );
+  }
+
+  private static class Task implements Comparable<Task>, ImageReader.Listener {
+    final ImageActor actor;
+    final ImageFile file;
+    final String path;
+    final ImageReader.Listener listener;
+    final long sequence;
+    int priority;
+
+    // Requests of other actors for the same key, guarded by the pool
+    ArrayList<Task> followers;
+    volatile boolean isDelivered;
+
+    Task (ImageActor actor, ImageFile file, String path, ImageReader.Listener listener, int priority, long sequence) {
+      this.actor = actor;
+      this.file = file;
+      this.path = path;
+      this.listener = listener;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    void addFollower (Task task) {
+      if (followers == null) {
+        followers = new ArrayList<>();
+      }
+      followers.add(task);
+    }
+
+    void takeFollowers (Task task) {
+      if (task.followers != null) {
+        for (Task follower : task.followers) {
+          addFollower(follower);
+        }
+        task.followers = null;
+      }
+    }
+
+    @Override
+    public void onImageLoaded (boolean success, Bitmap result) {
+      // Loader dispatches cached results by key, so they also reach requests that were waiting for this one
+      isDelivered = success && file.shouldBeCached();
+      listener.onImageLoaded(success, result);
+    }
+
+    @Override
+    public int compareTo (@NonNull Task other) {
+      if (priority != other.priority)
+        return Integer.compare(priority, other.priority);
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private static class Worker extends Thread {
+    private final ImageDecodePool pool;
+
+    Worker (ImageDecodePool pool, int index) {
+      super("ImageDecoder#" + index);
+      this.pool = pool;
+    }
+
+    @Override
+    public void run () {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        Task task;
+        try {
+          task = pool.take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        pool.run(task);
+      }
+    }
+  }
+}
@@ -80,6 +80,7 @@ public class ImageFile {
   private int size, blurRadius, scaleType;
   private int flags;
   protected String key;
+  private ImageCacheKey cacheKey;
 
   protected final byte[] bytes;
 
@@ -387,12 +388,39 @@ public class ImageFile {
 
   @Override
   public final int hashCode () {
-    return toString().hashCode();
+    return getCacheKey().hashCode();
   }
 
   @Override
   public boolean equals (Object object) {
-    return object instanceof ImageFile && toString().equals(object.toString());
+    return object instanceof ImageFile && getCacheKey().equals(((ImageFile) object).getCacheKey());
+  }
+
+  /**
+   * Subclasses that override {@link #buildImageKey()} must return false.
+   */
+  protected boolean hasStandardKey () {
+    return true;
+  }
+
+  public final ImageCacheKey getCacheKey () {
+    ImageCacheKey cacheKey = this.cacheKey;
+    if (cacheKey == null) {
+      if (hasStandardKey()) {
+        int keyFlags = 0;
+        if ((flags & FLAG_DECODE_SQUARE) != 0) {
+          keyFlags |= ImageCacheKey.FLAG_DECODE_SQUARE;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && (flags & FLAG_FORCE_SW_RENDER) != 0) {
+          keyFlags |= ImageCacheKey.FLAG_FORCE_SW_RENDER;
+        }
+        cacheKey = ImageCacheKey.forImage(accountId(), Td.getId(file), size, keyFlags);
+      } else {
+        cacheKey = ImageCacheKey.forString(toString());
+      }
+      this.cacheKey = cacheKey;
+    }
+    return cacheKey;
   }
 
   protected final StringBuilder buildStandardKey (StringBuilder b) {
@@ -534,6 +562,7 @@ public class ImageFile {
 
   public void notifyChanged () {
     this.key = null;
+    this.cacheKey = null;
     if (changeListeners != null) {
       for (ChangeListener listener : changeListeners) {
         listener.onImageChanged(this);
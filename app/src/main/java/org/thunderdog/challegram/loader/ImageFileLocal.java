@@ -76,6 +76,11 @@ public class ImageFileLocal extends ImageFile {
     return path;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return (needDecodeSquare() ? path + "?square" : path) + "_" + getSize();
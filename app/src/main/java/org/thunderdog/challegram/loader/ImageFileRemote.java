@@ -64,6 +64,11 @@ public class ImageFileRemote extends ImageFile {
     return fileUpdated;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return getFileLoadKey() + (needDecodeSquare() ? "_square" : "");
@@ -67,6 +67,11 @@ public class ImageFilteredFile extends ImageFile {
     return TD.getCacheDir(!isPrivate).getPath() + "/temp_" + filterSessionId + ".jpg";
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return "filtered_" + filterSessionId;
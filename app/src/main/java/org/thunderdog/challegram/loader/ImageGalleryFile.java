@@ -372,6 +372,11 @@ public class ImageGalleryFile extends ImageFile implements Comparable<ImageGalle
     return /*check.contains("screenshot") || */check.contains("screen");
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return file.local.path + "?" + (startTimeUs > 0 ? startTimeUs : "") + (needThumb() ? "thumb" + id : "");
@@ -17,6 +17,7 @@ package org.thunderdog.challegram.loader;
 import android.graphics.Bitmap;
 
 import androidx.annotation.Keep;
+import androidx.annotation.Nullable;
 import androidx.collection.ArraySet;
 
 import org.drinkless.tdlib.TdApi;
@@ -46,8 +47,8 @@ public class ImageLoader {
 
   private final ImageThread thread = new ImageThread();
 
-  private final HashMap<String, ImageWatchers> watchers = new HashMap<>();
-  private final HashMap<String, ArrayList<String>> workers = new HashMap<>();
+  private final HashMap<ImageCacheKey, ImageWatchers> watchers = new HashMap<>();
+  private final HashMap<String, ArrayList<ImageCacheKey>> workers = new HashMap<>();
 
   private ImageLoader () {
     ImageCache.instance();
@@ -69,12 +70,44 @@ public class ImageLoader {
     };
     tempWatchers.add(watcher);
     reference.set(new WatcherReference(watcher));
-    requestFile(file, reference.get());
+    requestFile(file, reference.get(), ImageDecodePool.PRIORITY_PREFETCH);
+  }
+
+  /**
+   * Downloads and decodes the file into the memory cache ahead of its receiver, at low priority.
+   *
+   * @return reference to pass to {@link #removeWatcher(WatcherReference)} when the file is no longer needed,
+   * or null, if the file is already in the memory cache
+   */
+  public @Nullable WatcherReference prefetchFile (final ImageFile file) {
+    if (ImageCache.instance().hasBitmap(file)) {
+      return null;
+    }
+    AtomicReference<WatcherReference> reference = new AtomicReference<>();
+    Watcher watcher = new Watcher() {
+      @Override
+      public void imageLoaded (ImageFile file, boolean successful, Bitmap bitmap) {
+        tempWatchers.remove(this);
+        removeWatcher(reference.get());
+      }
+    };
+    tempWatchers.add(watcher);
+    reference.set(new WatcherReference(watcher));
+    requestFile(file, reference.get(), ImageDecodePool.PRIORITY_PREFETCH);
+    return reference.get();
   }
 
   public void requestFile (final ImageFile file, WatcherReference reference) {
+    requestFile(file, reference, ImageDecodePool.PRIORITY_VISIBLE);
+  }
+
+  private static int getDownloadPriority (int priority) {
+    return priority == ImageDecodePool.PRIORITY_PREFETCH ? TdlibFilesManager.PRIORITY_IMAGE_PREFETCH : TdlibFilesManager.PRIORITY_IMAGE;
+  }
+
+  void requestFile (final ImageFile file, WatcherReference reference, int priority) {
     if (Thread.currentThread() != thread) {
-      thread.request(file, reference);
+      thread.request(file, reference, priority);
       return;
     }
 
@@ -85,14 +118,15 @@ public class ImageLoader {
     ImageWatchers record;
 
     synchronized (watchers) {
-      record = watchers.get(file.toString());
+      record = watchers.get(file.getCacheKey());
     }
 
     if (record == null) {
       ImageActor actor = new ImageActor(file);
+      actor.setPriority(priority);
       record = new ImageWatchers(file, actor, reference);
       synchronized (watchers) {
-        watchers.put(file.toString(), record);
+        watchers.put(file.getCacheKey(), record);
       }
       if (actor.act()) {
         synchronized (watchers) {
@@ -101,11 +135,11 @@ public class ImageLoader {
           final boolean isPersistent = file instanceof ImageFileRemote;
           final String cacheKey = file.getFileLoadKey();
 
-          ArrayList<String> actors = workers.get(cacheKey);
+          ArrayList<ImageCacheKey> actors = workers.get(cacheKey);
 
           if (actors == null) {
             actors = new ArrayList<>();
-            actors.add(file.toString());
+            actors.add(file.getCacheKey());
 
             if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
               Log.v(Log.TAG_IMAGE_LOADER, "#%s: loading from remote", file.toString());
@@ -128,15 +162,15 @@ public class ImageLoader {
               });
             } else {
               if (!Config.DEBUG_DISABLE_DOWNLOAD) {
-                tdlib.send(new TdApi.DownloadFile(fileId, TdlibFilesManager.PRIORITY_IMAGE, 0, 0, false), tdlib.imageLoadHandler());
+                tdlib.send(new TdApi.DownloadFile(fileId, getDownloadPriority(priority), 0, 0, false), tdlib.imageLoadHandler());
               }
             }
           } else {
-            if (!actors.contains(file.toString())) {
+            if (!actors.contains(file.getCacheKey())) {
               if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
                 Log.v(Log.TAG_IMAGE_LOADER, "#%s: another actor added to the loading list, total: %d", file.toString(), actors.size() + 1);
               }
-              actors.add(file.toString());
+              actors.add(file.getCacheKey());
             }
           }
         }
@@ -148,6 +182,24 @@ public class ImageLoader {
         }
         record.addWatcher(reference);
       }
+      if (priority < record.getActor().getPriority()) {
+        record.getActor().setPriority(priority);
+        raiseDownloadPriority(file, priority);
+      }
+    }
+  }
+
+  private void raiseDownloadPriority (ImageFile file, int priority) {
+    final Tdlib tdlib = file.tdlib();
+    if (tdlib == null || file instanceof ImageFileRemote || Config.DEBUG_DISABLE_DOWNLOAD)
+      return;
+    final boolean isLoading;
+    synchronized (watchers) {
+      isLoading = workers.containsKey(file.getFileLoadKey());
+    }
+    if (isLoading) {
+      // Prefetched file became visible while still downloading
+      tdlib.send(new TdApi.DownloadFile(file.getId(), getDownloadPriority(priority), 0, 0, false), tdlib.imageLoadHandler());
     }
   }
 
@@ -160,7 +212,7 @@ public class ImageLoader {
     Tdlib tdlib = persistentFile.tdlib();
 
     synchronized (watchers) {
-      ArrayList<String> actors = workers.get(persistentFile.getFileLoadKey());
+      ArrayList<ImageCacheKey> actors = workers.get(persistentFile.getFileLoadKey());
       if (actors != null && !actors.isEmpty()) {
         workers.put(ImageFile.getFileLoadKey(tdlib, file.id), actors);
       }
@@ -192,10 +244,10 @@ public class ImageLoader {
     }
 
     synchronized (watchers) {
-      ArrayList<String> itemsToRemove = null;
-      Set<Map.Entry<String, ImageWatchers>> entrySet = watchers.entrySet();
+      ArrayList<ImageCacheKey> itemsToRemove = null;
+      Set<Map.Entry<ImageCacheKey, ImageWatchers>> entrySet = watchers.entrySet();
 
-      for (Map.Entry<String, ImageWatchers> entry : entrySet) {
+      for (Map.Entry<ImageCacheKey, ImageWatchers> entry : entrySet) {
         ImageWatchers record = entry.getValue();
 
         if (record.removeWatcher(reference) && !record.hasWatchers()) {
@@ -208,7 +260,7 @@ public class ImageLoader {
       }
 
       if (itemsToRemove != null) {
-        for (String item : itemsToRemove) {
+        for (ImageCacheKey item : itemsToRemove) {
           ImageWatchers record = watchers.remove(item);
 
           if (record != null) {
@@ -221,7 +273,7 @@ public class ImageLoader {
             }
             final boolean isPersistent = file instanceof ImageFileRemote;
             final String cacheKey = file.getFileLoadKey();
-            final ArrayList<String> actors = workers.get(cacheKey);
+            final ArrayList<ImageCacheKey> actors = workers.get(cacheKey);
             if (actors != null && actors.remove(item) && actors.isEmpty()) {
               workers.remove(cacheKey);
               if (isPersistent && ((ImageFileRemote) file).isRemoteFileReady()) {
@@ -242,7 +294,7 @@ public class ImageLoader {
 
     synchronized (watchers) {
       String cacheKey = ImageFile.getFileLoadKey(tdlib, file.id);
-      ArrayList<String> actors = workers.get(cacheKey); // remoteFiles.get(file.id) != null ? loadingRemoteFiles.get(file.remote.id) : loadingFiles.get(file.id);
+      ArrayList<ImageCacheKey> actors = workers.get(cacheKey); // remoteFiles.get(file.id) != null ? loadingRemoteFiles.get(file.remote.id) : loadingFiles.get(file.id);
       if (actors == null) {
         cacheKey = ImageFile.getFileLoadKey(tdlib, file.remote.id);
         actors = workers.get(cacheKey);
@@ -254,7 +306,7 @@ public class ImageLoader {
 
       float progress = TD.getFileProgress(file);
 
-      for (String actor : actors) {
+      for (ImageCacheKey actor : actors) {
         ImageWatchers record = watchers.get(actor);
         if (record != null) {
           record.getFile().updateFile(file);
@@ -282,13 +334,13 @@ public class ImageLoader {
     boolean found = false;
 
     synchronized (watchers) {
-      ArrayList<String> actors = workers.get(ImageFile.getFileLoadKey(tdlib, file.id));
+      ArrayList<ImageCacheKey> actors = workers.get(ImageFile.getFileLoadKey(tdlib, file.id));
       if (actors == null) {
         actors = workers.get(ImageFile.getFileLoadKey(tdlib, file.remote.id));
       }
 
       if (actors != null) {
-        for (String actor : actors) {
+        for (ImageCacheKey actor : actors) {
           ImageWatchers record = watchers.get(actor);
           if (record != null) {
             thread.onLoad(record.getActor(), file);
@@ -316,7 +368,7 @@ public class ImageLoader {
     }
 
     synchronized (watchers) {
-      ImageWatchers record = watchers.get(file.toString());
+      ImageWatchers record = watchers.get(file.getCacheKey());
 
       if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
         if (success) {
@@ -327,7 +379,7 @@ public class ImageLoader {
       }
 
       if (record != null) {
-        watchers.remove(file.toString());
+        watchers.remove(file.getCacheKey());
 
         for (WatcherReference reference : record.getWatchers()) {
           reference.imageLoaded(file, success, bitmap);
@@ -340,17 +392,17 @@ public class ImageLoader {
           if (Log.isEnabled(Log.TAG_IMAGE_LOADER)) {
             Log.d(Log.TAG_IMAGE_LOADER, "#%s: recycling, because there will be no references", file.toString());
           }
-          bitmap.recycle();
+          BitmapPool.instance().put(bitmap);
         }
       }
 
       final boolean isRemote = file instanceof ImageFileRemote;
       final Tdlib tdlib = file.tdlib();
       final String cacheKey = file.getFileLoadKey();
-      ArrayList<String> actors = workers.get(cacheKey);
+      ArrayList<ImageCacheKey> actors = workers.get(cacheKey);
 
       if (actors != null) {
-        if (actors.remove(file.toString()) && actors.isEmpty()) {
+        if (actors.remove(file.getCacheKey()) && actors.isEmpty()) {
           workers.remove(cacheKey);
           if (isRemote && ((ImageFileRemote) file).isRemoteFileReady()) {
             workers.remove(ImageFile.getFileLoadKey(tdlib, file.getId()));
@@ -370,11 +422,11 @@ public class ImageLoader {
       if (accountId == TdlibAccount.NO_ID) {
         workers.clear();
       } else {
-        Set<Map.Entry<String, ArrayList<String>>> entrySet = workers.entrySet();
+        Set<Map.Entry<String, ArrayList<ImageCacheKey>>> entrySet = workers.entrySet();
         ArrayList<String> keysToRemove = null;
         String prefix = accountId + "_";
         // String remotePrefix = accountId + "_remote_";
-        for (Map.Entry<String, ArrayList<String>> entry : entrySet) {
+        for (Map.Entry<String, ArrayList<ImageCacheKey>> entry : entrySet) {
           String key = entry.getKey();
           if (key.startsWith(prefix)) {
             if (keysToRemove == null) {
@@ -385,7 +437,7 @@ public class ImageLoader {
         }
         if (keysToRemove != null) {
           for (String key : keysToRemove) {
-            ArrayList<String> actors = workers.remove(key);
+            ArrayList<ImageCacheKey> actors = workers.remove(key);
             if (actors != null && !actors.isEmpty()) {
               // TODO ?
             }
@@ -394,9 +446,9 @@ public class ImageLoader {
       }
 
       if (!watchers.isEmpty()) {
-        Set<Map.Entry<String, ImageWatchers>> entrySet = watchers.entrySet();
+        Set<Map.Entry<ImageCacheKey, ImageWatchers>> entrySet = watchers.entrySet();
 
-        for (Map.Entry<String, ImageWatchers> entry : entrySet) {
+        for (Map.Entry<ImageCacheKey, ImageWatchers> entry : entrySet) {
           ImageWatchers record = entry.getValue();
 
           ImageFile file = record.getFile();
@@ -34,6 +34,11 @@ public class ImageMp3File extends ImageFile {
     return path;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String buildImageKey () {
     return getSize() != 0 ? path + "?" + getSize() : path;
@@ -33,6 +33,7 @@ import org.thunderdog.challegram.Log;
 import org.thunderdog.challegram.N;
 import org.thunderdog.challegram.U;
 import org.thunderdog.challegram.config.Config;
+import org.thunderdog.challegram.core.BaseThread;
 import org.thunderdog.challegram.filegen.TdlibFileGenerationManager;
 import org.thunderdog.challegram.loader.svg.SvgRender;
 import org.thunderdog.challegram.support.Mp3Support;
@@ -58,14 +59,16 @@ public class ImageReader {
     return instance;
   }
 
-  private static byte[] bytesThumb;
+  // Per decoder thread, since images are decoded in parallel
+  private static final ThreadLocal<byte[]> bytesThumb = new ThreadLocal<>();
 
-  private final ImageReaderThread imageThread, videoThread, memThread;
+  private final BaseThread imageThread, videoThread;
+  private final ImageDecodePool decodePool;
 
   private ImageReader () {
-    imageThread = new ImageReaderThread();
-    videoThread = new ImageReaderThread();
-    memThread = new ImageReaderThread();
+    imageThread = new BaseThread("ImageReaderThread");
+    videoThread = new BaseThread("ImageVideoThread");
+    decodePool = new ImageDecodePool();
   }
 
   public void post (Runnable r) {
@@ -76,15 +79,27 @@ public class ImageReader {
     videoThread.post(r, 0);
   }
 
-  @SuppressWarnings (value={"SpellCheckingInspection", "deprecation"})
   public void readImage (final ImageActor actor, final ImageFile file, final String path, final Listener listener) {
-    ImageReaderThread thread = file.getBytes() != null ? memThread : file instanceof ImageVideoThumbFile || file instanceof ImageMp3File || (file instanceof ImageGalleryFile && ((ImageGalleryFile) file).isVideo()) ? videoThread : imageThread;
+    decodePool.submit(actor, file, path, listener);
+  }
 
-    if (Thread.currentThread() != thread) {
-      thread.readImage(actor, file, path, listener);
-      return;
-    }
+  void cancel (ImageActor actor) {
+    decodePool.cancel(actor);
+  }
 
+  void updatePriority (ImageActor actor) {
+    decodePool.updatePriority(actor);
+  }
+
+  /**
+   * Decode pool counters, for the debug screen.
+   */
+  public String getDecodeStats () {
+    return decodePool.getStats();
+  }
+
+  @SuppressWarnings (value={"SpellCheckingInspection", "deprecation"})
+  void decode (final ImageActor actor, final ImageFile file, final String path, final Listener listener) {
     if (actor.isCancelled()) {
       return;
     }
@@ -311,12 +326,13 @@ public class ImageReader {
             bitmap = null;
           } else {
             int len = (int) f.length();
-            byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-            if (data == null) {
-              bytesThumb = data = new byte[len];
+            byte[] data = bytesThumb.get();
+            if (data == null || data.length < len) {
+              bytesThumb.set(data = new byte[len]);
             }
             f.readFully(data, 0, len);
-            bitmap = BitmapFactory.decodeByteArray(data, 0, len, opts);
+            final byte[] buffer = data;
+            bitmap = decodePooled(opts, options -> BitmapFactory.decodeByteArray(buffer, 0, len, options));
             f.close();
           }
         } else {
@@ -353,9 +369,11 @@ public class ImageReader {
           }
 
           if (bitmap == null) {
-            try (FileInputStream is = new FileInputStream(cacheFile)) {
-              bitmap = BitmapFactory.decodeStream(is, null, opts);
-            }
+            bitmap = decodePooled(opts, options -> {
+              try (FileInputStream is = new FileInputStream(cacheFile)) {
+                return BitmapFactory.decodeStream(is, null, options);
+              }
+            });
           }
         }
       }
@@ -398,6 +416,40 @@ public class ImageReader {
     return bitmap;
   }
 
+  private interface BitmapDecoder {
+    Bitmap decode (BitmapFactory.Options options) throws IOException;
+  }
+
+  /**
+   * Decodes into a bitmap from {@link BitmapPool} when there's one matching the expected size,
+   * falls back to a new bitmap when the decoder can't reuse it.
+   */
+  private static Bitmap decodePooled (BitmapFactory.Options opts, BitmapDecoder decoder) throws IOException {
+    Bitmap reusable = null;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && opts.outWidth > 0 && opts.outHeight > 0 && (!opts.inPurgeable || Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)) {
+      // Decoder rounds sample size down to a power of two
+      int sampleSize = Integer.highestOneBit(Math.max(1, opts.inSampleSize));
+      reusable = BitmapPool.instance().take((opts.outWidth + sampleSize - 1) / sampleSize, (opts.outHeight + sampleSize - 1) / sampleSize, opts.inPreferredConfig, false);
+    }
+    if (reusable != null) {
+      opts.inBitmap = reusable;
+      opts.inMutable = true;
+      try {
+        Bitmap bitmap = decoder.decode(opts);
+        if (bitmap == null) {
+          BitmapPool.instance().put(reusable);
+        }
+        return bitmap;
+      } catch (IllegalArgumentException e) {
+        Log.w(Log.TAG_IMAGE_LOADER, "Cannot decode into pooled bitmap, width: %d, height: %d", e, reusable.getWidth(), reusable.getHeight());
+        BitmapPool.instance().put(reusable);
+      } finally {
+        opts.inBitmap = null;
+      }
+    }
+    return decoder.decode(opts);
+  }
+
   private void readMp3AlbumCover (ImageMp3File file, Listener listener) {
     String mp3Path = file.getPath();
 
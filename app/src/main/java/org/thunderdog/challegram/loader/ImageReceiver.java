@@ -778,7 +778,7 @@ public class ImageReceiver implements Watcher, ValueAnimator.AnimatorUpdateListe
   // returns @boolean invalidated
 
   private static boolean sameFiles (ImageFile file1, ImageFile file2) {
-    return (file1 == file2) || ((file1 != null ? file1.getType() : 0) == (file2 != null ? file2.getType() : 0) && StringUtils.equalsOrBothEmpty(file1 != null ? file1.toString() : null, file2 != null ? file2.toString() : null));
+    return (file1 == file2) || (file1 != null && file2 != null && file1.getType() == file2.getType() && file1.getCacheKey().equals(file2.getCacheKey()));
   }
 
   public boolean setBundle (ImageFile file, Bitmap bitmap, boolean local) {
@@ -32,8 +32,8 @@ public class ImageThread extends BaseThread {
     super("ImageThread");
   }
 
-  public void request (ImageFile file, WatcherReference reference) {
-    sendMessage(Message.obtain(getHandler(), REQUEST, new Object[] {file, reference}), 0);
+  public void request (ImageFile file, WatcherReference reference, int priority) {
+    sendMessage(Message.obtain(getHandler(), REQUEST, priority, 0, new Object[] {file, reference}), 0);
   }
 
   public void removeWatcher (WatcherReference reference) {
@@ -62,7 +62,7 @@ public class ImageThread extends BaseThread {
       case REQUEST: {
         Object[] data = (Object[]) msg.obj;
 
-        ImageLoader.instance().requestFile((ImageFile) data[0], (WatcherReference) data[1]);
+        ImageLoader.instance().requestFile((ImageFile) data[0], (WatcherReference) data[1], msg.arg1);
 
         data[0] = null;
         data[1] = null;
@@ -66,6 +66,11 @@ public class ImageVideoThumbFile extends ImageFile {
     return maxHeight;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   public String buildImageKey () {
     StringBuilder b = buildStandardKey(new StringBuilder("video_"));
@@ -15,6 +15,7 @@
 package org.thunderdog.challegram.loader.gif;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.view.View;
 
 import androidx.annotation.IntDef;
@@ -31,6 +32,7 @@ import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.data.TD;
 import org.thunderdog.challegram.data.TGMessageSticker;
 import org.thunderdog.challegram.emoji.Emoji;
+import org.thunderdog.challegram.loader.ImageCacheKey;
 import org.thunderdog.challegram.player.TGPlayerController;
 import org.thunderdog.challegram.telegram.Tdlib;
 import org.thunderdog.challegram.telegram.TdlibFilesManager;
@@ -47,7 +49,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import me.vkryl.android.ViewUtils;
 import me.vkryl.core.BitwiseUtils;
@@ -74,7 +75,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
   private @Nullable GifState gif;
   private final long[] metadata;
   private final double[] lottieMetadata;
-  private final GifThread thread;
+  private final GifFrameScheduler.ActorQueue queue;
   private final boolean isLottie;
   private int lottieCacheState = LOTTIE_CACHE_NONE;
 
@@ -82,6 +83,10 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     return isLottie;
   }
 
+  public GifFile getFile () {
+    return file;
+  }
+
   private final Client.ResultHandler remoteFileHandler;
   private final Client.ResultHandler fileLoadHandler;
 
@@ -89,15 +94,16 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
 
   private final boolean isPlayOnce;
 
-  public GifActor (final GifFile file, GifThread thread) {
+  public GifActor (final GifFile file, int priority) {
     this.isPlayOnce = file.isPlayOnce();
     file.setVibrationPattern(Emoji.VIBRATION_PATTERN_NONE);
     this.maxFrameRate = file.hasOptimizations() || Settings.instance().getNewSetting(Settings.SETTING_FLAG_LIMIT_STICKERS_FPS) ? REDUCED_MAX_FRAME_RATE : DEFAULT_MAX_FRAME_RATE;
     this.isLottie = file.getGifType() == GifFile.TYPE_TG_LOTTIE;
     this.metadata = new long[N.DECODER_METADATA_ARRAY_SIZE];
     this.lottieMetadata = new double[3];
-    this.thread = thread;
+    this.queue = GifFrameScheduler.instance().newQueue(this, priority);
     this.file = file;
+    this.decodeSize = isLottie ? getLottieDecodeSize(file) : 0;
     this.isPlaybackFrozen = isFrozen(file);
 
     this.remoteFileHandler = new Client.ResultHandler() {
@@ -209,7 +215,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
         file.tdlib().client().send(new TdApi.CancelDownloadFile(file.getFileId(), false), fileLoadHandler);
         flags &= ~FLAG_LOADING_FILE;
       } else {
-        thread.onDestroy(this);
+        queue.onDestroy();
       }
     }
   }
@@ -241,7 +247,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     Td.copyTo(file, localFile);
 
     if ((flags & FLAG_CANCELLED) == 0) {
-      thread.startDecoding(this, file.local.path);
+      queue.startDecoding(file.local.path);
     }
   }
 
@@ -303,12 +309,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
           nativePtr = 0;
         }
         if (lottieCacheFile != null) {
-          LottieCache.instance().checkFile(file,
-            lottieCacheFile,
-            deleteLottieCacheFile || file.isOneTimeCache(),
-            lottieCacheFileSize,
-            file.getFitzpatrickType()
-          );
+          LottieFrameCache.instance().release(lottieCacheFile, deleteLottieCacheFile);
         }
       } else {
         N.destroyDecoder(nativePtr);
@@ -317,12 +318,61 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     }
   }
 
+  static int getLottieDecodeSize (GifFile file) {
+    final int resolution;
+    switch (file.getOptimizationMode()) {
+      case GifFile.OptimizationMode.EMOJI:
+        resolution = Math.min(100, Screen.dp(20f));
+        break;
+      case GifFile.OptimizationMode.STICKER_PREVIEW:
+        resolution = Math.min(Math.max(EmojiMediaListController.getEstimateColumnResolution(), StickersListController.getEstimateColumnResolution()), 160);
+        break;
+      case GifFile.OptimizationMode.EMOJI_PREVIEW:
+        resolution = Math.min(Screen.dp(40), 120);
+        break;
+      case GifFile.OptimizationMode.NONE:
+        resolution = Math.min(Screen.dp(TGMessageSticker.MAX_STICKER_SIZE), 384);
+        break;
+      default:
+        throw new UnsupportedOperationException();
+    }
+    return file.getRequestedSize() != 0 ? Math.min(file.getRequestedSize(), resolution) : resolution;
+  }
+
+  private int decodeSize;
+  private boolean isDecodeSizeFixed;
+
+  // GifBridge thread
+
+  /**
+   * Raises size of lottie frames for a receiver that joined this actor,
+   * unless decoding has already started.
+   *
+   * @return false if frames are already being decoded at a noticeably smaller size
+   */
+  boolean requestDecodeSize (int size) {
+    synchronized (this) {
+      if (!isLottie || size <= decodeSize) {
+        return true;
+      }
+      if (!isDecodeSizeFixed) {
+        decodeSize = size;
+        return true;
+      }
+      // Slightly smaller frames are upscaled rather than decoded again
+      return size <= decodeSize + decodeSize / 4;
+    }
+  }
+
   // Decoder thread
   public void startDecoding (String path) {
+    final int decodeSize;
     synchronized (this) {
       if (isCancelled()) {
         return;
       }
+      isDecodeSizeFixed = true;
+      decodeSize = this.decodeSize;
     }
     int width, height;
     boolean error;
@@ -335,24 +385,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       file.setTotalFrameCount(totalFrameCount);
       frameRate = lottieMetadata[1];
       double durationSeconds = lottieMetadata[2];
-      final int resolution;
-      switch (file.getOptimizationMode()) {
-        case GifFile.OptimizationMode.EMOJI:
-          resolution = Math.min(100, Screen.dp(20f));
-          break;
-        case GifFile.OptimizationMode.STICKER_PREVIEW:
-          resolution = Math.min(Math.max(EmojiMediaListController.getEstimateColumnResolution(), StickersListController.getEstimateColumnResolution()), 160);
-          break;
-        case GifFile.OptimizationMode.EMOJI_PREVIEW:
-          resolution = Math.min(Screen.dp(40), 120);
-          break;
-        case GifFile.OptimizationMode.NONE:
-          resolution = Math.min(Screen.dp(TGMessageSticker.MAX_STICKER_SIZE), 384);
-          break;
-        default:
-          throw new UnsupportedOperationException();
-      }
-      width = height = file.getRequestedSize() != 0 ? Math.min(file.getRequestedSize(), resolution) : resolution;
+      width = height = decodeSize;
       error = totalFrameCount <= 0 || frameRate <= 0 || (durationSeconds <= 0 && totalFrameCount > 1);
       if (totalFrameCount == 1) {
         file.setIsStill(true);
@@ -404,10 +437,11 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     if (isPlayingRoundVideo) {
       lastTimeStamp = 0;
     }
-    GifBridge.instance().onGifLoaded(file, gif);
+    GifBridge.instance().onGifLoaded(this, gif);
   }
 
   private volatile long lastTimeStamp;
+  private volatile long nextFrameDelayMs;
   private volatile double lastFrameNo;
   private long totalFrameCount;
   private double frameRate;
@@ -418,7 +452,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       this.gif = gif;
     }
     if (!isPlaybackFrozen) {
-      thread.prepareNextFrame(this);
+      queue.prepareNextFrame(SystemClock.uptimeMillis() + nextFrameDelayMs);
       scheduleNext(false);
     } else {
       GifBridge.instance().dispatchGifFrameChanged(file, gif, false);
@@ -450,7 +484,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     }
     boolean res = N.seekVideoToStart(nativePtr);
     if (res) {
-      prepareNextFrame();
+      prepareNextFrame(0);
     }
   }
 
@@ -458,7 +492,6 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
   private static final double REDUCED_MAX_FRAME_RATE = 30.0;
 
   private File lottieCacheFile;
-  private int lottieCacheFileSize;
 
   @Retention(RetentionPolicy.SOURCE)
   @IntDef({
@@ -471,15 +504,26 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     int OK = 0, NEED_CREATE = 1, ERROR = 2, CANCELED = 3;
   }
 
-  // Decoder thread
-  public void prepareNextFrame () {
+  // GifBridge thread
+  void setPriority (int priority) {
+    queue.setPriority(priority);
+  }
+
+  /**
+   * Decoder thread
+   *
+   * @param lateMs how late the frame is already, frames are skipped to catch up when possible
+   * @return number of skipped frames
+   */
+  public int prepareNextFrame (long lateMs) {
     GifState gif;
     synchronized (gifLock) {
       gif = this.gif;
     }
     if (gif == null) {
-      return;
+      return 0;
     }
+    int droppedFrameCount = 0;
     boolean gifRestarted = false;
     boolean success = false;
     boolean async = false;
@@ -488,7 +532,13 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       double desiredNextFrameNo;
       if (isLottie) {
         double frameDelta = frameDelta();
-        desiredNextFrameNo = lastFrameNo + frameDelta;
+        if (lateMs > 0 && !isPlayOnce && (lottieCacheState == LOTTIE_CACHE_CREATED || lottieCacheState == LOTTIE_CACHE_ERROR) && file.getVibrationPattern() == Emoji.VIBRATION_PATTERN_NONE) {
+          long frameIntervalMs = (long) (1000.0 / Math.min(maxFrameRate(), frameRate));
+          if (frameIntervalMs > 0 && lateMs >= frameIntervalMs) {
+            droppedFrameCount = (int) Math.min(lateMs / frameIntervalMs, totalFrameCount);
+          }
+        }
+        desiredNextFrameNo = lastFrameNo + frameDelta * (1 + droppedFrameCount);
         if ((long) desiredNextFrameNo >= totalFrameCount) {
           file.onLoop();
           desiredNextFrameNo = 0;
@@ -514,14 +564,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       if (isLottie) {
         switch (lottieCacheState) {
           case LOTTIE_CACHE_NONE: {
-            lottieCacheFile = LottieCache.getCacheFile(
-              file,
-              file.isOneTimeCache(),
-              lottieCacheFileSize = Math.max(free.getWidth(), free.getHeight()),
-              file.getFitzpatrickType(),
-              file.getOptimizationMode() == GifFile.OptimizationMode.EMOJI ? TimeUnit.MINUTES.toMillis(30) : TimeUnit.MINUTES.toMillis(2),
-              8
-            );
+            lottieCacheFile = LottieFrameCache.instance().acquire(file, Math.max(free.getWidth(), free.getHeight()));
             // final boolean cacheExisted = lottieCacheFile != null && lottieCacheFile.exists();
             int status;
             boolean skipOddFrames = frameRate == 60.0 && maxFrameRate == 30.0;
@@ -550,7 +593,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
                 }*/
                 lottieCacheState = LOTTIE_CACHE_CREATING;
                 async = true;
-                LottieCache.instance().thread(file.getOptimizationMode()).post(() -> {
+                LottieFrameCache.instance().thread(file.getOptimizationMode()).post(() -> {
                   int newStatus;
                   synchronized (nativeSync) {
                     if (nativePtr == 0)
@@ -619,11 +662,12 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       }
     }
     if (isCancelled()) {
-      return;
+      return droppedFrameCount;
     }
     if (success) {
       GifBridge.instance().nextFrameReady(this, gifRestarted);
     }
+    return droppedFrameCount;
   }
 
   // GifStage thread
@@ -685,6 +729,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     }
 
     final long frameDelayMs = Math.max(file.hasOptimizations() ? 5 : frameRate <= 30.0 ? 4 : 1, (long) (frameDelay - Math.floor(screenFrameRateDelay)));
+    this.nextFrameDelayMs = frameDelayMs;
 
     synchronized (this) {
       if ((flags & FLAG_CANCELLED) == 0) {
@@ -787,7 +832,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
         }
         if (isPlayingRoundVideo) {
           if (TdlibManager.instance().player().isPlayingMessage(file.getChatId(), file.getMessageId())) {
-            thread.prepareStartFrame(this);
+            queue.prepareStartFrame();
             if (lastTimeStamp != 0) {
               scheduleNext(true);
             }
@@ -795,7 +840,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
           return false;
         }
         if (GifBridge.instance().canScheduleNextFrame(this, file.getFileId())) {
-          thread.prepareNextFrame(this);
+          queue.prepareNextFrame(SystemClock.uptimeMillis() + nextFrameDelayMs);
           scheduleNext(false);
           return true;
         }
@@ -906,7 +951,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
     restartGif(gifFile, null);
   }
 
-  private static Map<String, List<Runnable>> restartCallbacks = null;
+  private static Map<ImageCacheKey, List<Runnable>> restartCallbacks = null;
 
   public static void restartGif (@NonNull GifFile gifFile, @Nullable Runnable after) {
     if (gifFile.isStill() || gifFile.isRoundVideo() || gifFile.isLottie()) {
@@ -926,7 +971,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       return;
     }
     boolean seekToStart = false;
-    String key = gifFile.toString();
+    ImageCacheKey key = gifFile.getDecoderKey();
     List<Runnable> callbacks = null;
     if (after != null) {
       synchronized (GifActor.class) {
@@ -942,7 +987,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
       }
     }
     for (GifActor actor : activeActors) {
-      if (actor.file.toString().equals(key)) {
+      if (actor.file.getDecoderKey().equals(key)) {
         if (actor.seekToStart()) {
           seekToStart = true;
         }
@@ -963,7 +1008,7 @@ public class GifActor implements GifState.Callback, TGPlayerController.TrackChan
   }
 
   static void onGifRestarted (@NonNull GifFile gifFile) {
-    String key = gifFile.toString();
+    ImageCacheKey key = gifFile.getDecoderKey();
     List<Runnable> callbacks;
     synchronized (GifActor.class) {
       if (restartCallbacks == null) {
@@ -23,10 +23,12 @@ import androidx.collection.ArraySet;
 
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.loader.ImageCacheKey;
 import org.thunderdog.challegram.telegram.Tdlib;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -43,59 +45,34 @@ public class GifBridge {
     return instance;
   }
 
-  private static final int THREAD_POOL_SIZE = 2;
   private final GifBridgeThread thread;
-  private final HashMap<String, GifRecord> records = new HashMap<>();
+  private final HashMap<ImageCacheKey, GifRecord> records = new HashMap<>();
   private final HashMap<Integer, ArrayList<GifRecord>> fileIdToRecordList = new HashMap<>();
   private final ArrayList<GifRecord> playingRoundVideos = new ArrayList<>();
-  // TODO: rework to executors
-  private int lastUsedThread, lastUsedEmojiThread;
-  private final GifThread[] threads, emojiThreads;
-  private final GifThread[] lottieThreads;
+  private volatile int sharedDecoderCount, resizedDecoderCount;
 
   private GifBridge () {
     thread = new GifBridgeThread();
-    // TODO: rework to executors
-    threads = new GifThread[THREAD_POOL_SIZE];
-    for (int i = 0; i < threads.length; i++) {
-      threads[i] = new GifThread(i);
-    }
-    emojiThreads = new GifThread[THREAD_POOL_SIZE];
-    for (int i = 0; i < emojiThreads.length; i++) {
-      emojiThreads[i] = new GifThread(i);
-    }
-    lottieThreads = new GifThread[5];
-    for (int i = 0; i < lottieThreads.length; i++) {
-      lottieThreads[i] = new GifThread(i);
-    }
   }
 
-  private GifThread obtainFrameThread (GifFile file) {
-    if (file.getGifType() == GifFile.TYPE_TG_LOTTIE) {
-      if (file.isHighPriorityForDecode()) {
-        return lottieThreads[lottieThreads.length - 1];
-      }
-      return lottieThreads[file.getOptimizationMode()];
-    } else {
-      // TODO rework to executors
-      if (file.getOptimizationMode() == GifFile.OptimizationMode.EMOJI) {
-        if (++lastUsedEmojiThread == THREAD_POOL_SIZE) {
-          lastUsedEmojiThread = 0;
-        }
-        return emojiThreads[lastUsedEmojiThread];
-      } else {
-        if (++lastUsedThread == THREAD_POOL_SIZE) {
-          lastUsedThread = 0;
-        }
-        return threads[lastUsedThread];
-      }
+  private static int getDecodePriority (GifFile file, boolean isVisible) {
+    if (file.isHighPriorityForDecode()) {
+      return GifFrameScheduler.PRIORITY_HIGH;
     }
+    return isVisible ? GifFrameScheduler.PRIORITY_VISIBLE : GifFrameScheduler.PRIORITY_BACKGROUND;
   }
 
   public GifBridgeThread getBaseThread () {
     return thread;
   }
 
+  /**
+   * Frame decoder threads utilisation, dropped frames and shared decoders, for the debug screen.
+   */
+  public String getFrameSchedulerStats () {
+    return GifFrameScheduler.getStats() + String.format(Locale.US, ", shared decoders %d, resized %d", sharedDecoderCount, resizedDecoderCount);
+  }
+
   @Keep
   private final Set<GifWatcher> tempWatchers = new ArraySet<>();
 
@@ -106,16 +83,20 @@ public class GifBridge {
     };
     tempWatchers.add(watcher);
     reference.set(new GifWatcherReference(watcher));
-    requestFile(file, reference.get());
+    requestFile(file, reference.get(), false);
   }
 
   public void requestFile (GifFile file, GifWatcherReference reference) {
+    requestFile(file, reference, true);
+  }
+
+  void requestFile (GifFile file, GifWatcherReference reference, boolean isVisible) {
     if (thread != Thread.currentThread()) {
-      thread.requestFile(file, reference);
+      thread.requestFile(file, reference, isVisible);
       return;
     }
 
-    String key = file.toString();
+    ImageCacheKey key = file.getDecoderKey();
 
     if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
       Log.i(Log.TAG_GIF_LOADER, "#%s: requestFile, type: %s, path: %s", key, file.getClass().getSimpleName(), file.getFilePath());
@@ -124,7 +105,7 @@ public class GifBridge {
     GifRecord record = records.get(key);
 
     if (record == null) {
-      GifActor actor = new GifActor(file, obtainFrameThread(file));
+      GifActor actor = new GifActor(file, getDecodePriority(file, isVisible));
       record = new GifRecord(file, actor, reference);
       synchronized (records) {
         records.put(key, record);
@@ -146,15 +127,60 @@ public class GifBridge {
       if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
         Log.i(Log.TAG_GIF_LOADER, "#%s: watched joined existing actor", key);
       }
+      if (!file.getCacheKey().equals(record.getFile().getCacheKey())) {
+        sharedDecoderCount++;
+      }
       synchronized (records) {
         record.addWatcher(reference);
       }
+      if (isVisible) {
+        int priority = getDecodePriority(file, true);
+        record.getActor().setPriority(priority);
+        GifActor pendingActor = record.getPendingActor();
+        if (pendingActor != null) {
+          pendingActor.setPriority(priority);
+        }
+      }
+      if (file.isLottie()) {
+        requestDecodeSize(record, file, getDecodePriority(file, isVisible));
+      }
+    }
+  }
+
+  private void requestDecodeSize (GifRecord record, GifFile file, int priority) {
+    final int size = GifActor.getLottieDecodeSize(file);
+    GifActor pendingActor = record.getPendingActor();
+    if (pendingActor != null ? pendingActor.requestDecodeSize(size) : record.getActor().requestDecodeSize(size)) {
+      return;
+    }
+    // Frames are already decoded at a smaller size. Receivers keep drawing them until the larger decoder is ready
+    GifActor actor = new GifActor(file, priority);
+    synchronized (records) {
+      pendingActor = record.setPendingActor(actor);
+    }
+    if (pendingActor != null) {
+      pendingActor.cancel();
+    }
+    resizedDecoderCount++;
+    if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
+      Log.i(Log.TAG_GIF_LOADER, "#%s: restarting decoder, size: %d", file.getDecoderKey(), size);
+    }
+    actor.act();
+  }
+
+  /**
+   * @return true if any receiver currently requests a file with the given id
+   */
+  @AnyThread
+  public boolean isFileRequested (int fileId) {
+    synchronized (records) {
+      return fileIdToRecordList.containsKey(fileId);
     }
   }
 
   public View findAnyView (GifFile file) {
     synchronized (records) {
-      GifRecord record = records.get(file.toString());
+      GifRecord record = records.get(file.getDecoderKey());
       if (record == null || !record.hasWatchers())
         return null;
       for (GifWatcherReference reference : record.getWatchers()) {
@@ -173,8 +199,8 @@ public class GifBridge {
     }
 
     synchronized (records) {
-      ArrayList<String> itemsToRemove = null;
-      for (HashMap.Entry<String, GifRecord> entry : records.entrySet()) {
+      ArrayList<ImageCacheKey> itemsToRemove = null;
+      for (HashMap.Entry<ImageCacheKey, GifRecord> entry : records.entrySet()) {
         GifRecord record = entry.getValue();
         if (record.removeWatcher(reference) && !record.hasWatchers()) {
           if (itemsToRemove == null) {
@@ -192,10 +218,14 @@ public class GifBridge {
         }
       }
       if (itemsToRemove != null) {
-        for (String item : itemsToRemove) {
+        for (ImageCacheKey item : itemsToRemove) {
           GifRecord record = records.remove(item);
           if (record != null) {
             record.getActor().cancel();
+            GifActor pendingActor = record.setPendingActor(null);
+            if (pendingActor != null) {
+              pendingActor.cancel();
+            }
             if (Log.isEnabled(Log.TAG_GIF_LOADER)) {
               Log.i(Log.TAG_GIF_LOADER, "#%s: actor cancelled", record.getFile().toString());
             }
@@ -263,22 +293,43 @@ public class GifBridge {
   }
 
   // Decoder thread
-  void onGifLoaded (GifFile file, GifState gif) {
+  void onGifLoaded (GifActor actor, GifState gif) {
     if (thread != Thread.currentThread()) {
-      thread.onGifLoad(file, gif);
+      thread.onGifLoad(actor, gif);
       return;
     }
 
+    GifActor replacedActor = null;
+    boolean isActive = false;
     synchronized (records) {
-      GifRecord record = records.get(file.toString());
+      GifRecord record = records.get(actor.getFile().getDecoderKey());
 
       if (record != null) {
-        for (GifWatcherReference reference : record.getWatchers()) {
-          reference.gifLoaded(file, gif);
+        if (record.getPendingActor() == actor) {
+          replacedActor = record.promotePendingActor();
+        }
+        if (record.getActor() == actor) {
+          for (GifWatcherReference reference : record.getWatchers()) {
+            reference.gifLoaded(actor.getFile(), gif);
+          }
+          actor.onGifLoaded(gif);
+          isActive = true;
         }
-        record.getActor().onGifLoaded(gif);
       }
     }
+
+    if (!isActive) {
+      // Actor was cancelled or replaced before its first frame, nobody has seen these frames
+      gif.recycle();
+    }
+
+    if (replacedActor != null) {
+      // Receivers switch to the new frames on the UI thread, previous frames can be released only after that
+      final GifActor previousActor = replacedActor;
+      GifReceiver.getHandler().post(() ->
+        thread.post(previousActor::cancel, 0)
+      );
+    }
   }
 
   @AnyThread
@@ -292,7 +343,7 @@ public class GifBridge {
   void onGifFrameDeadlineReached (GifFile file, GifState gif, boolean isRestart) {
     synchronized (records) {
       if (gif.setCanApplyNext()) {
-        GifRecord record = records.get(file.toString());
+        GifRecord record = records.get(file.getDecoderKey());
         if (record != null) {
           for (GifWatcherReference reference : record.getWatchers()) {
             reference.gifFrameChanged(file, isRestart);
@@ -31,8 +31,8 @@ public class GifBridgeThread extends BaseThread {
     super("GifThread");
   }
 
-  public void requestFile (GifFile file, GifWatcherReference reference) {
-    sendMessage(Message.obtain(getHandler(), REQUEST_FILE, new Object[] {file, reference}), 0);
+  public void requestFile (GifFile file, GifWatcherReference reference, boolean isVisible) {
+    sendMessage(Message.obtain(getHandler(), REQUEST_FILE, isVisible ? 1 : 0, 0, new Object[] {file, reference}), 0);
   }
 
   public void removeWatcher (GifWatcherReference reference) {
@@ -43,8 +43,8 @@ public class GifBridgeThread extends BaseThread {
     sendMessage(Message.obtain(getHandler(), LOAD_COMPLETE, new Object[] {actor, file}), 0);
   }
 
-  public void onGifLoad (GifFile file, GifState gif) {
-    sendMessage(Message.obtain(getHandler(), GIF_LOADED, new Object[] {file, gif}), 0);
+  public void onGifLoad (GifActor actor, GifState gif) {
+    sendMessage(Message.obtain(getHandler(), GIF_LOADED, new Object[] {actor, gif}), 0);
   }
 
   public boolean canScheduleNextFrame (GifActor actor, int fileId) {
@@ -79,7 +79,7 @@ public class GifBridgeThread extends BaseThread {
     switch (msg.what) {
       case REQUEST_FILE: {
         Object[] obj = (Object[]) msg.obj;
-        GifBridge.instance().requestFile((GifFile) obj[0], (GifWatcherReference) obj[1]);
+        GifBridge.instance().requestFile((GifFile) obj[0], (GifWatcherReference) obj[1], msg.arg1 == 1);
         obj[0] = null;
         obj[1] = null;
         break;
@@ -101,7 +101,7 @@ public class GifBridgeThread extends BaseThread {
       case GIF_LOADED: {
         Object[] obj = (Object[]) msg.obj;
 
-        GifBridge.instance().onGifLoaded((GifFile) obj[0], (GifState) obj[1]);
+        GifBridge.instance().onGifLoaded((GifActor) obj[0], (GifState) obj[1]);
 
         obj[0] = null;
         obj[1] = null;
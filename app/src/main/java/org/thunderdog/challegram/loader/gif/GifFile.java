@@ -22,6 +22,7 @@ import androidx.annotation.NonNull;
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.data.TD;
 import org.thunderdog.challegram.emoji.Emoji;
+import org.thunderdog.challegram.loader.ImageCacheKey;
 import org.thunderdog.challegram.telegram.Tdlib;
 import org.thunderdog.challegram.telegram.TdlibAccount;
 import org.thunderdog.challegram.unsorted.Settings;
@@ -363,10 +364,65 @@ public class GifFile {
   }
 
   private String key;
+  private ImageCacheKey cacheKey;
 
   @Override
   public int hashCode () {
-    return toString().hashCode();
+    return getCacheKey().hashCode();
+  }
+
+  /**
+   * Subclasses that override {@link #makeGifKey()} must return false.
+   */
+  protected boolean hasStandardKey () {
+    return true;
+  }
+
+  public final ImageCacheKey getCacheKey () {
+    ImageCacheKey cacheKey = this.cacheKey;
+    if (cacheKey == null) {
+      // Play-once ids, creation time and start timestamp are rare, these keep the string key
+      if (hasStandardKey() && !isUnique() && !isPlayOnce() && startMediaTimestamp == 0) {
+        cacheKey = ImageCacheKey.forGif(tdlib != null ? tdlib.id() : TdlibAccount.NO_ID, getFileId(), flags, optimizationMode, fitzpatrickType);
+      } else {
+        cacheKey = ImageCacheKey.forString(toString());
+      }
+      this.cacheKey = cacheKey;
+    }
+    return cacheKey;
+  }
+
+  private static final int SHARED_DECODER_FLAGS_MASK = ~FLAG_HIGH_PRIORITY_FOR_DECODE;
+  private static final int SHARED_DECODER_OPTIMIZATION_MODE = 0xffff;
+
+  private ImageCacheKey decoderKey;
+
+  /**
+   * Files with equal decoder keys are played by a single decoder, and all their receivers draw its frames.
+   *
+   * Optimized animations (custom emoji, sticker and emoji previews) of the same file share a decoder
+   * regardless of their optimization mode, decode priority and requested size, so the decoder is sized
+   * for the largest of them. Still frames and animations of the same file use separate decoders.
+   * Files relying on their own playback callbacks use {@link #getCacheKey()}.
+   */
+  public final ImageCacheKey getDecoderKey () {
+    ImageCacheKey decoderKey = this.decoderKey;
+    if (decoderKey == null) {
+      if (canShareDecoder()) {
+        decoderKey = ImageCacheKey.forGif(tdlib != null ? tdlib.id() : TdlibAccount.NO_ID, getFileId(), flags & SHARED_DECODER_FLAGS_MASK, SHARED_DECODER_OPTIMIZATION_MODE, fitzpatrickType);
+      } else {
+        decoderKey = getCacheKey();
+      }
+      this.decoderKey = decoderKey;
+    }
+    return decoderKey;
+  }
+
+  private boolean canShareDecoder () {
+    return optimizationMode != OptimizationMode.NONE && hasStandardKey() &&
+      !isUnique() && !isPlayOnce() && !isRoundVideo() && startMediaTimestamp == 0 &&
+      vibrationPattern == Emoji.VIBRATION_PATTERN_NONE && repeatsCounter < 0 &&
+      frameChangeListener == null && loopListeners == null && onTotalFrameCountLoadListener == null;
   }
 
   protected final StringBuilder makeCommonKey (StringBuilder b) {
@@ -31,6 +31,11 @@ public class GifFileLocal extends GifFile {
     this.path = path;
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   public String makeGifKey () {
     return path;
@@ -22,6 +22,11 @@ public class GifFileRemote extends GifFile {
     super(tdlib, TD.newFile(0, url, url, 0), type);
   }
 
+  @Override
+  protected boolean hasStandardKey () {
+    return false;
+  }
+
   @Override
   protected String makeGifKey () {
     return tdlib.id() + "_" + file.remote.id;
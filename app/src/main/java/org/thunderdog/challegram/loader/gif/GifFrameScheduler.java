@@ -0,0 +1,267 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.loader.gif;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import org.thunderdog.challegram.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs decoder work of all {@link GifActor}s on a pool of threads sized to the available cores.
+ *
+ * Each actor has its own queue, executed by at most one thread at a time, so native decoders are never
+ * used concurrently. Actors with pending work wait in a single ready queue ordered by priority,
+ * then by the deadline of their next task, and whichever thread is free picks the most urgent one.
+ * A heavy animation therefore occupies at most one thread, and the rest keeps serving everything else.
+ */
+final class GifFrameScheduler {
+  static final int PRIORITY_HIGH = 0;
+  static final int PRIORITY_VISIBLE = 1;
+  static final int PRIORITY_BACKGROUND = 2;
+
+  private static final int TASK_START_DECODING = 0;
+  private static final int TASK_PREPARE_NEXT_FRAME = 1;
+  private static final int TASK_PREPARE_START_FRAME = 2;
+  private static final int TASK_DESTROY = 3;
+
+  private static GifFrameScheduler instance;
+
+  static synchronized GifFrameScheduler instance () {
+    if (instance == null) {
+      instance = new GifFrameScheduler();
+    }
+    return instance;
+  }
+
+  private final Worker[] workers;
+  private final PriorityQueue<ActorQueue> readyQueue = new PriorityQueue<>();
+  private long nextSequence;
+
+  private final AtomicLong lateFrameCount = new AtomicLong(), droppedFrameCount = new AtomicLong();
+  private long lastStatsTime;
+
+  private GifFrameScheduler () {
+    int threadCount = Math.max(2, Math.min(6, Runtime.getRuntime().availableProcessors()));
+    workers = new Worker[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      workers[i] = new Worker(this, i);
+      workers[i].start();
+    }
+    lastStatsTime = System.nanoTime();
+  }
+
+  ActorQueue newQueue (GifActor actor, int priority) {
+    return new ActorQueue(actor, priority);
+  }
+
+  private static class Task {
+    final int type;
+    final String path;
+    final long deadline;
+
+    Task (int type, String path, long deadline) {
+      this.type = type;
+      this.path = path;
+      this.deadline = deadline;
+    }
+  }
+
+  final class ActorQueue implements Comparable<ActorQueue> {
+    private final GifActor actor;
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    private int priority;
+    private boolean isScheduled; // In the ready queue or running
+    private boolean isRunning;
+    private long sequence;
+
+    private ActorQueue (GifActor actor, int priority) {
+      this.actor = actor;
+      this.priority = priority;
+    }
+
+    // GifBridge thread
+    void startDecoding (String path) {
+      post(this, new Task(TASK_START_DECODING, path, SystemClock.uptimeMillis()));
+    }
+
+    /**
+     * @param deadline {@link SystemClock#uptimeMillis()} by which the frame should be ready
+     */
+    void prepareNextFrame (long deadline) {
+      post(this, new Task(TASK_PREPARE_NEXT_FRAME, null, deadline));
+    }
+
+    void prepareStartFrame () {
+      post(this, new Task(TASK_PREPARE_START_FRAME, null, SystemClock.uptimeMillis()));
+    }
+
+    // GifBridge thread
+    void onDestroy () {
+      // Frees decoder and frames as soon as possible
+      post(this, new Task(TASK_DESTROY, null, 0));
+    }
+
+    void setPriority (int priority) {
+      synchronized (GifFrameScheduler.this) {
+        if (this.priority == priority)
+          return;
+        boolean isQueued = isScheduled && !isRunning && readyQueue.remove(this);
+        this.priority = priority;
+        if (isQueued) {
+          readyQueue.add(this);
+        }
+      }
+    }
+
+    @Override
+    public int compareTo (@NonNull ActorQueue other) {
+      if (priority != other.priority)
+        return Integer.compare(priority, other.priority);
+      // Head task can't change while queue is waiting to be run
+      Task task = tasks.peek(), otherTask = other.tasks.peek();
+      long deadline = task != null ? task.deadline : Long.MAX_VALUE;
+      long otherDeadline = otherTask != null ? otherTask.deadline : Long.MAX_VALUE;
+      if (deadline != otherDeadline)
+        return Long.compare(deadline, otherDeadline);
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private synchronized void post (ActorQueue queue, Task task) {
+    queue.tasks.offer(task);
+    if (!queue.isScheduled) {
+      queue.isScheduled = true;
+      queue.sequence = nextSequence++;
+      readyQueue.add(queue);
+      notify();
+    }
+  }
+
+  private synchronized ActorQueue take () throws InterruptedException {
+    ActorQueue queue;
+    while ((queue = readyQueue.poll()) == null) {
+      wait();
+    }
+    queue.isRunning = true;
+    return queue;
+  }
+
+  private void runNext (ActorQueue queue) {
+    Task task;
+    synchronized (this) {
+      task = queue.tasks.poll();
+    }
+    if (task != null) {
+      try {
+        run(queue.actor, task);
+      } catch (Throwable t) {
+        Log.e(Log.TAG_GIF_LOADER, "GifActor task failed, type: %d", t, task.type);
+      }
+    }
+    synchronized (this) {
+      queue.isRunning = false;
+      if (queue.tasks.isEmpty()) {
+        queue.isScheduled = false;
+      } else {
+        queue.sequence = nextSequence++;
+        readyQueue.add(queue);
+        notify();
+      }
+    }
+  }
+
+  private void run (GifActor actor, Task task) {
+    switch (task.type) {
+      case TASK_START_DECODING:
+        actor.startDecoding(task.path);
+        break;
+      case TASK_PREPARE_NEXT_FRAME: {
+        long lateMs = SystemClock.uptimeMillis() - task.deadline;
+        int droppedFrameCount = actor.prepareNextFrame(lateMs);
+        if (lateMs > 0) {
+          lateFrameCount.incrementAndGet();
+        }
+        if (droppedFrameCount > 0) {
+          this.droppedFrameCount.addAndGet(droppedFrameCount);
+        }
+        break;
+      }
+      case TASK_PREPARE_START_FRAME:
+        actor.prepareStartFrame();
+        break;
+      case TASK_DESTROY:
+        actor.onDestroy();
+        break;
+    }
+  }
+
+  /**
+   * Utilisation of each thread since the previous call, late and dropped frames, for the debug screen.
+   */
+  static String getStats () {
+    GifFrameScheduler scheduler;
+    synchronized (GifFrameScheduler.class) {
+      scheduler = instance;
+    }
+    return scheduler != null ? scheduler.buildStats() : "Not started";
+  }
+
+  private synchronized String buildStats () {
+    long now = System.nanoTime();
+    long elapsed = Math.max(1, now - lastStatsTime);
+    lastStatsTime = now;
+    StringBuilder b = new StringBuilder();
+    b.append(workers.length).append(" threads, busy");
+    for (Worker worker : workers) {
+      long busyTime = worker.busyTime.getAndSet(0);
+      b.append(' ').append(Math.min(100, busyTime * 100 / elapsed)).append('%');
+    }
+    b.append(String.format(Locale.US, ", ready %d, late frames %d, dropped frames %d", readyQueue.size(), lateFrameCount.get(), droppedFrameCount.get()));
+    return b.toString();
+  }
+
+  private static class Worker extends Thread {
+    private final GifFrameScheduler scheduler;
+    private final AtomicLong busyTime = new AtomicLong();
+
+    Worker (GifFrameScheduler scheduler, int index) {
+      super("GifFrameThread#" + index);
+      this.scheduler = scheduler;
+    }
+
+    @Override
+    public void run () {
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        ActorQueue queue;
+        try {
+          queue = scheduler.take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        long startTime = System.nanoTime();
+        scheduler.runNext(queue);
+        busyTime.addAndGet(System.nanoTime() - startTime);
+      }
+    }
+  }
+}
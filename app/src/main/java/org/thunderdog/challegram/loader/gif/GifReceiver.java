@@ -409,6 +409,10 @@ public class GifReceiver implements GifWatcher, Runnable, Receiver {
   public void onLoad (GifFile file, GifState gif) {
     int fileId = this.file == null ? 0 : this.file.getFileId();
     if (file.getFileId() == fileId) {
+      if (this.gif != gif) {
+        // Frames may be pooled bitmaps previously used by another animation
+        clearShaderPaint();
+      }
       this.gif = gif;
       this.state = STATE_LOADED;
       layoutGif();
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 public class GifRecord {
   private GifFile file;
   private GifActor actor;
+  private GifActor pendingActor;
   private ArrayList<GifWatcherReference> watchers;
 
   public GifRecord (GifFile file, GifActor actor, GifWatcherReference reference) {
@@ -36,6 +37,27 @@ public class GifRecord {
     return actor;
   }
 
+  /**
+   * Actor decoding the same animation at a larger size, which replaces the current one once its first frame is ready.
+   */
+  public GifActor getPendingActor () {
+    return pendingActor;
+  }
+
+  public GifActor setPendingActor (GifActor actor) {
+    GifActor previousActor = this.pendingActor;
+    this.pendingActor = actor;
+    return previousActor;
+  }
+
+  public GifActor promotePendingActor () {
+    GifActor previousActor = this.actor;
+    this.actor = pendingActor;
+    this.file = pendingActor.getFile();
+    this.pendingActor = null;
+    return previousActor;
+  }
+
   public ArrayList<GifWatcherReference> getWatchers () {
     return watchers;
   }
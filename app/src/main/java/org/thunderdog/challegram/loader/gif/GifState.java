@@ -17,6 +17,7 @@ package org.thunderdog.challegram.loader.gif;
 import android.graphics.Bitmap;
 
 import org.thunderdog.challegram.U;
+import org.thunderdog.challegram.loader.BitmapPool;
 
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -85,7 +86,7 @@ public class GifState {
   public boolean init (FrameReader reader, int numInit, Bitmap.Config config) {
     synchronized (busy) {
       for (int i = 0; i < queueSize; i++) {
-        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        Bitmap bitmap = BitmapPool.instance().obtain(width, height, config);
         if (bitmap == null) {
           return false;
         }
@@ -148,14 +149,16 @@ public class GifState {
   }
 
   private void recycleImpl () {
+    // Frames are drawn only under the busy lock, so nobody can see them after the lists are cleared
+    BitmapPool pool = BitmapPool.instance();
     for (Frame bitmap : busy) {
-      if (bitmap != null && !bitmap.isRecycled()) {
-        bitmap.recycle();
+      if (bitmap != null) {
+        pool.put(bitmap.bitmap);
       }
     }
     for (Frame bitmap : free) {
-      if (bitmap != null && !bitmap.isRecycled()) {
-        bitmap.recycle();
+      if (bitmap != null) {
+        pool.put(bitmap.bitmap);
       }
     }
     busy.clear();
@@ -0,0 +1,442 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.loader.gif;
+
+import androidx.annotation.Nullable;
+
+import org.thunderdog.challegram.Log;
+import org.thunderdog.challegram.core.BaseThread;
+import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.telegram.TdlibAccount;
+import org.thunderdog.challegram.unsorted.Settings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import me.vkryl.core.FileUtils;
+import me.vkryl.core.unit.ByteUnit;
+
+/**
+ * Pre-rendered lottie frames written by {@code N.createLottieCache}.
+ *
+ * Files are tracked by a single index file with their access time, size and optimization mode,
+ * kept in memory in least recently used order. Files of optimized animations (emoji, previews)
+ * are deleted as soon as no decoder uses them. The rest are kept until the total size exceeds
+ * the budget or they were not used for a long time, and then evicted oldest first in small batches,
+ * so the cache directory is never scanned as a whole after the index is built.
+ *
+ * All index operations run on the cache thread.
+ */
+public class LottieFrameCache {
+  private static volatile LottieFrameCache instance;
+
+  public static LottieFrameCache instance () {
+    if (instance == null) {
+      synchronized (LottieFrameCache.class) {
+        if (instance == null) {
+          instance = new LottieFrameCache();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static final String INDEX_FILE_NAME = "index";
+  private static final int INDEX_VERSION = 1;
+  private static final String LEGACY_KEY_PREFIX = "lottie_";
+  private static final String ONE_TIME_FOLDER_PREFIX = "thumbs";
+
+  private static final long MAX_SIZE = ByteUnit.MIB.toBytes(64);
+  private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+  private static final int EVICTION_BATCH_SIZE = 4;
+  private static final long EVICTION_DELAY_MS = 1000;
+  private static final long SAVE_DELAY_MS = 5000;
+
+  private static class Entry {
+    final String path; // Relative to the cache directory
+    final boolean isOneTime;
+    final int optimizationMode;
+    long accessTime;
+    long size;
+    int useCount;
+    boolean needDelete;
+
+    Entry (String path, boolean isOneTime, int optimizationMode) {
+      this.path = path;
+      this.isOneTime = isOneTime;
+      this.optimizationMode = optimizationMode;
+    }
+  }
+
+  private final BaseThread gcThread = new BaseThread("LottieCacheGcThread");
+  private final BaseThread[] threadPool = new BaseThread[4];
+
+  // Cache thread only
+  private LinkedHashMap<String, Entry> entries; // Least recently used first
+  private boolean isTrimScheduled, isSaveScheduled;
+
+  private volatile int entryCount;
+  private volatile long totalSize, hitCount, missCount, evictionCount;
+
+  private final Runnable trimRunnable = this::trimStep;
+  private final Runnable saveRunnable = this::saveIndex;
+
+  private LottieFrameCache () { }
+
+  public BaseThread thread (int optimizationLevel) {
+    if (threadPool[optimizationLevel] == null) {
+      threadPool[optimizationLevel] = new BaseThread("LottieCacheThread-" + optimizationLevel);
+    }
+    return threadPool[optimizationLevel];
+  }
+
+  public static File getCacheDir () {
+    return new File(TD.getCacheDir(true), "tgs");
+  }
+
+  private static String getFolderName (int size, boolean isOneTime, int fitzpatrickType) {
+    String folderName = isOneTime ? ONE_TIME_FOLDER_PREFIX + size : Integer.toString(size);
+    if (fitzpatrickType != 0) {
+      folderName += "_" + fitzpatrickType;
+    }
+    return folderName;
+  }
+
+  /**
+   * @return file where frames of the given animation at the given size are cached, or {@code null} when it can't be created.
+   * Must be released with {@link #release(File, boolean)} once the decoder no longer uses it.
+   */
+  @Nullable
+  public File acquire (GifFile file, int size) {
+    final boolean isOneTime = file.isOneTimeCache();
+    final int accountId = file.tdlib() != null ? file.tdlib().id() : TdlibAccount.NO_ID;
+    final String path = accountId + "/" + getFolderName(size, isOneTime, file.getFitzpatrickType()) + "/" + new File(file.getFilePath()).getName();
+    final File cacheFile = new File(getCacheDir(), path);
+    if (!FileUtils.createDirectory(cacheFile.getParentFile())) {
+      return null;
+    }
+    final int optimizationMode = file.getOptimizationMode();
+    final long accessTime = System.currentTimeMillis();
+    gcThread.post(() -> {
+      LinkedHashMap<String, Entry> entries = entries();
+      Entry entry = entries.get(path);
+      if (entry == null) {
+        entry = new Entry(path, isOneTime, optimizationMode);
+        entries.put(path, entry);
+        entryCount = entries.size();
+        missCount++;
+      } else {
+        hitCount++;
+      }
+      entry.accessTime = accessTime;
+      entry.useCount++;
+      if (!entry.isOneTime) {
+        scheduleSave();
+      }
+    }, 0);
+    return cacheFile;
+  }
+
+  /**
+   * Called once decoder no longer uses the file.
+   *
+   * @param delete whether the file is broken and must be deleted
+   */
+  public void release (File cacheFile, boolean delete) {
+    final long accessTime = System.currentTimeMillis();
+    gcThread.post(() -> {
+      String path = getRelativePath(cacheFile);
+      Entry entry = path != null ? entries().get(path) : null;
+      if (entry == null) {
+        if (delete && !cacheFile.delete() && cacheFile.exists()) {
+          Log.w(Log.TAG_GIF_LOADER, "Cannot delete lottie cache file: %s", cacheFile);
+        }
+        return;
+      }
+      entry.useCount = Math.max(0, entry.useCount - 1);
+      entry.needDelete = entry.needDelete || delete || entry.isOneTime;
+      if (entry.useCount == 0 && entry.needDelete) {
+        removeEntry(entry, cacheFile);
+      } else {
+        entry.accessTime = accessTime;
+        setSize(entry, cacheFile.length());
+      }
+      if (!entry.isOneTime) {
+        scheduleSave();
+      }
+      scheduleTrim();
+    }, 0);
+  }
+
+  /**
+   * Deletes files of optimized animations that are no longer used, e.g. left after the process was killed,
+   * and starts eviction if needed.
+   */
+  public void gc () {
+    gcThread.post(() -> {
+      LinkedHashMap<String, Entry> entries = entries();
+      File[] accountDirs = getCacheDir().listFiles();
+      if (accountDirs != null) {
+        for (File accountDir : accountDirs) {
+          File[] oneTimeDirs = accountDir.listFiles((dir, name) -> "0".equals(name) || name.startsWith(ONE_TIME_FOLDER_PREFIX));
+          if (oneTimeDirs == null)
+            continue;
+          for (File oneTimeDir : oneTimeDirs) {
+            File[] files = oneTimeDir.listFiles();
+            if (files == null)
+              continue;
+            for (File file : files) {
+              Entry entry = entries.get(accountDir.getName() + "/" + oneTimeDir.getName() + "/" + file.getName());
+              if (entry == null || entry.useCount == 0) {
+                if (entry != null) {
+                  removeEntry(entry, file);
+                } else {
+                  FileUtils.delete(file, true);
+                }
+              }
+            }
+          }
+        }
+      }
+      scheduleTrim();
+    }, 0);
+  }
+
+  public boolean clear () {
+    if (FileUtils.delete(getCacheDir(), true)) {
+      gcThread.post(() -> {
+        if (entries != null) {
+          entries.clear();
+          entryCount = 0;
+          totalSize = 0;
+        }
+        gcThread.cancel(trimRunnable);
+        isTrimScheduled = false;
+      }, 0);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Index size and usage counters, for the debug screen.
+   */
+  public String getStats () {
+    return String.format(Locale.US, "%d files, %.1f/%d MB, hits %d, misses %d, evicted %d",
+      entryCount, totalSize / 1024f / 1024f, MAX_SIZE / (1024 * 1024), hitCount, missCount, evictionCount
+    );
+  }
+
+  // Index
+
+  private static File getIndexFile () {
+    return new File(getCacheDir(), INDEX_FILE_NAME);
+  }
+
+  @Nullable
+  private static String getRelativePath (File cacheFile) {
+    String cacheDir = getCacheDir().getPath() + "/";
+    String path = cacheFile.getPath();
+    return path.startsWith(cacheDir) ? path.substring(cacheDir.length()) : null;
+  }
+
+  private LinkedHashMap<String, Entry> entries () {
+    if (entries == null) {
+      entries = new LinkedHashMap<>(64, .75f, true);
+      if (!loadIndex()) {
+        entries.clear();
+        totalSize = 0;
+        rebuildIndex();
+        scheduleSave();
+      }
+      entryCount = entries.size();
+    }
+    return entries;
+  }
+
+  private boolean loadIndex () {
+    File indexFile = getIndexFile();
+    if (!indexFile.exists())
+      return false;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      if (in.readInt() != INDEX_VERSION)
+        return false;
+      final File cacheDir = getCacheDir();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry(in.readUTF(), false, in.readByte());
+        entry.accessTime = in.readLong();
+        entry.size = in.readLong();
+        if (new File(cacheDir, entry.path).exists()) {
+          entries.put(entry.path, entry);
+          totalSize += entry.size;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot read lottie cache index", e);
+      return false;
+    }
+  }
+
+  /**
+   * Adds files left by previous versions, which kept access times in settings, to the index.
+   */
+  private void rebuildIndex () {
+    Settings.instance().pmc().removeByPrefix(LEGACY_KEY_PREFIX);
+    File[] accountDirs = getCacheDir().listFiles();
+    if (accountDirs == null)
+      return;
+    for (File accountDir : accountDirs) {
+      File[] folders = accountDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith(ONE_TIME_FOLDER_PREFIX));
+      if (folders == null)
+        continue;
+      for (File folder : folders) {
+        File[] files = folder.listFiles();
+        if (files == null)
+          continue;
+        for (File file : files) {
+          Entry entry = new Entry(accountDir.getName() + "/" + folder.getName() + "/" + file.getName(), false, GifFile.OptimizationMode.NONE);
+          entry.accessTime = file.lastModified();
+          entry.size = file.length();
+          entries.put(entry.path, entry);
+          totalSize += entry.size;
+        }
+      }
+    }
+  }
+
+  private void scheduleSave () {
+    if (!isSaveScheduled) {
+      isSaveScheduled = true;
+      gcThread.post(saveRunnable, SAVE_DELAY_MS);
+    }
+  }
+
+  private void saveIndex () {
+    isSaveScheduled = false;
+    if (entries == null)
+      return;
+    File indexFile = getIndexFile();
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+    if (!FileUtils.createDirectory(indexFile.getParentFile()))
+      return;
+    int count = 0;
+    for (Entry entry : entries.values()) {
+      if (!entry.isOneTime) {
+        count++;
+      }
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(INDEX_VERSION);
+      out.writeInt(count);
+      for (Entry entry : entries.values()) {
+        if (entry.isOneTime)
+          continue;
+        out.writeUTF(entry.path);
+        out.writeByte(entry.optimizationMode);
+        out.writeLong(entry.accessTime);
+        out.writeLong(entry.size);
+      }
+    } catch (IOException e) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot write lottie cache index", e);
+      tempFile.delete();
+      return;
+    }
+    if (!tempFile.renameTo(indexFile)) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot replace lottie cache index");
+      tempFile.delete();
+    }
+  }
+
+  // Eviction
+
+  private void setSize (Entry entry, long size) {
+    totalSize += size - entry.size;
+    entry.size = size;
+  }
+
+  private void removeEntry (Entry entry, @Nullable File file) {
+    if (file == null) {
+      file = new File(getCacheDir(), entry.path);
+    }
+    if (!file.delete() && file.exists()) {
+      Log.w(Log.TAG_GIF_LOADER, "Cannot delete lottie cache file: %s", file);
+      return;
+    }
+    entries.remove(entry.path);
+    entryCount = entries.size();
+    setSize(entry, 0);
+  }
+
+  private boolean needTrim () {
+    if (entries == null || entries.isEmpty())
+      return false;
+    if (totalSize > MAX_SIZE)
+      return true;
+    Entry eldest = entries.values().iterator().next();
+    return System.currentTimeMillis() - eldest.accessTime >= MAX_AGE_MS;
+  }
+
+  private void scheduleTrim () {
+    if (!isTrimScheduled && needTrim()) {
+      isTrimScheduled = true;
+      gcThread.post(trimRunnable, EVICTION_DELAY_MS);
+    }
+  }
+
+  private void trimStep () {
+    isTrimScheduled = false;
+    if (entries == null)
+      return;
+    final long now = System.currentTimeMillis();
+    int removedCount = 0;
+    Iterator<Entry> it = entries.values().iterator();
+    while (removedCount < EVICTION_BATCH_SIZE && it.hasNext()) {
+      Entry entry = it.next();
+      if (totalSize <= MAX_SIZE && now - entry.accessTime < MAX_AGE_MS)
+        break;
+      if (entry.useCount > 0)
+        continue;
+      File file = new File(getCacheDir(), entry.path);
+      if (!file.delete() && file.exists()) {
+        Log.w(Log.TAG_GIF_LOADER, "Cannot evict lottie cache file: %s", file);
+        continue;
+      }
+      it.remove();
+      setSize(entry, 0);
+      evictionCount++;
+      removedCount++;
+    }
+    if (removedCount > 0) {
+      entryCount = entries.size();
+      scheduleSave();
+      if (removedCount == EVICTION_BATCH_SIZE) {
+        // Continue with the next batch later, so decoders using the cache thread are not delayed
+        scheduleTrim();
+      }
+    }
+  }
+}
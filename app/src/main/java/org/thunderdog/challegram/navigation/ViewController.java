@@ -90,6 +90,7 @@ import org.thunderdog.challegram.theme.ThemeDeprecated;
 import org.thunderdog.challegram.theme.ThemeListenerEntry;
 import org.thunderdog.challegram.theme.ThemeListenerList;
 import org.thunderdog.challegram.theme.ThemeManager;
+import org.thunderdog.challegram.tool.FrameDispatcher;
 import org.thunderdog.challegram.tool.Intents;
 import org.thunderdog.challegram.tool.Keyboard;
 import org.thunderdog.challegram.tool.Paints;
@@ -567,6 +568,18 @@ public abstract class ViewController<T> implements Future<View>, ThemeChangeList
     }
   }
 
+  /**
+   * Runs {@code runnable} on the next frame, unless this controller gets destroyed by then.
+   * Pending runnable posted with the same {@code key} is dropped, see {@link FrameDispatcher#key(Object, int, long)}.
+   */
+  public final void runOnUiFrameOptional (@Nullable Object key, @NonNull Runnable runnable) {
+    FrameDispatcher.instance().postCoalesced(key, () -> {
+      if (!isDestroyed()) {
+        runnable.run();
+      }
+    });
+  }
+
   protected final void runOnUiThread (@NonNull Runnable runnable) {
     UI.post(runnable);
   }
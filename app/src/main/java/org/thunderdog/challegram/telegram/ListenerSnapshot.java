@@ -0,0 +1,156 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.telegram;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import me.vkryl.core.lambda.RunnableData;
+
+/**
+ * Weakly referenced listeners, dispatched from an immutable array.
+ *
+ * Adding or removing a listener publishes a new array, so dispatch is a plain loop
+ * without locks, iterators or allocations, and listeners may unsubscribe while being notified.
+ * References cleared by GC are skipped and dropped on the next change, or once a dispatch finds them.
+ */
+final class ListenerSnapshot<T> {
+  @SuppressWarnings("rawtypes")
+  private static final WeakReference[] EMPTY = new WeakReference[0];
+
+  @SuppressWarnings("unchecked")
+  private volatile WeakReference<T>[] snapshot = EMPTY;
+
+  @AnyThread
+  public synchronized boolean add (@NonNull T listener) {
+    WeakReference<T>[] updated = added(snapshot, listener);
+    if (updated == null) {
+      return false;
+    }
+    snapshot = updated;
+    return true;
+  }
+
+  @AnyThread
+  public synchronized boolean remove (@NonNull T listener) {
+    WeakReference<T>[] updated = removed(snapshot, listener);
+    if (updated == null) {
+      return false;
+    }
+    snapshot = updated;
+    return true;
+  }
+
+  @AnyThread
+  public void run (@NonNull RunnableData<? super T> act) {
+    if (dispatch(snapshot, act)) {
+      synchronized (this) {
+        WeakReference<T>[] updated = removed(snapshot, null);
+        if (updated != null) {
+          snapshot = updated;
+        }
+      }
+    }
+  }
+
+  // Copy-on-write helpers, also used by ListenerSnapshotLongMap
+
+  /**
+   * @return new array with the listener appended and cleared references dropped, or null when it's already there
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static <T> WeakReference<T>[] added (@NonNull WeakReference<T>[] snapshot, @NonNull T listener) {
+    int aliveCount = 0;
+    for (WeakReference<T> reference : snapshot) {
+      T current = reference.get();
+      if (current == listener) {
+        return null;
+      }
+      if (current != null) {
+        aliveCount++;
+      }
+    }
+    WeakReference<T>[] updated = new WeakReference[aliveCount + 1];
+    int index = 0;
+    for (WeakReference<T> reference : snapshot) {
+      if (reference.get() != null && index < aliveCount) {
+        updated[index++] = reference;
+      }
+    }
+    if (index < aliveCount) {
+      // Cleared by GC between the two passes
+      updated = Arrays.copyOf(updated, index + 1);
+    }
+    updated[index] = new WeakReference<>(listener);
+    return updated;
+  }
+
+  /**
+   * @param listener listener to remove, or null to drop only cleared references
+   * @return new array without the listener and cleared references, or null when nothing changed
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static <T> WeakReference<T>[] removed (@NonNull WeakReference<T>[] snapshot, @Nullable T listener) {
+    int keepCount = 0;
+    for (WeakReference<T> reference : snapshot) {
+      T current = reference.get();
+      if (current != null && current != listener) {
+        keepCount++;
+      }
+    }
+    if (keepCount == snapshot.length) {
+      return null;
+    }
+    if (keepCount == 0) {
+      return empty();
+    }
+    WeakReference<T>[] updated = new WeakReference[keepCount];
+    int index = 0;
+    for (WeakReference<T> reference : snapshot) {
+      T current = reference.get();
+      if (current != null && current != listener && index < keepCount) {
+        updated[index++] = reference;
+      }
+    }
+    return index == keepCount ? updated : Arrays.copyOf(updated, index);
+  }
+
+  /**
+   * @return true when a cleared reference was found
+   */
+  static <T> boolean dispatch (@NonNull WeakReference<T>[] snapshot, @NonNull RunnableData<? super T> act) {
+    boolean hasCleared = false;
+    for (WeakReference<T> reference : snapshot) {
+      T listener = reference.get();
+      if (listener != null) {
+        act.runWithData(listener);
+      } else {
+        hasCleared = true;
+      }
+    }
+    return hasCleared;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> WeakReference<T>[] empty () {
+    return EMPTY;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.telegram;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.collection.LongSparseArray;
+
+import java.lang.ref.WeakReference;
+
+import me.vkryl.core.lambda.RunnableData;
+
+/**
+ * Weakly referenced listeners per id, see {@link ListenerSnapshot}.
+ *
+ * The whole map is replaced on every change, so looking up listeners of an id
+ * is a binary search over a map nobody modifies anymore.
+ */
+final class ListenerSnapshotLongMap<T> {
+  private volatile LongSparseArray<WeakReference<T>[]> snapshot = new LongSparseArray<>();
+
+  @AnyThread
+  public synchronized boolean add (long key, @NonNull T listener) {
+    WeakReference<T>[] current = snapshot.get(key);
+    WeakReference<T>[] updated = ListenerSnapshot.added(current != null ? current : ListenerSnapshot.empty(), listener);
+    if (updated == null) {
+      return false;
+    }
+    LongSparseArray<WeakReference<T>[]> map = snapshot.clone();
+    map.put(key, updated);
+    snapshot = map;
+    return true;
+  }
+
+  @AnyThread
+  public synchronized boolean remove (long key, @NonNull T listener) {
+    return replace(key, listener);
+  }
+
+  private boolean replace (long key, T listener) {
+    WeakReference<T>[] current = snapshot.get(key);
+    if (current == null) {
+      return false;
+    }
+    WeakReference<T>[] updated = ListenerSnapshot.removed(current, listener);
+    if (updated == null) {
+      return false;
+    }
+    LongSparseArray<WeakReference<T>[]> map = snapshot.clone();
+    if (updated.length == 0) {
+      map.remove(key);
+      // Removal is lazy, compact before publishing so readers never cause a write
+      map.size();
+    } else {
+      map.put(key, updated);
+    }
+    snapshot = map;
+    return true;
+  }
+
+  @AnyThread
+  public void run (long key, @NonNull RunnableData<? super T> act) {
+    WeakReference<T>[] listeners = snapshot.get(key);
+    if (listeners != null && ListenerSnapshot.dispatch(listeners, act)) {
+      synchronized (this) {
+        replace(key, null);
+      }
+    }
+  }
+}
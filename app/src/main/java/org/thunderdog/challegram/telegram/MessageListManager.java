@@ -19,6 +19,7 @@ import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 import org.thunderdog.challegram.Log;
 import org.thunderdog.challegram.data.DeletedMessagesManager;
+import org.thunderdog.challegram.data.GhostMessageMerger;
 import org.thunderdog.challegram.data.TD;
 
 import java.util.ArrayList;
@@ -218,14 +219,19 @@ public final class MessageListManager extends ListManager<TdApi.Message> impleme
     long fromMessageId = this.items.isEmpty() ? startFromMessageId : this.items.get(reverse ? 0 : this.items.size() - 1).id;
     if (hasFilter()) {
       if (reverse) {
+        lastRequest = new Request(fromMessageId, -loadCount, loadCount + 1, false);
         return new TdApi.SearchChatMessages(chatId, topicId, query, sender, fromMessageId, -loadCount, loadCount + 1, filter);
       } else {
-        return new TdApi.SearchChatMessages(chatId, topicId, query, sender, nextSearchFromMessageId != null && nextSearchFromMessageId != 0 ? nextSearchFromMessageId : fromMessageId, 0, loadCount, filter);
+        long searchFromMessageId = nextSearchFromMessageId != null && nextSearchFromMessageId != 0 ? nextSearchFromMessageId : fromMessageId;
+        lastRequest = new Request(searchFromMessageId, 0, loadCount, false);
+        return new TdApi.SearchChatMessages(chatId, topicId, query, sender, searchFromMessageId, 0, loadCount, filter);
       }
     } else {
       if (reverse) {
+        lastRequest = new Request(fromMessageId, -itemCount, itemCount + 1, !onlyLocalReverseEndReached);
         return new TdApi.GetChatHistory(chatId, fromMessageId, -itemCount, itemCount + 1, !onlyLocalReverseEndReached);
       } else {
+        lastRequest = new Request(fromMessageId, 0, itemCount, !onlyLocalEndReached);
         return new TdApi.GetChatHistory(chatId, fromMessageId, 0, itemCount, !onlyLocalEndReached);
       }
     }
@@ -233,6 +239,24 @@ public final class MessageListManager extends ListManager<TdApi.Message> impleme
 
   private Long nextSearchFromMessageId;
 
+  /**
+   * Anchor, offset and limit of the request in flight, ghost messages are injected within its window.
+   */
+  private static final class Request {
+    private final long fromMessageId;
+    private final int offset, limit;
+    private final boolean onlyLocal;
+
+    Request (long fromMessageId, int offset, int limit, boolean onlyLocal) {
+      this.fromMessageId = fromMessageId;
+      this.offset = offset;
+      this.limit = limit;
+      this.onlyLocal = onlyLocal;
+    }
+  }
+
+  private volatile Request lastRequest;
+
   @Override
   protected ListManager.Response<TdApi.Message> processResponse (TdApi.Object response, Client.ResultHandler retryHandler, int retryLoadCount, boolean reverse) {
     List<TdApi.Message> messages;
@@ -255,25 +279,16 @@ public final class MessageListManager extends ListManager<TdApi.Message> impleme
         throw new UnsupportedOperationException(response.toString());
     }
 
-    // Inject Ghost Messages (Anti-Delete)
-    List<TdApi.Message> ghosts = DeletedMessagesManager.getInstance().getDeletedMessages(chatId);
-    if (!ghosts.isEmpty()) {
-        android.util.Log.e("ANTIDELETE", "Injecting " + ghosts.size() + " ghost messages into chat " + chatId);
-        if (messages.isEmpty()) {
-             messages = new ArrayList<>(ghosts);
-        } else {
-             List<TdApi.Message> merged = new ArrayList<>(messages);
-             merged.addAll(ghosts);
-             messages = merged;
-        }
-        Collections.sort(messages, this);
-        totalCount += ghosts.size();
-    } else {
-         android.util.Log.e("ANTIDELETE", "No ghost messages found for chat " + chatId);
+    // Inject Ghost Messages (Anti-Delete), only those within the id window of this page
+    Request request = lastRequest;
+    TdApi.Message[] page = messages.toArray(new TdApi.Message[0]);
+    boolean canReachEnd = response.getConstructor() == TdApi.FoundChatMessages.CONSTRUCTOR ? reverse || nextSearchFromMessageId == 0 : !request.onlyLocal;
+    TdApi.Message[] merged = GhostMessageMerger.inject(chatId, page, request.fromMessageId, request.offset, request.limit, canReachEnd, this::matchesFilter);
+    if (merged != page) {
+      totalCount += merged.length - page.length;
+      messages = Arrays.asList(merged);
     }
 
-
-
     if (!hasFilter() && messages.isEmpty()) {
       if (reverse) {
         onlyLocalReverseEndReached = true;
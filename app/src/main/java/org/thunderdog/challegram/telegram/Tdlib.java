@@ -73,6 +73,7 @@ import org.thunderdog.challegram.navigation.ViewController;
 import org.thunderdog.challegram.sync.SyncHelper;
 import org.thunderdog.challegram.theme.ColorId;
 import org.thunderdog.challegram.theme.Theme;
+import org.thunderdog.challegram.tool.FrameDispatcher;
 import org.thunderdog.challegram.tool.Strings;
 import org.thunderdog.challegram.tool.UI;
 import org.thunderdog.challegram.ui.EditRightsController;
@@ -80,6 +81,8 @@ import org.thunderdog.challegram.unsorted.Passcode;
 import org.thunderdog.challegram.unsorted.Settings;
 import org.thunderdog.challegram.util.ChangeLogList;
 import org.thunderdog.challegram.util.DrawableProvider;
+import org.thunderdog.challegram.util.LongIntMap;
+import org.thunderdog.challegram.util.LongObjectMap;
 import org.thunderdog.challegram.util.UserProvider;
 import org.thunderdog.challegram.util.WrapperProvider;
 import org.thunderdog.challegram.util.text.Letters;
@@ -460,23 +463,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       if (running) {
         long ms = SystemClock.uptimeMillis();
         if (object instanceof TdApi.Update) {
-          // Ghost Mode Hooks
           int constructor = object.getConstructor();
-          if (constructor == TdApi.UpdateNewMessage.CONSTRUCTOR) {
-              TdApi.UpdateNewMessage update = (TdApi.UpdateNewMessage) object;
-              if (update.message != null) {
-                  org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().cacheMessage(update.message);
-              }
-          } else if (constructor == TdApi.UpdateMessageContent.CONSTRUCTOR) {
-              TdApi.UpdateMessageContent update = (TdApi.UpdateMessageContent) object;
-              org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().saveEditVersion(update.chatId, update.messageId, org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().getCachedMessage(update.messageId) != null ? org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().getCachedMessage(update.messageId).content : null);
-              org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().updateMessageContent(update.chatId, update.messageId, update.newContent);
-          } else if (constructor == TdApi.UpdateDeleteMessages.CONSTRUCTOR) {
-              android.util.Log.e("ANTIDELETE", "UpdateDeleteMessages in listener - SKIPPED (processing in main handler)");
-          } else if (constructor == TdApi.UpdateFile.CONSTRUCTOR) {
-              TdApi.UpdateFile update = (TdApi.UpdateFile) object;
-              org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().updateFile(update.file);
-          } else if (constructor == TdApi.UpdateChatActiveStories.CONSTRUCTOR) {
+          if (constructor == TdApi.UpdateChatActiveStories.CONSTRUCTOR) {
               tdlib.updateChatActiveStories((TdApi.UpdateChatActiveStories) object);
           } else if (constructor == TdApi.UpdateStory.CONSTRUCTOR) {
               tdlib.updateStory((TdApi.UpdateStory) object);
@@ -485,6 +473,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
           }
 
           tdlib.processUpdate(this, (TdApi.Update) object);
+          // After processUpdate, so tap observers see the state it leaves behind, e.g. messages marked as deleted
+          tdlib.updateTap.offer((TdApi.Update) object);
         } else {
           Log.e("Invalid update type: %s", object);
         }
@@ -533,8 +523,13 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   private @ConnectionState int connectionState = ConnectionState.UNKNOWN;
 
   private final Object clientLock = new Object();
+  // Guards chats and everything else that is not guarded by one of the locks below
   private final Object dataLock = new Object();
-  private final HashMap<Long, TdApi.Chat> chats = new HashMap<>();
+  // Guards stories state, so story updates and reads don't contend with chat updates.
+  // Chat lists, counters, online member counts and forum topics are guarded by their own collections.
+  // When nested, always taken after dataLock
+  private final Object storyLock = new Object();
+  private final LongObjectMap<TdApi.Chat> chats = new LongObjectMap<>();
   private final HashMap<Long, TdApi.ChatActiveStories> activeStories = new HashMap<>();
   private final SparseIntArray storyListChatCount = new SparseIntArray();
   private final SparseArrayCompat<StoryList> storyLists = new SparseArrayCompat<>();
@@ -544,13 +539,14 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     animatedTgxEmoji = new StickerSet(AnimatedEmojiListener.TYPE_TGX, "AnimatedTgxEmojies", false),
     animatedDiceExplicit = new StickerSet(AnimatedEmojiListener.TYPE_DICE, "BetterDice", true);
   private final HashSet<Long> knownChatIds = new HashSet<>();
-  private final HashMap<Long, Integer> chatOnlineMemberCount = new HashMap<>();
+  private final LongIntMap chatOnlineMemberCount = new LongIntMap();
   private final TdlibCache cache;
   private final TdlibEmojiManager emoji;
   private final TdlibEmojiReactionsManager reactions;
   private final TdlibOutlineManager outline;
   private final TdlibSingleton<TdApi.Stickers> genericReactionEffects;
   private final TdlibListeners listeners;
+  private final TdlibUpdateTap updateTap;
   private final TdlibFilesManager filesManager;
   private final TdlibStatusManager statusManager;
   private final TdlibContactManager contactManager;
@@ -588,12 +584,14 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @NonNull
   public TdlibCounter getCounter (@NonNull TdApi.ChatList chatList) {
     final String key = TD.makeChatListKey(chatList);
-    TdlibCounter counter = counters.get(key);
-    if (counter == null) {
-      counter = new TdlibCounter(-1, -1, -1, -1, -1, -1, -1);
-      counters.put(key, counter);
+    synchronized (counters) {
+      TdlibCounter counter = counters.get(key);
+      if (counter == null) {
+        counter = new TdlibCounter(-1, -1, -1, -1, -1, -1, -1);
+        counters.put(key, counter);
+      }
+      return counter;
     }
-    return counter;
   }
 
   private int installedStickerSetLimit = 200;
@@ -721,6 +719,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     }
     this.unreadReactionsManager = new TdlibSingleUnreadReactionsManager(this);
     this.editMediaManager = new TdlibEditMediaManager(this);
+    this.updateTap = new TdlibUpdateTap(this);
+    DeletedMessagesManager.getInstance().subscribe(updateTap);
     this.applicationConfigJson = settings().getApplicationConfig();
     if (!StringUtils.isEmpty(applicationConfigJson)) {
       TdApi.JsonValue value = JSON.parse(applicationConfigJson);
@@ -2439,6 +2439,10 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     return listeners;
   }
 
+  public TdlibUpdateTap updateTap () {
+    return updateTap;
+  }
+
   public TdlibStatusManager status () {
     return statusManager;
   }
@@ -2685,11 +2689,11 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   public int chatOnlineMemberCount (long chatId) {
     if (chatId == 0)
       return 0;
-    final Integer onlineMemberCount;
-    synchronized (dataLock) {
-      onlineMemberCount = chatOnlineMemberCount.get(chatId);
+    final int onlineMemberCount;
+    synchronized (chatOnlineMemberCount) {
+      onlineMemberCount = chatOnlineMemberCount.get(chatId, 0);
     }
-    return onlineMemberCount != null && onlineMemberCount > 1 ? onlineMemberCount : 0;
+    return onlineMemberCount > 1 ? onlineMemberCount : 0;
   }
 
   public int chatMemberCount (long chatId) {
@@ -2729,7 +2733,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   public @Nullable TdApi.ForumTopicInfo forumTopicInfo (long chatId, long messageThreadId) {
     String cacheKey = chatId + "_" + messageThreadId;
-    synchronized (dataLock) {
+    synchronized (forumTopicInfos) {
       return forumTopicInfos.get(cacheKey);
     }
   }
@@ -2812,7 +2816,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   }
 
   public java.util.List<Long> getActiveStoryChatIds() {
-      synchronized (dataLock) {
+      synchronized (storyLock) {
           java.util.List<Long> result = new java.util.ArrayList<>();
           if (activeStories != null) {
               for (java.util.Map.Entry<Long, TdApi.ChatActiveStories> entry : activeStories.entrySet()) {
@@ -4690,6 +4694,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       }
       if (controllers.size() == 1) {
         openedChatsTimes.put(chatId, (int) (System.currentTimeMillis() / 1000l));
+        DeletedMessagesManager.getInstance().setChatOpened(chatId, true);
         if (Log.isEnabled(Log.TAG_MESSAGES_LOADER)) {
           Log.v(Log.TAG_MESSAGES_LOADER, "openChat, chatId=%d", chatId);
         }
@@ -4726,6 +4731,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       if (controllers != null && controllers.remove(controller) && controllers.isEmpty()) {
         openedChatsTimes.delete(chatId);
         openedChats.remove(chatId);
+        DeletedMessagesManager.getInstance().setChatOpened(chatId, false);
         if (Log.isEnabled(Log.TAG_MESSAGES_LOADER)) {
           Log.v(Log.TAG_MESSAGES_LOADER, "closeChat, chatId=%d", chatId);
         }
@@ -4824,7 +4830,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     sendMessage(chatId, topicId, replyTo, options, inputMessageContent);
   }
 
-  private TdApi.InputMessageContent processDeletedReply(TdApi.InputMessageReplyTo replyTo, TdApi.InputMessageContent content) {
+  private TdApi.InputMessageContent processDeletedReply(long chatId, TdApi.InputMessageReplyTo replyTo, TdApi.InputMessageContent content) {
     android.util.Log.e("ANTIDELETE", "processDeletedReply called, replyTo=" + (replyTo != null) + " content=" + (content != null));
     if (replyTo == null || content == null) return content;
     
@@ -4844,7 +4850,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     }
     
     android.util.Log.e("ANTIDELETE", "Message IS deleted! Getting text...");
-    String deletedText = DeletedMessagesManager.getInstance().getDeletedMessageText(repliedMessageId);
+    String deletedText = DeletedMessagesManager.getInstance().getDeletedMessageText(chatId, repliedMessageId);
     if (deletedText == null || deletedText.isEmpty()) {
       android.util.Log.e("ANTIDELETE", "Deleted text is null or empty");
       return content;
@@ -4903,7 +4909,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
        }
     }
     
-    TdApi.InputMessageContent processedContent = processDeletedReply(replyTo, inputMessageContent);
+    TdApi.InputMessageContent processedContent = processDeletedReply(chatId, replyTo, inputMessageContent);
     boolean wasConverted = processedContent != inputMessageContent;
     
     client().send(new TdApi.SendMessage(chatId, topicId, wasConverted ? null : replyTo, options, null, processedContent), after != null ? result -> {
@@ -7298,11 +7304,13 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   private static final int MSG_ACTION_CALL_STATE = 5;
   private static final int MSG_ACTION_CALL_BARS = 6;
   private static final int MSG_ACTION_PAUSE = 7;
-  private static final int MSG_ACTION_USER_STATUS = 8;
   private static final int MSG_ACTION_DISPATCH_TERMS_OF_SERVICE = 9;
   private static final int MSG_ACTION_UPDATE_LANG_PACK = 11;
   private static final int MSG_ACTION_MESSAGE_ACTION_PREFIX = 100000;
 
+  private static final int FRAME_UPDATE_USER_STATUS = 0;
+  private static final int FRAME_UPDATE_USER_STATUS_UI = 1;
+
   void handleUiMessage (Message msg) {
     switch (msg.what) {
       case MSG_ACTION_UPDATE_CHAT_ACTION:
@@ -7323,9 +7331,6 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       case MSG_ACTION_PAUSE:
         doPause();
         break;
-      case MSG_ACTION_USER_STATUS:
-        cache().onUpdateUserStatusInternal((TdApi.UpdateUserStatus) msg.obj, msg.arg1 == 1);
-        break;
       case MSG_ACTION_DISPATCH_TERMS_OF_SERVICE:
         ui().handleTermsOfService((TdApi.UpdateTermsOfService) msg.obj);
         break;
@@ -7344,7 +7349,11 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @AnyThread
   public void dispatchUserStatus (TdApi.UpdateUserStatus update, boolean uiOnly) {
-    ui().sendMessage(ui().obtainMessage(MSG_ACTION_USER_STATUS, uiOnly ? 1 : 0, 0, update));
+    // Status is read from the cache once delivered, so only the last pending update per user has to run
+    FrameDispatcher.instance().postCoalesced(
+      FrameDispatcher.key(this, uiOnly ? FRAME_UPDATE_USER_STATUS_UI : FRAME_UPDATE_USER_STATUS, update.userId),
+      () -> cache().onUpdateUserStatusInternal(update, uiOnly)
+    );
   }
 
   @AnyThread
@@ -7374,18 +7383,25 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
         chatList.clear();
       }
     }
-    forumTopicInfos.clear();
+    synchronized (forumTopicInfos) {
+      forumTopicInfos.clear();
+    }
   }
 
   @TdlibThread
   private void resetContextualData () {
     resetChatsData();
     activeCalls.clear();
-    activeStories.clear();
-    storyLists.clear();
-    storyStealthModeActiveUntilDate = storyStealthModeCooldownUntilDate = 0;
+    synchronized (storyLock) {
+      activeStories.clear();
+      storyLists.clear();
+      storyListChatCount.clear();
+      storyStealthModeActiveUntilDate = storyStealthModeCooldownUntilDate = 0;
+    }
     accessibleChatTimers.clear();
-    chatOnlineMemberCount.clear();
+    synchronized (chatOnlineMemberCount) {
+      chatOnlineMemberCount.clear();
+    }
     myProfilePhoto = null;
     myEmojiStatusId = 0;
     pendingMessageTexts.clear();
@@ -7635,15 +7651,12 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   }
 
   private void updateNewMessage (TdApi.UpdateNewMessage update, boolean isUpdate) {
-    DeletedMessagesManager.getInstance().cacheMessage(update.message);
     if (update.message.isOutgoing && update.message.sendingState instanceof TdApi.MessageSendingStatePending && update.message.content.getConstructor() != TdApi.MessageChatSetMessageAutoDeleteTime.CONSTRUCTOR) {
       addRemoveSendingMessage(update.message.chatId, update.message.id, true);
       if (isUpdate)
         return;
     }
 
-    DeletedMessagesManager.getInstance().cacheMessage(update.message);
-
     listeners.updateNewMessage(update);
 
     notificationManager.onUpdateNewMessage(update);
@@ -7660,7 +7673,6 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   }
 
   private void updateMessageSendSucceeded (TdApi.UpdateMessageSendSucceeded update) {
-    DeletedMessagesManager.getInstance().updateMessageId(update.oldMessageId, update.message);
     synchronized (dataLock) {
       Settings.instance().updateScrollMessageId(accountId, update.message.chatId, update.oldMessageId, update.message.id);
     }
@@ -7702,17 +7714,6 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @TdlibThread
   private void updateMessageContent (TdApi.UpdateMessageContent update) {
-    // Save old content BEFORE updating cache (for edit history feature)
-    DeletedMessagesManager mgr = DeletedMessagesManager.getInstance();
-    if (mgr.isEditHistoryEnabled()) {
-      // Get old content from cache before it's overwritten
-      TdApi.Message cached = mgr.getCachedMessage(update.messageId);
-      if (cached != null && cached.content != null) {
-        mgr.saveEditVersion(update.chatId, update.messageId, cached.content);
-      }
-    }
-    // Now update the cache with new content
-    mgr.updateMessageContent(update.chatId, update.messageId, update.newContent);
     final TdApi.Chat chat;
     synchronized (dataLock) {
       chat = chats.get(update.chatId);
@@ -7836,7 +7837,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
       for (int i = 0; i < messagesToSave.size(); i++) {
         arr[i] = messagesToSave.get(i);
       }
-      DeletedMessagesManager.getInstance().onMessagesDeleted(this, update.chatId, arr);
+      DeletedMessagesManager.getInstance().onMessagesDeleted(update.chatId, arr);
     }
 
     Arrays.sort(update.messageIds);
@@ -7908,6 +7909,9 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
         for (TdApi.ChatPosition position : update.chat.positions) {
           if (position.order != 0) {
             chatLists.add(chatListImpl(position.list));
+            if (position.isPinned && position.list.getConstructor() == TdApi.ChatListMain.CONSTRUCTOR) {
+              DeletedMessagesManager.getInstance().setChatPinned(update.chat.id, true);
+            }
           }
         }
       } else {
@@ -8220,6 +8224,9 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
     if (chatListChange != null) {
       listeners.updateChatPosition(update, chatListChange);
     }
+    if (update.position.list.getConstructor() == TdApi.ChatListMain.CONSTRUCTOR) {
+      DeletedMessagesManager.getInstance().setChatPinned(update.chatId, update.position.order != 0 && update.position.isPinned);
+    }
   }
 
   @TdlibThread
@@ -8495,9 +8502,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @TdlibThread
   private void updateChatOnlineMemberCount (TdApi.UpdateChatOnlineMemberCount update) {
-    synchronized (dataLock) {
-      Integer onlineCountObj = chatOnlineMemberCount.get(update.chatId);
-      int count = onlineCountObj != null ? onlineCountObj : 0;
+    synchronized (chatOnlineMemberCount) {
+      int count = chatOnlineMemberCount.get(update.chatId, 0);
       if (update.onlineMemberCount == count)
         return;
       if (update.onlineMemberCount != 0)
@@ -8535,7 +8541,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @TdlibThread
   private void updateForumTopicInfo (TdApi.UpdateForumTopicInfo update) {
     String cacheKey = update.info.chatId + "_" + update.info.forumTopicId;
-    synchronized (dataLock) {
+    synchronized (forumTopicInfos) {
       forumTopicInfos.put(cacheKey, update.info);
     }
     listeners.updateForumTopicInfo(update);
@@ -8639,7 +8645,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @NonNull
   public StoryList getStoryList (@NonNull TdApi.StoryList list) {
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       StoryList storyList = storyLists.get(list.getConstructor());
       if (storyList == null) {
         storyList = new StoryList(this, list);
@@ -8651,7 +8657,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @Nullable
   public TdApi.ChatActiveStories getActiveStories (long chatId, boolean allowRequest, @Nullable RunnableData<TdApi.ChatActiveStories> onLoaded) {
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       TdApi.ChatActiveStories stories = this.activeStories.get(chatId);
       if (stories != null) {
         return stories;
@@ -8682,7 +8688,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @TdlibThread
   private void updateStoryListChatCount (TdApi.UpdateStoryListChatCount update) {
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       storyListChatCount.put(update.storyList.getConstructor(), update.chatCount);
     }
     StoryList storyList = getStoryList(update.storyList);
@@ -8690,7 +8696,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   }
 
   public int getStoryListChatCount (@NonNull TdApi.StoryList list) {
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       return storyListChatCount.get(list.getConstructor());
     }
   }
@@ -8698,7 +8704,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
   @TdlibThread
   private void updateChatActiveStories (TdApi.UpdateChatActiveStories update) {
     final TdApi.ChatActiveStories prevActiveStories;
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       final long chatId = update.activeStories.chatId;
       prevActiveStories = activeStories.remove(chatId);
       activeStories.put(chatId, update.activeStories);
@@ -8747,7 +8753,7 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
   @TdlibThread
   private void updateStoryStealthMode (TdApi.UpdateStoryStealthMode update) {
-    synchronized (dataLock) {
+    synchronized (storyLock) {
       this.storyStealthModeActiveUntilDate = update.activeUntilDate;
       this.storyStealthModeCooldownUntilDate = update.cooldownUntilDate;
     }
@@ -9958,9 +9964,8 @@ public class Tdlib implements TdlibProvider, Settings.SettingsChangeListener, Da
 
       // Messages
       case TdApi.UpdateNewMessage.CONSTRUCTOR: {
-        TdApi.UpdateNewMessage newMessage = (TdApi.UpdateNewMessage) update;
-        DeletedMessagesManager.getInstance().cacheMessage(newMessage.message);
-        updateNewMessage(newMessage, true);
+        // Captured for the deleted messages cache by the update tap
+        updateNewMessage((TdApi.UpdateNewMessage) update, true);
         break;
       }
       case TdApi.UpdateMessageSendSucceeded.CONSTRUCTOR: {
@@ -42,6 +42,7 @@ import org.thunderdog.challegram.tool.Strings;
 import org.thunderdog.challegram.tool.UI;
 import org.thunderdog.challegram.util.AppUpdater;
 import org.thunderdog.challegram.util.DrawableProvider;
+import org.thunderdog.challegram.util.LongObjectMap;
 import org.thunderdog.challegram.util.text.Letters;
 import org.thunderdog.challegram.voip.annotation.CallState;
 import org.thunderdog.challegram.voip.gui.CallSettings;
@@ -50,7 +51,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import me.vkryl.android.AppInstallationUtil;
@@ -111,8 +111,8 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   private final Tdlib tdlib;
   private volatile long myUserId;
 
-  private final HashMap<Long, TdApi.User> users = new HashMap<>();
-  private final HashMap<Long, TdApi.UserFullInfo> userFulls = new HashMap<>();
+  private final LongObjectMap<TdApi.User> users = new LongObjectMap<>();
+  private final LongObjectMap<TdApi.UserFullInfo> userFulls = new LongObjectMap<>();
   private final ReferenceLongMap<UserDataChangeListener> userListeners = new ReferenceLongMap<>(true);
 
   private final ReferenceMap.FullnessListener<Long, UserStatusChangeListener> statusFullnessListener = (list, isFull) -> setRefreshNeeded(isFull);
@@ -120,13 +120,13 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   private final ReferenceLongMap<UserStatusChangeListener> simpleStatusListeners = new ReferenceLongMap<>(true, null);
   private final ReferenceList<MyUserDataChangeListener> myUserListeners = new ReferenceList<>(true);
 
-  private final HashMap<Long, TdApi.BasicGroup> basicGroup = new HashMap<>();
-  private final HashMap<Long, TdApi.BasicGroupFullInfo> basicGroupFull = new HashMap<>();
+  private final LongObjectMap<TdApi.BasicGroup> basicGroup = new LongObjectMap<>();
+  private final LongObjectMap<TdApi.BasicGroupFullInfo> basicGroupFull = new LongObjectMap<>();
   private final ReferenceList<BasicGroupDataChangeListener> groupsGlobalListeners = new ReferenceList<>(true);
   private final ReferenceLongMap<BasicGroupDataChangeListener> groupListeners = new ReferenceLongMap<>(true);
 
-  private final HashMap<Long, TdApi.Supergroup> supergroups = new HashMap<>();
-  private final HashMap<Long, TdApi.SupergroupFullInfo> supergroupsFulls = new HashMap<>();
+  private final LongObjectMap<TdApi.Supergroup> supergroups = new LongObjectMap<>();
+  private final LongObjectMap<TdApi.SupergroupFullInfo> supergroupsFulls = new LongObjectMap<>();
   private final LongSparseLongArray supergroupsFullsLastUpdateTime = new LongSparseLongArray();
   private final ReferenceList<SupergroupDataChangeListener> supergroupsGlobalListeners = new ReferenceList<>();
   private final ReferenceLongMap<SupergroupDataChangeListener> supergroupListeners = new ReferenceLongMap<>();
@@ -1087,7 +1087,7 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   public TdApi.UserFullInfo userFull (long userId, boolean allowRequest) {
     TdApi.UserFullInfo userFull;
     synchronized (dataLock) {
-      Long key = userId;
+      long key = userId;
       userFull = userFulls.get(key);
       if (userFull == null || allowRequest) {
         TdApi.User user = users.get(key);
@@ -1135,9 +1135,7 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   public @Nullable TdApi.User searchUser (String username, boolean allowDisabled) {
     TdApi.User result = null;
     synchronized (dataLock) {
-      final Set<HashMap.Entry<Long, TdApi.User>> entries = users.entrySet();
-      for (HashMap.Entry<Long, TdApi.User> entry : entries) {
-        TdApi.User user = entry.getValue();
+      for (TdApi.User user : users.values()) {
         if (Td.findUsername(user, username, allowDisabled)) {
           result = user;
           break;
@@ -1185,7 +1183,7 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
 
   @Nullable
   private TdApi.BasicGroupFullInfo basicGroupFullUnsafe (long basicGroupId, boolean allowRequest) {
-    Long key = basicGroupId;
+    long key = basicGroupId;
     TdApi.BasicGroupFullInfo groupFull;
     groupFull = basicGroupFull.get(key);
     if (groupFull == null || allowRequest) {
@@ -1260,7 +1258,7 @@ public class TdlibCache implements LiveLocationManager.OutputDelegate, CleanupSt
   public TdApi.SupergroupFullInfo supergroupFull (long supergroupId, boolean allowRequest) {
     TdApi.SupergroupFullInfo result;
     synchronized (dataLock) {
-      Long key = supergroupId;
+      long key = supergroupId;
       result = supergroupsFulls.get(key);
       if (result == null || allowRequest) {
         TdApi.Supergroup supergroup = supergroups.get(key);
@@ -83,6 +83,7 @@ public class TdlibFilesManager implements GlobalConnectionListener {
   public static final int PRIORITY_SELF_AVATAR_BIG = 5;
   public static final int PRIORITY_SELF_AVATAR_SMALL = 6;
 
+  public static final int PRIORITY_IMAGE_PREFETCH = 10;
   public static final int PRIORITY_IMAGE = 15;
   public static final int PRIORITY_USER_REQUEST_DOWNLOAD = 16;
   public static final int PRIORITY_USER_REQUEST_SHARE = 17;
@@ -37,9 +37,9 @@ import tgx.td.Td;
 public class TdlibListeners {
   private final Tdlib tdlib;
 
-  final ReferenceList<MessageListener> messageListeners;
-  final ReferenceList<MessageEditListener> messageEditListeners;
-  final ReferenceList<ChatListener> chatListeners;
+  final ListenerSnapshot<MessageListener> messageListeners;
+  final ListenerSnapshot<MessageEditListener> messageEditListeners;
+  final ListenerSnapshot<ChatListener> chatListeners;
   final ReferenceList<ChatFoldersListener> chatFoldersListeners;
   final ReferenceIntMap<ChatFolderListener> chatFolderListeners;
   final ReferenceMap<String, ChatListListener> chatListListeners;
@@ -62,14 +62,14 @@ public class TdlibListeners {
 
   final ReferenceList<AnimatedEmojiListener> animatedEmojiListeners;
 
-  final ReferenceLongMap<MessageListener> messageChatListeners;
-  final ReferenceLongMap<MessageEditListener> messageEditChatListeners;
-  final ReferenceLongMap<ChatListener> specificChatListeners;
+  final ListenerSnapshotLongMap<MessageListener> messageChatListeners;
+  final ListenerSnapshotLongMap<MessageEditListener> messageEditChatListeners;
+  final ListenerSnapshotLongMap<ChatListener> specificChatListeners;
   final ReferenceMap<String, StoryListener> specificStoryListeners;
   final ReferenceMap<String, ForumTopicInfoListener> specificForumTopicListeners;
   final ReferenceLongMap<NotificationSettingsListener> chatSettingsListeners;
-  final ReferenceIntMap<FileUpdateListener> fileUpdateListeners;
-  final ReferenceLongMap<PollListener> pollListeners;
+  final ListenerSnapshotLongMap<FileUpdateListener> fileUpdateListeners;
+  final ListenerSnapshotLongMap<PollListener> pollListeners;
 
   final ReferenceMap<String, ReactionLoadListener> reactionLoadListeners;
 
@@ -78,9 +78,9 @@ public class TdlibListeners {
   public TdlibListeners (Tdlib tdlib) {
     this.tdlib = tdlib;
 
-    this.messageListeners = new ReferenceList<>();
-    this.messageEditListeners = new ReferenceList<>();
-    this.chatListeners = new ReferenceList<>();
+    this.messageListeners = new ListenerSnapshot<>();
+    this.messageEditListeners = new ListenerSnapshot<>();
+    this.chatListeners = new ListenerSnapshot<>();
     this.storyListeners = new ReferenceList<>();
     this.chatListListeners = new ReferenceMap<>(true);
     this.chatFoldersListeners = new ReferenceList<>(true);
@@ -105,14 +105,14 @@ public class TdlibListeners {
 
     this.reactionLoadListeners = new ReferenceMap<>(true);
 
-    this.messageChatListeners = new ReferenceLongMap<>();
-    this.messageEditChatListeners = new ReferenceLongMap<>();
-    this.specificChatListeners = new ReferenceLongMap<>();
+    this.messageChatListeners = new ListenerSnapshotLongMap<>();
+    this.messageEditChatListeners = new ListenerSnapshotLongMap<>();
+    this.specificChatListeners = new ListenerSnapshotLongMap<>();
     this.specificStoryListeners = new ReferenceMap<>();
     this.specificForumTopicListeners = new ReferenceMap<>(true);
     this.chatSettingsListeners = new ReferenceLongMap<>(true);
-    this.fileUpdateListeners = new ReferenceIntMap<>();
-    this.pollListeners = new ReferenceLongMap<>();
+    this.fileUpdateListeners = new ListenerSnapshotLongMap<>();
+    this.pollListeners = new ListenerSnapshotLongMap<>();
   }
 
   public void subscribeToUpdates (TdApi.Message message) {
@@ -583,18 +583,14 @@ public class TdlibListeners {
   }
 
   private void runChatUpdate (long chatId, RunnableData<ChatListener> act) {
-    runUpdate(act,
-      chatListeners.iterator(),
-      specificChatListeners.iterator(chatId)
-    );
+    chatListeners.run(act);
+    specificChatListeners.run(chatId, act);
   }
 
   private void runForumUpdate (long chatId, int forumTopicId, RunnableData<ForumTopicInfoListener> act) {
-    runUpdate(act,
-      specificForumTopicListeners.iterator(uniqueForumTopicKey(chatId, forumTopicId)),
-      chatListeners.iterator(),
-      specificChatListeners.iterator(chatId)
-    );
+    runUpdate(specificForumTopicListeners.iterator(uniqueForumTopicKey(chatId, forumTopicId)), act);
+    chatListeners.run(act);
+    specificChatListeners.run(chatId, act);
   }
 
   private void runChatListUpdate (TdlibChatList chatList, RunnableData<ChatListListener> act) {
@@ -608,10 +604,8 @@ public class TdlibListeners {
   }
 
   private void runMessageUpdate (long chatId, RunnableData<MessageListener> act) {
-    runUpdate(act,
-      messageListeners.iterator(),
-      messageChatListeners.iterator(chatId)
-    );
+    messageListeners.run(act);
+    messageChatListeners.run(chatId, act);
   }
 
   private void runPrivateCallUpdate (int privateCallId, RunnableData<PrivateCallListener> act) {
@@ -697,8 +691,7 @@ public class TdlibListeners {
   }
 
   void updatePoll (TdApi.Poll updatedPoll) {
-    Iterator<PollListener> list = pollListeners.iterator(updatedPoll.id);
-    runUpdate(list, listener ->
+    pollListeners.run(updatedPoll.id, listener ->
       listener.onUpdatePoll(updatedPoll)
     );
   }
@@ -757,11 +750,10 @@ public class TdlibListeners {
   // updateMessagePendingContentUpdated
 
   void updateMessagePendingContentChanged (long chatId, long messageId) {
-    runUpdate(listener ->
-      listener.onMessagePendingContentChanged(chatId, messageId),
-      messageEditListeners.iterator(),
-      messageEditChatListeners.iterator(chatId)
-    );
+    RunnableData<MessageEditListener> act = listener ->
+      listener.onMessagePendingContentChanged(chatId, messageId);
+    messageEditListeners.run(act);
+    messageEditChatListeners.run(chatId, act);
   }
 
   // updateMessageLiveLocationViewed
@@ -1513,7 +1505,7 @@ public class TdlibListeners {
   // updateFile
 
   void updateFile (TdApi.UpdateFile update) {
-    runUpdate(fileUpdateListeners.iterator(update.file.id), listener ->
+    fileUpdateListeners.run(update.file.id, listener ->
       listener.onUpdateFile(update)
     );
   }
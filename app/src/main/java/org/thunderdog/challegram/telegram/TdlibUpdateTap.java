@@ -0,0 +1,301 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.telegram;
+
+import androidx.annotation.NonNull;
+import androidx.collection.SparseArrayCompat;
+
+import org.drinkless.tdlib.TdApi;
+import org.thunderdog.challegram.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers updates to observers that don't need to run on the TDLib thread.
+ *
+ * Every account has its own single-producer single-consumer ring: the TDLib thread of the account
+ * only stores a reference and moves the tail, while observers are invoked on one shared consumer thread
+ * in the order updates were received. Only updates with at least one observer are queued,
+ * and {@link TdApi.UpdateFile} only once the download is completed, as progress is reported many times per second.
+ *
+ * When an observer falls behind and the ring is full, updates are dropped and counted, except those subscribed to
+ * with {@link #subscribeLossless}: they go to an unbounded overflow queue, which is delivered once the ring is drained.
+ * Until the overflow queue is empty again, everything else goes there as well or is dropped, so the order is kept.
+ */
+public final class TdlibUpdateTap {
+  public interface Observer {
+    void onTappedUpdate (Tdlib tdlib, TdApi.Update update);
+  }
+
+  private static final int CAPACITY = 1 << 12; // Must be a power of two
+  private static final int MASK = CAPACITY - 1;
+  private static final int DRAIN_BATCH_SIZE = 256;
+
+  private final Tdlib tdlib;
+  private final TdApi.Update[] ring = new TdApi.Update[CAPACITY];
+  private final AtomicLong head = new AtomicLong(); // Next slot to read, written by the consumer
+  private final AtomicLong tail = new AtomicLong(); // Next slot to write, written by the producer
+  private long cachedHead; // Producer's last known head
+  // Updates that must not be dropped, offered while the ring was full
+  private final ConcurrentLinkedQueue<TdApi.Update> overflow = new ConcurrentLinkedQueue<>();
+
+  // Copy-on-write, constructor -> observers
+  private volatile SparseArrayCompat<Observer[]> observers = new SparseArrayCompat<>();
+  // Copy-on-write, sorted
+  private volatile int[] losslessConstructors = new int[0];
+
+  private final AtomicLong deliveredCount = new AtomicLong(), droppedCount = new AtomicLong(), overflowCount = new AtomicLong();
+
+  TdlibUpdateTap (Tdlib tdlib) {
+    this.tdlib = tdlib;
+    Consumer.instance().register(this);
+  }
+
+  public synchronized void subscribe (@NonNull Observer observer, int... constructors) {
+    SparseArrayCompat<Observer[]> observers = this.observers.clone();
+    for (int constructor : constructors) {
+      Observer[] current = observers.get(constructor);
+      if (current == null) {
+        observers.put(constructor, new Observer[] {observer});
+      } else if (Arrays.asList(current).indexOf(observer) == -1) {
+        Observer[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = observer;
+        observers.put(constructor, updated);
+      }
+    }
+    this.observers = observers;
+  }
+
+  /**
+   * Same as {@link #subscribe}, but these updates are never dropped when the ring is full.
+   */
+  public synchronized void subscribeLossless (@NonNull Observer observer, int... constructors) {
+    subscribe(observer, constructors);
+    int[] lossless = this.losslessConstructors;
+    for (int constructor : constructors) {
+      if (Arrays.binarySearch(lossless, constructor) < 0) {
+        lossless = Arrays.copyOf(lossless, lossless.length + 1);
+        lossless[lossless.length - 1] = constructor;
+        Arrays.sort(lossless);
+      }
+    }
+    this.losslessConstructors = lossless;
+  }
+
+  public synchronized void unsubscribe (@NonNull Observer observer) {
+    unsubscribe(observer, (int[]) null);
+  }
+
+  /**
+   * @param constructors updates to unsubscribe from, or null for all of them
+   */
+  public synchronized void unsubscribe (@NonNull Observer observer, int... constructors) {
+    SparseArrayCompat<Observer[]> observers = this.observers.clone();
+    for (int i = observers.size() - 1; i >= 0; i--) {
+      if (constructors != null && indexOf(constructors, observers.keyAt(i)) == -1)
+        continue;
+      Observer[] current = observers.valueAt(i);
+      int index = Arrays.asList(current).indexOf(observer);
+      if (index == -1)
+        continue;
+      if (current.length == 1) {
+        observers.removeAt(i);
+      } else {
+        Observer[] updated = new Observer[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        observers.setValueAt(i, updated);
+      }
+    }
+    this.observers = observers;
+  }
+
+  private static int indexOf (int[] array, int value) {
+    for (int i = 0; i < array.length; i++) {
+      if (array[i] == value)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Must be called only from the TDLib thread of this account.
+   *
+   * @return false when there is no observer for this update, or it was dropped
+   */
+  @TdlibThread
+  public boolean offer (TdApi.Update update) {
+    final int constructor = update.getConstructor();
+    if (observers.get(constructor) == null) {
+      return false;
+    }
+    if (constructor == TdApi.UpdateFile.CONSTRUCTOR && !((TdApi.UpdateFile) update).file.local.isDownloadingCompleted) {
+      return false;
+    }
+    final long tail = this.tail.get();
+    boolean isFull = !overflow.isEmpty();
+    if (!isFull && tail - cachedHead >= CAPACITY) {
+      cachedHead = head.get();
+      isFull = tail - cachedHead >= CAPACITY;
+    }
+    if (isFull) {
+      if (Arrays.binarySearch(losslessConstructors, constructor) < 0) {
+        droppedCount.incrementAndGet();
+        return false;
+      }
+      overflow.add(update);
+      overflowCount.incrementAndGet();
+      Consumer.instance().wakeUp();
+      return true;
+    }
+    ring[(int) (tail & MASK)] = update;
+    // Volatile write, so that the consumer can't miss it while going to sleep
+    this.tail.set(tail + 1);
+    Consumer.instance().wakeUp();
+    return true;
+  }
+
+  /**
+   * @return number of updates delivered
+   */
+  private int drain (int limit) {
+    long head = this.head.get();
+    final long tail = this.tail.get();
+    int count = 0;
+    while (head < tail && count < limit) {
+      int index = (int) (head & MASK);
+      TdApi.Update update = ring[index];
+      ring[index] = null;
+      this.head.lazySet(++head);
+      dispatch(update);
+      count++;
+    }
+    // Overflowed updates are newer than everything in the ring. Tail is read after peeking,
+    // so it covers every update that was put into the ring before the peeked one
+    TdApi.Update update;
+    while (count < limit && (update = overflow.peek()) != null && this.tail.get() == head) {
+      overflow.poll();
+      dispatch(update);
+      count++;
+    }
+    if (count > 0) {
+      deliveredCount.addAndGet(count);
+    }
+    return count;
+  }
+
+  private boolean isEmpty () {
+    return head.get() == tail.get() && overflow.isEmpty();
+  }
+
+  private void dispatch (TdApi.Update update) {
+    Observer[] observers = this.observers.get(update.getConstructor());
+    if (observers == null) {
+      return;
+    }
+    for (Observer observer : observers) {
+      try {
+        observer.onTappedUpdate(tdlib, update);
+      } catch (Throwable t) {
+        Log.e("Update tap observer failed, accountId:%d, update:%s", t, tdlib.id(), update.getClass().getSimpleName());
+      }
+    }
+  }
+
+  /**
+   * Pending, delivered, dropped and overflowed updates of all accounts, for the debug screen.
+   */
+  public static String getStats () {
+    long pending = 0, delivered = 0, dropped = 0, overflowed = 0;
+    TdlibUpdateTap[] taps = Consumer.instance().taps;
+    for (TdlibUpdateTap tap : taps) {
+      pending += tap.tail.get() - tap.head.get();
+      delivered += tap.deliveredCount.get();
+      dropped += tap.droppedCount.get();
+      overflowed += tap.overflowCount.get();
+    }
+    return String.format(Locale.US, "%d accounts, pending %d/%d, delivered %d, dropped %d, overflowed %d", taps.length, pending, (long) taps.length * CAPACITY, delivered, dropped, overflowed);
+  }
+
+  private static class Consumer extends Thread {
+    private static Consumer instance;
+
+    static synchronized Consumer instance () {
+      if (instance == null) {
+        instance = new Consumer();
+        instance.start();
+      }
+      return instance;
+    }
+
+    private volatile TdlibUpdateTap[] taps = new TdlibUpdateTap[0];
+    private volatile boolean isSleeping;
+
+    private Consumer () {
+      super("TdlibUpdateTap");
+      setDaemon(true);
+    }
+
+    synchronized void register (TdlibUpdateTap tap) {
+      TdlibUpdateTap[] taps = Arrays.copyOf(this.taps, this.taps.length + 1);
+      taps[taps.length - 1] = tap;
+      this.taps = taps;
+    }
+
+    void wakeUp () {
+      if (isSleeping) {
+        LockSupport.unpark(this);
+      }
+    }
+
+    @Override
+    public void run () {
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        if (drainAll())
+          continue;
+        isSleeping = true;
+        // Check again after publishing the flag, producers check it after moving the tail
+        if (isIdle()) {
+          LockSupport.park(this);
+        }
+        isSleeping = false;
+      }
+    }
+
+    private boolean drainAll () {
+      boolean hasMore = false;
+      for (TdlibUpdateTap tap : taps) {
+        if (tap.drain(DRAIN_BATCH_SIZE) == DRAIN_BATCH_SIZE) {
+          hasMore = true;
+        }
+      }
+      return hasMore || !isIdle();
+    }
+
+    private boolean isIdle () {
+      for (TdlibUpdateTap tap : taps) {
+        if (!tap.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
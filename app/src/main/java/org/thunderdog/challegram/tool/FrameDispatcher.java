@@ -0,0 +1,204 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.tool;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.UiThread;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Delivers work to the main thread once per frame instead of once per update.
+ *
+ * Runnables posted with the same key supersede each other: only the latest one runs,
+ * at the position of the latest post, so it still runs after everything posted before it.
+ * Runs in the order of posting otherwise. When a frame's budget is exceeded,
+ * the rest is left for the next frame.
+ */
+public final class FrameDispatcher implements Choreographer.FrameCallback {
+  private static final long FRAME_BUDGET_MS = 8;
+
+  private static volatile FrameDispatcher instance;
+
+  public static FrameDispatcher instance () {
+    if (instance == null) {
+      synchronized (FrameDispatcher.class) {
+        if (instance == null) {
+          instance = new FrameDispatcher();
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static final class Entry {
+    private final @Nullable Object key;
+    private Runnable runnable;
+
+    Entry (@Nullable Object key, Runnable runnable) {
+      this.key = key;
+      this.runnable = runnable;
+    }
+  }
+
+  private static final class Key {
+    private final Object owner;
+    private final int type;
+    private final long id;
+
+    Key (Object owner, int type, long id) {
+      this.owner = owner;
+      this.type = type;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals (Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return other.owner == owner && other.type == type && other.id == id;
+    }
+
+    @Override
+    public int hashCode () {
+      int result = System.identityHashCode(owner);
+      result = 31 * result + type;
+      result = 31 * result + (int) (id ^ (id >>> 32));
+      return result;
+    }
+  }
+
+  /**
+   * @return key under which updates of the given {@code type} for the same {@code id} of {@code owner} supersede each other
+   */
+  public static Object key (@NonNull Object owner, int type, long id) {
+    return new Key(owner, type, id);
+  }
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Runnable scheduleFrame = this::scheduleFrame;
+
+  private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+  private final HashMap<Object, Entry> pending = new HashMap<>();
+  private boolean isScheduled;
+
+  private long postedCount, coalescedCount, frameCount, deferredCount;
+
+  private FrameDispatcher () { }
+
+  @AnyThread
+  public void post (@NonNull Runnable runnable) {
+    postCoalesced(null, runnable);
+  }
+
+  /**
+   * Runs {@code runnable} on the next frame, dropping the one still pending under the same {@code key}.
+   */
+  @AnyThread
+  public void postCoalesced (@Nullable Object key, @NonNull Runnable runnable) {
+    final boolean needSchedule;
+    synchronized (queue) {
+      postedCount++;
+      Entry entry = new Entry(key, runnable);
+      if (key != null) {
+        Entry prevEntry = pending.put(key, entry);
+        if (prevEntry != null) {
+          prevEntry.runnable = null;
+          coalescedCount++;
+        }
+      }
+      queue.offer(entry);
+      needSchedule = !isScheduled;
+      isScheduled = true;
+    }
+    if (needSchedule) {
+      if (Looper.myLooper() == Looper.getMainLooper()) {
+        scheduleFrame();
+      } else {
+        handler.post(scheduleFrame);
+      }
+    }
+  }
+
+  @UiThread
+  private void scheduleFrame () {
+    Choreographer.getInstance().postFrameCallback(this);
+  }
+
+  @UiThread
+  @Override
+  public void doFrame (long frameTimeNanos) {
+    final long deadline = SystemClock.uptimeMillis() + FRAME_BUDGET_MS;
+    synchronized (queue) {
+      frameCount++;
+    }
+    while (true) {
+      Runnable runnable;
+      synchronized (queue) {
+        Entry entry = queue.poll();
+        if (entry == null) {
+          isScheduled = false;
+          return;
+        }
+        if (entry.runnable == null) {
+          // Superseded by a later post
+          continue;
+        }
+        if (entry.key != null) {
+          pending.remove(entry.key);
+        }
+        runnable = entry.runnable;
+        entry.runnable = null;
+      }
+      runnable.run();
+      if (SystemClock.uptimeMillis() >= deadline) {
+        break;
+      }
+    }
+    synchronized (queue) {
+      if (queue.isEmpty()) {
+        isScheduled = false;
+      } else {
+        deferredCount++;
+        scheduleFrame();
+      }
+    }
+  }
+
+  /**
+   * Number of posted and superseded updates and frames they were delivered in, for the debug screen.
+   */
+  public String getStats () {
+    synchronized (queue) {
+      return String.format(Locale.US, "posted %d, coalesced %d%%, frames %d, deferred %d, pending %d",
+        postedCount, postedCount > 0 ? coalescedCount * 100 / postedCount : 0, frameCount, deferredCount, queue.size()
+      );
+    }
+  }
+}
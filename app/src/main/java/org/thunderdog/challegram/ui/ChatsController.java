@@ -95,6 +95,7 @@ import org.thunderdog.challegram.telegram.TdlibThread;
 import org.thunderdog.challegram.telegram.TdlibUi;
 import org.thunderdog.challegram.theme.ColorId;
 import org.thunderdog.challegram.theme.Theme;
+import org.thunderdog.challegram.tool.FrameDispatcher;
 import org.thunderdog.challegram.tool.Paints;
 import org.thunderdog.challegram.tool.Screen;
 import org.thunderdog.challegram.tool.Strings;
@@ -2740,9 +2741,12 @@ public class ChatsController extends TelegramViewController<ChatsController.Argu
     }
   }
 
+  private static final int FRAME_UPDATE_TOP_MESSAGE = 0;
+
   @Override
   public void onChatTopMessageChanged (final long chatId, @Nullable final TdApi.Message topMessage) {
-    runOnUiThreadOptional(() -> {
+    // Only the latest top message of a chat needs to be shown
+    runOnUiFrameOptional(FrameDispatcher.key(this, FRAME_UPDATE_TOP_MESSAGE, chatId), () -> {
       if (chatsView != null) {
         chatsView.updateChatTopMessage(chatId, topMessage);
       }
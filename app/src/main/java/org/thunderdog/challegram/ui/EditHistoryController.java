@@ -46,9 +46,14 @@ public class EditHistoryController extends ViewController<EditHistoryController.
         }
     }
 
+    private static final int PAGE_SIZE = 20;
+    private static final int LOAD_MORE_THRESHOLD = 5;
+
     private RecyclerView recyclerView;
     private HistoryAdapter adapter;
-    private List<DeletedMessagesManager.EditHistoryEntry> historyEntries;
+    private final List<DeletedMessagesManager.EditHistoryEntry> historyEntries = new ArrayList<>();
+    private int totalCount, nextOffset;
+    private boolean isLoading, endReached;
 
     public EditHistoryController(Context context, Tdlib tdlib) {
         super(context, tdlib);
@@ -78,16 +83,50 @@ public class EditHistoryController extends ViewController<EditHistoryController.
         recyclerView.setLayoutManager(new LinearLayoutManager(context, RecyclerView.VERTICAL, false));
         ViewSupport.setThemedBackground(recyclerView, ColorId.chatBackground, this);
 
-        // Load history
         Args args = getArgumentsStrict();
-        historyEntries = DeletedMessagesManager.getInstance().getEditHistory(args.chatId, args.messageId);
-        
         adapter = new HistoryAdapter(context, historyEntries, args.originalMessage);
         recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager manager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (manager != null && manager.findLastVisibleItemPosition() >= historyEntries.size() - LOAD_MORE_THRESHOLD) {
+                    loadMore();
+                }
+            }
+        });
+
+        // History is read page by page on a background thread
+        loadMore();
 
         return recyclerView;
     }
 
+    private void loadMore() {
+        if (isLoading || endReached) {
+            return;
+        }
+        isLoading = true;
+        Args args = getArgumentsStrict();
+        DeletedMessagesManager.getInstance().loadEditHistory(args.chatId, args.messageId, nextOffset, PAGE_SIZE, page -> {
+            if (isDestroyed()) {
+                return;
+            }
+            isLoading = false;
+            totalCount = page.totalCount;
+            int startPosition = historyEntries.size();
+            historyEntries.addAll(page.entries);
+            // Versions that failed to decode are skipped, but still count towards the offset
+            endReached = page.nextOffset == nextOffset || page.nextOffset >= totalCount;
+            nextOffset = page.nextOffset;
+            if (startPosition > 0) {
+                // Version numbers of visible items depend on the total count
+                adapter.notifyItemRangeChanged(0, startPosition);
+            }
+            adapter.notifyItemRangeInserted(startPosition, page.entries.size());
+        });
+    }
+
     /**
      * Simple adapter showing edit history entries as styled text items
      */
@@ -124,7 +163,7 @@ public class EditHistoryController extends ViewController<EditHistoryController.
             DeletedMessagesManager.EditHistoryEntry entry = entries.get(position);
             String dateStr = dateFormat.format(new Date(entry.timestamp));
             String text = entry.getContentText();
-            holder.itemView.bind(dateStr, text, position + 1, entries.size());
+            holder.itemView.bind(dateStr, text, position + 1, Math.max(totalCount, entries.size()));
         }
 
         class HistoryViewHolder extends RecyclerView.ViewHolder {
@@ -32,6 +32,7 @@ public class GhostSettingsController extends ViewController<Void> implements Vie
     private static final int ID_ENABLE_GHOST_MESSAGES = 1001;
     private static final int ID_ENABLE_EDIT_HISTORY = 1002;
     private static final int ID_CLEAR_GHOSTS = 1003;
+    private static final int ID_ENABLE_GHOST_MEDIA = 1004;
     
     // Ghost Mode (new)
     private static final int ID_GHOST_MODE = 2001;
@@ -79,6 +80,8 @@ public class GhostSettingsController extends ViewController<Void> implements Vie
                 // Ghost Messages settings
                 if (itemId == ID_ENABLE_GHOST_MESSAGES) {
                     view.getToggler().setRadioEnabled(DeletedMessagesManager.getInstance().isGhostEnabled(), isUpdate);
+                } else if (itemId == ID_ENABLE_GHOST_MEDIA) {
+                    view.getToggler().setRadioEnabled(DeletedMessagesManager.getInstance().isMediaCacheEnabled(), isUpdate);
                 } else if (itemId == ID_ENABLE_EDIT_HISTORY) {
                     view.getToggler().setRadioEnabled(DeletedMessagesManager.getInstance().isEditHistoryEnabled(), isUpdate);
                 }
@@ -138,9 +141,11 @@ public class GhostSettingsController extends ViewController<Void> implements Vie
         items.add(new ListItem(ListItem.TYPE_SHADOW_TOP));
         
         items.add(new ListItem(ListItem.TYPE_RADIO_SETTING, ID_ENABLE_GHOST_MESSAGES, R.drawable.baseline_delete_24, "Сохранять удаленные"));
+        items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+        items.add(new ListItem(ListItem.TYPE_RADIO_SETTING, ID_ENABLE_GHOST_MEDIA, R.drawable.baseline_image_24, "Сохранять медиа"));
         
         items.add(new ListItem(ListItem.TYPE_SHADOW_BOTTOM));
-        items.add(new ListItem(ListItem.TYPE_DESCRIPTION, 0, 0, "Удаленные сообщения будут сохраняться локально."));
+        items.add(new ListItem(ListItem.TYPE_DESCRIPTION, 0, 0, "Удаленные сообщения будут сохраняться локально. Медиа хранится в кэше до " + DeletedMessagesManager.getInstance().getMediaCacheBudgetMb() + " МБ."));
         
         // Edit History
         items.add(new ListItem(ListItem.TYPE_HEADER, 0, 0, "История редактирования"));
@@ -185,6 +190,10 @@ public class GhostSettingsController extends ViewController<Void> implements Vie
             boolean newState = !DeletedMessagesManager.getInstance().isGhostEnabled();
             DeletedMessagesManager.getInstance().setGhostEnabled(newState);
             adapter.updateValuedSettingById(ID_ENABLE_GHOST_MESSAGES);
+        } else if (id == ID_ENABLE_GHOST_MEDIA) {
+            boolean newState = !DeletedMessagesManager.getInstance().isMediaCacheEnabled();
+            DeletedMessagesManager.getInstance().setMediaCacheEnabled(newState);
+            adapter.updateValuedSettingById(ID_ENABLE_GHOST_MEDIA);
         } else if (id == ID_ENABLE_EDIT_HISTORY) {
             boolean newState = !DeletedMessagesManager.getInstance().isEditHistoryEnabled();
             DeletedMessagesManager.getInstance().setEditHistoryEnabled(newState);
@@ -3870,7 +3870,7 @@ public class MessagesController extends ViewController<MessagesController.Argume
             long messageId = selectedMessageIds.keyAt(i);
             TGMessage m = selectedMessageIds.valueAt(i);
             if (m.isGhost()) {
-              org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().deleteGhostMessage(messageId);
+              org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().deleteGhostMessage(m.getChatId(), messageId);
               m.setIsGhostDeleted(true);
               m.onDestroy();
             }
@@ -5718,8 +5718,7 @@ public class MessagesController extends ViewController<MessagesController.Argume
         return true;
       } else if (id == R.id.btn_messageDeleteGhost) {
         cancelSheduledKeyboardOpeningAndHideAllKeyboards();
-        long messageId = selectedMessage.getId();
-        org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().deleteGhostMessage(messageId);
+        org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().deleteGhostMessage(selectedMessage.getChatId(), selectedMessage.getId());
         selectedMessage.setIsGhostDeleted(true);
         selectedMessage.requestLayout();
         closeSelectMode();
@@ -5846,25 +5845,30 @@ public class MessagesController extends ViewController<MessagesController.Argume
         return true;
       } else if (id == R.id.btn_messageEditHistory) {
         cancelSheduledKeyboardOpeningAndHideAllKeyboards();
-        // Get edit history for this message
-        java.util.List<DeletedMessagesManager.EditHistoryEntry> history = 
-            DeletedMessagesManager.getInstance().getEditHistory(
-                selectedMessage.getChatId(), 
-                selectedMessage.getId()
-            );
-        
-        if (history.isEmpty()) {
-          UI.showToast("История изменений пуста", Toast.LENGTH_SHORT);
-        } else {
-          // Navigate to EditHistoryController with beautiful message bubbles
-          EditHistoryController controller = new EditHistoryController(context, tdlib);
-          controller.setArguments(new EditHistoryController.Args(
-              selectedMessage.getChatId(),
-              selectedMessage.getId(),
-              selectedMessage.getMessage()
-          ));
-          navigateTo(controller);
-        }
+        final TGMessage historyMessage = selectedMessage;
+        // Only the first version is needed to know whether the history is empty
+        DeletedMessagesManager.getInstance().loadEditHistory(
+            historyMessage.getChatId(),
+            historyMessage.getId(),
+            0, 1,
+            page -> {
+              if (isDestroyed()) {
+                return;
+              }
+              if (page.totalCount == 0) {
+                UI.showToast("История изменений пуста", Toast.LENGTH_SHORT);
+              } else {
+                // Navigate to EditHistoryController with beautiful message bubbles
+                EditHistoryController controller = new EditHistoryController(context, tdlib);
+                controller.setArguments(new EditHistoryController.Args(
+                    historyMessage.getChatId(),
+                    historyMessage.getId(),
+                    historyMessage.getMessage()
+                ));
+                navigateTo(controller);
+              }
+            }
+        );
         return true;
       } else if (id == R.id.btn_messageShare) {
         cancelSheduledKeyboardOpeningAndHideAllKeyboards();
@@ -9875,7 +9879,7 @@ public class MessagesController extends ViewController<MessagesController.Argume
         content instanceof TdApi.InputMessageText) {
       TdApi.InputMessageReplyToMessage replyToMessage = (TdApi.InputMessageReplyToMessage) replyTo;
       if (org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().isMessageDeleted(replyToMessage.messageId)) {
-        String deletedText = org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().getDeletedMessageText(replyToMessage.messageId);
+        String deletedText = org.thunderdog.challegram.data.DeletedMessagesManager.getInstance().getDeletedMessageText(chatId, replyToMessage.messageId);
         if (deletedText != null && !deletedText.isEmpty()) {
           TdApi.InputMessageText originalText = (TdApi.InputMessageText) content;
           String userText = originalText.text != null && originalText.text.text != null ? originalText.text.text : "";
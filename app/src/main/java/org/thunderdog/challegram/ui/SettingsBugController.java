@@ -37,7 +37,13 @@ import org.thunderdog.challegram.component.base.SettingView;
 import org.thunderdog.challegram.config.Config;
 import org.thunderdog.challegram.core.Background;
 import org.thunderdog.challegram.core.Lang;
+import org.thunderdog.challegram.data.DeletedMessagesManager;
 import org.thunderdog.challegram.data.TD;
+import org.thunderdog.challegram.loader.BitmapPool;
+import org.thunderdog.challegram.loader.ImageCache;
+import org.thunderdog.challegram.loader.ImageReader;
+import org.thunderdog.challegram.loader.gif.GifBridge;
+import org.thunderdog.challegram.loader.gif.LottieFrameCache;
 import org.thunderdog.challegram.navigation.BackHeaderButton;
 import org.thunderdog.challegram.navigation.DoubleHeaderView;
 import org.thunderdog.challegram.navigation.SettingsWrap;
@@ -49,8 +55,10 @@ import org.thunderdog.challegram.telegram.TdlibAccount;
 import org.thunderdog.challegram.telegram.TdlibManager;
 import org.thunderdog.challegram.telegram.TdlibNotificationUtils;
 import org.thunderdog.challegram.telegram.TdlibUi;
+import org.thunderdog.challegram.telegram.TdlibUpdateTap;
 import org.thunderdog.challegram.theme.ColorId;
 import org.thunderdog.challegram.theme.PorterDuffColorId;
+import org.thunderdog.challegram.tool.FrameDispatcher;
 import org.thunderdog.challegram.tool.Intents;
 import org.thunderdog.challegram.tool.Screen;
 import org.thunderdog.challegram.tool.Strings;
@@ -61,6 +69,7 @@ import org.thunderdog.challegram.unsorted.Test;
 import org.thunderdog.challegram.util.AppUpdater;
 import org.thunderdog.challegram.util.Crash;
 import org.thunderdog.challegram.util.StringList;
+import org.thunderdog.challegram.util.text.TextMeasureCache;
 import org.thunderdog.challegram.v.CustomRecyclerView;
 import org.thunderdog.challegram.voip.VoIP;
 import org.thunderdog.challegram.voip.VoIPController;
@@ -608,6 +617,28 @@ public class SettingsBugController extends RecyclerViewController<SettingsBugCon
             b.append("None");
           }
           view.setData(b.toString());
+        } else if (itemId == R.id.btn_perf_ghostPersistence) {
+          view.setData(DeletedMessagesManager.getInstance().getPersistenceStats());
+        } else if (itemId == R.id.btn_perf_ghostMessageCache) {
+          view.setData(DeletedMessagesManager.getInstance().getMessageCacheStats());
+        } else if (itemId == R.id.btn_perf_ghostMedia) {
+          view.setData(DeletedMessagesManager.getInstance().getMediaCacheStats());
+        } else if (itemId == R.id.btn_perf_updateTap) {
+          view.setData(TdlibUpdateTap.getStats());
+        } else if (itemId == R.id.btn_perf_imageCache) {
+          view.setData(ImageCache.instance().getStats());
+        } else if (itemId == R.id.btn_perf_imageDecoder) {
+          view.setData(ImageReader.instance().getDecodeStats());
+        } else if (itemId == R.id.btn_perf_bitmapPool) {
+          view.setData(BitmapPool.instance().getStats());
+        } else if (itemId == R.id.btn_perf_gifScheduler) {
+          view.setData(GifBridge.instance().getFrameSchedulerStats());
+        } else if (itemId == R.id.btn_perf_lottieCache) {
+          view.setData(LottieFrameCache.instance().getStats());
+        } else if (itemId == R.id.btn_perf_textMeasureCache) {
+          view.setData(TextMeasureCache.getStats());
+        } else if (itemId == R.id.btn_perf_frameDispatcher) {
+          view.setData(FrameDispatcher.instance().getStats());
         } else if (itemId == R.id.btn_log_android) {
           view.getToggler().setRadioEnabled(Log.checkSetting(Log.SETTING_ANDROID_LOG), false);
         } else if (itemId == R.id.btn_tdlib_verbosity) {
@@ -703,6 +734,33 @@ public class SettingsBugController extends RecyclerViewController<SettingsBugCon
         items.add(new ListItem(ListItem.TYPE_SHADOW_BOTTOM));
         items.add(new ListItem(ListItem.TYPE_DESCRIPTION, 0, 0, Lang.getMarkdownStringSecure(this, R.string.DebugAppLogsInfo), false));
 
+        if (crash == null) {
+          items.add(new ListItem(ListItem.TYPE_HEADER, 0, 0, "Performance counters", false));
+          items.add(new ListItem(ListItem.TYPE_SHADOW_TOP));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_ghostMessageCache, 0, "Anti-delete message cache", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_ghostPersistence, 0, "Anti-delete persistence", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_ghostMedia, 0, "Anti-delete media cache", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_updateTap, 0, "Update tap", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_imageCache, 0, "Image cache", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_imageDecoder, 0, "Image decoder", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_bitmapPool, 0, "Bitmap pool", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_gifScheduler, 0, "Animation scheduler", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_lottieCache, 0, "Lottie frame cache", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_textMeasureCache, 0, "Text measure cache", false));
+          items.add(new ListItem(ListItem.TYPE_SEPARATOR_FULL));
+          items.add(new ListItem(ListItem.TYPE_VALUED_SETTING_COMPACT, R.id.btn_perf_frameDispatcher, 0, "UI frame dispatcher", false));
+          items.add(new ListItem(ListItem.TYPE_SHADOW_BOTTOM));
+        }
+
         if (crash == null) {
           items.add(new ListItem(ListItem.TYPE_HEADER, 0, 0, R.string.Other));
           items.add(new ListItem(ListItem.TYPE_SHADOW_TOP));
@@ -1357,6 +1415,8 @@ public class SettingsBugController extends RecyclerViewController<SettingsBugCon
       SettingsLogFilesController c = new SettingsLogFilesController(context, tdlib);
       c.setArguments(new SettingsLogFilesController.Arguments(logFiles));
       navigateTo(c);
+    } else if (viewId == R.id.btn_perf_ghostMessageCache || viewId == R.id.btn_perf_ghostPersistence || viewId == R.id.btn_perf_ghostMedia || viewId == R.id.btn_perf_updateTap || viewId == R.id.btn_perf_imageCache || viewId == R.id.btn_perf_imageDecoder || viewId == R.id.btn_perf_bitmapPool || viewId == R.id.btn_perf_gifScheduler || viewId == R.id.btn_perf_lottieCache || viewId == R.id.btn_perf_textMeasureCache || viewId == R.id.btn_perf_frameDispatcher) {
+      adapter.updateValuedSettingById(viewId);
     } else if (viewId == R.id.btn_log_android) {
       Log.setSetting(Log.SETTING_ANDROID_LOG, ((SettingView) v).getToggler().toggle(true));
     } else if (viewId == R.id.btn_log_tags) {
@@ -0,0 +1,157 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing {@code long -> int} hash map, same layout as {@link LongObjectMap}.
+ * Not thread-safe.
+ */
+public final class LongIntMap {
+  private static final int MIN_CAPACITY = 8;
+
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  public LongIntMap () {
+    this(MIN_CAPACITY);
+  }
+
+  public LongIntMap (int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  static int hash (long key) {
+    // Fibonacci hashing, spreads sequential ids over the whole table
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  static int capacityFor (int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (maxSizeFor(capacity) < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  static int maxSizeFor (int capacity) {
+    return capacity - (capacity >>> 2); // Load factor 0.75
+  }
+
+  public int size () {
+    return size;
+  }
+
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  private int indexOf (long key) {
+    int index = hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key)
+        return index;
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  public boolean containsKey (long key) {
+    return indexOf(key) != -1;
+  }
+
+  public int get (long key, int defaultValue) {
+    int index = indexOf(key);
+    return index != -1 ? values[index] : defaultValue;
+  }
+
+  public void put (long key, int value) {
+    int index = hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key) {
+        values[index] = value;
+        return;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    used[index] = true;
+    if (++size > maxSizeFor(keys.length)) {
+      resize(keys.length << 1);
+    }
+  }
+
+  /**
+   * @return whether the key was present
+   */
+  public boolean remove (long key) {
+    int index = indexOf(key);
+    if (index == -1)
+      return false;
+    int next = index;
+    while (true) {
+      next = (next + 1) & mask;
+      if (!used[next])
+        break;
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - index) & mask)) {
+        keys[index] = keys[next];
+        values[index] = values[next];
+        index = next;
+      }
+    }
+    used[index] = false;
+    size--;
+    return true;
+  }
+
+  public void clear () {
+    if (size == 0)
+      return;
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private void resize (int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int index = hash(oldKeys[i]) & mask;
+        while (used[index]) {
+          index = (index + 1) & mask;
+        }
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+        used[index] = true;
+      }
+    }
+  }
+}
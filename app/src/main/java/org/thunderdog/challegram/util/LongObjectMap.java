@@ -0,0 +1,197 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing hash map with primitive {@code long} keys and non-null values.
+ *
+ * Keys and values are stored in two parallel arrays with linear probing, so lookups don't box keys
+ * and there is no per-entry object. Removal shifts following entries back instead of leaving tombstones.
+ * Not thread-safe.
+ */
+public final class LongObjectMap<V> {
+  private static final int MIN_CAPACITY = 8;
+
+  private long[] keys;
+  private Object[] values; // null marks an empty slot
+  private int mask;
+  private int size;
+  private int modCount;
+
+  public LongObjectMap () {
+    this(MIN_CAPACITY);
+  }
+
+  public LongObjectMap (int expectedSize) {
+    allocate(LongIntMap.capacityFor(expectedSize));
+  }
+
+  private void allocate (int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size () {
+    return size;
+  }
+
+  public boolean isEmpty () {
+    return size == 0;
+  }
+
+  private int indexOf (long key) {
+    int index = LongIntMap.hash(key) & mask;
+    while (values[index] != null) {
+      if (keys[index] == key)
+        return index;
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  public boolean containsKey (long key) {
+    return indexOf(key) != -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V get (long key) {
+    int index = indexOf(key);
+    return index != -1 ? (V) values[index] : null;
+  }
+
+  /**
+   * @return previous value, or {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V put (long key, @NonNull V value) {
+    //noinspection ConstantConditions
+    if (value == null)
+      throw new IllegalArgumentException();
+    int index = LongIntMap.hash(key) & mask;
+    while (values[index] != null) {
+      if (keys[index] == key) {
+        V prev = (V) values[index];
+        values[index] = value;
+        return prev;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    modCount++;
+    if (++size > LongIntMap.maxSizeFor(keys.length)) {
+      resize(keys.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return removed value, or {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public V remove (long key) {
+    int index = indexOf(key);
+    if (index == -1)
+      return null;
+    V prev = (V) values[index];
+    // Move back entries that can't be reached anymore after emptying the slot
+    int next = index;
+    while (true) {
+      next = (next + 1) & mask;
+      if (values[next] == null)
+        break;
+      int home = LongIntMap.hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - index) & mask)) {
+        keys[index] = keys[next];
+        values[index] = values[next];
+        index = next;
+      }
+    }
+    values[index] = null;
+    size--;
+    modCount++;
+    return prev;
+  }
+
+  public void clear () {
+    if (size == 0)
+      return;
+    Arrays.fill(values, null);
+    size = 0;
+    modCount++;
+  }
+
+  private void resize (int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        int index = LongIntMap.hash(oldKeys[i]) & mask;
+        while (values[index] != null) {
+          index = (index + 1) & mask;
+        }
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
+
+  public Iterable<V> values () {
+    return ValueIterator::new;
+  }
+
+  private class ValueIterator implements Iterator<V> {
+    private final int expectedModCount = modCount;
+    private int index = nextIndex(0);
+
+    private int nextIndex (int from) {
+      for (int i = from; i < values.length; i++) {
+        if (values[i] != null)
+          return i;
+      }
+      return values.length;
+    }
+
+    @Override
+    public boolean hasNext () {
+      return index < values.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V next () {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (index >= values.length)
+        throw new NoSuchElementException();
+      V value = (V) values[index];
+      index = nextIndex(index + 1);
+      return value;
+    }
+  }
+}
@@ -346,7 +346,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
     this.defaultTextColorSet = textColorSet;
     this.entities = entities;
     this.suffix = suffix;
-    this.suffixWidth = !StringUtils.isEmpty(suffix) ? (int) U.measureText(this.suffix, getTextPaint(null)) : 0;
+    this.suffixWidth = !StringUtils.isEmpty(suffix) ? (int) TextMeasureCache.measureText(this.suffix, getTextPaint(null)) : 0;
     set(maxWidth, in);
   }
 
@@ -1606,7 +1606,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
       } else if (isChild) {
         fullWidth = childWidth[0];
       } else {
-        fullWidth = BiDiUtils.measureTextRun(bidiEntity, in, start, end, paint);
+        fullWidth = TextMeasureCache.measureTextRun(bidiEntity, in, start, end, paint);
       }
     }
     futureWidth = fullWidth;
@@ -1664,7 +1664,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
         } else if (newEnd - currentEnd == 1 && lastCodePointWidth != -1 && lastCodePoint == codePoint) {
           charWidth = lastCodePointWidth;
         } else {
-          charWidth = BiDiUtils.measureTextRun(bidiEntity, in, currentEnd, newEnd, paint); //    U.measureText(in, currentEnd, newEnd, paint);
+          charWidth = TextMeasureCache.measureTextRun(bidiEntity, in, currentEnd, newEnd, paint); //    U.measureText(in, currentEnd, newEnd, paint);
           if (newEnd - currentEnd == 1) {
             lastCodePoint = codePoint;
             lastCodePointWidth = charWidth;
@@ -1712,7 +1712,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
       boolean movedLastLine = false;
 
       float firstCodePointWidth;
-      if ((textFlags & FLAG_BOUNDS_NOT_STRICT) != 0 && in.codePointCount(start, end) == 2 && currentX + (firstCodePointWidth = U.measureText(in, start, start + 1, paint)) <= maxWidth) {
+      if ((textFlags & FLAG_BOUNDS_NOT_STRICT) != 0 && in.codePointCount(start, end) == 2 && currentX + (firstCodePointWidth = TextMeasureCache.measureText(in, start, start + 1, paint)) <= maxWidth) {
         int firstCodePoint = in.codePointAt(start);
         int secondCodePoint = in.codePointAt(start + Character.charCount(firstCodePoint));
 
@@ -1866,7 +1866,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
         }
       }
 
-      float ellipsisWidth = BiDiUtils.measureTextRun(bidiEntity, ellipsis, getTextPaint(entity));
+      float ellipsisWidth = TextMeasureCache.measureTextRun(bidiEntity, ellipsis, getTextPaint(entity));
       if (!BiDiUtils.isValid(bidiEntity)) {
         bidiEntity = lastPart.getBidiEntity();
       }
@@ -1882,7 +1882,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
           lineIndex++;
         }
 
-        final float defaultEllipsisWidth = U.measureText(defaultEllipsis, getTextPaint(entity));
+        final float defaultEllipsisWidth = TextMeasureCache.measureText(defaultEllipsis, getTextPaint(entity));
         if (hasEllipsizedPart && !StringUtils.equalsOrBothEmpty(ellipsis, defaultEllipsis) && ellipsis.length() > defaultEllipsis.length()) {
           TextPart ellipsisPart = new TextPart(this, ellipsis, 0, ellipsis.length() - defaultEllipsis.length(), lineIndex, paragraphIndex);
           ellipsisPart.setXY(currentX, currentY);
@@ -1906,7 +1906,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
         // Hard path: find enough place for ellipsis and place it there
         final int requiredLineIndex = lastPart.getLineIndex();
         final int minEnd = lastPart.getEnd();
-        final float defaultEllipsisWidth = U.measureText(defaultEllipsis, getTextPaint(null));
+        final float defaultEllipsisWidth = TextMeasureCache.measureText(defaultEllipsis, getTextPaint(null));
 
         boolean done = false;
         do {
@@ -1921,7 +1921,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
               ellipsis = defaultEllipsis;
               changedEllipsis = true;
             }
-            ellipsisWidth = changedEllipsis || !lastPart.isSameEntity(entity) ? U.measureText(ellipsis, getTextPaint(lastPart.getEntity())) : ellipsisWidth;
+            ellipsisWidth = changedEllipsis || !lastPart.isSameEntity(entity) ? TextMeasureCache.measureText(ellipsis, getTextPaint(lastPart.getEntity())) : ellipsisWidth;
 
             TextPart ellipsisPart = new TextPart(this, ellipsis, 0, ellipsis.length(), lastPart.getLineIndex(), lastPart.getParagraphIndex());
             ellipsisPart.setXY(currentX, currentY);
@@ -1946,8 +1946,8 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
               if (!ellipsis.endsWith(defaultEllipsis)) {
                 ellipsis += defaultEllipsis;
               }
-              ellipsisWidth = BiDiUtils.measureTextRun(lastPart.getBidiEntity(), ellipsis, paint);
-              final float defaultEllipsisWidth2 = U.measureText(defaultEllipsis, paint);
+              ellipsisWidth = TextMeasureCache.measureTextRun(lastPart.getBidiEntity(), ellipsis, paint);
+              final float defaultEllipsisWidth2 = TextMeasureCache.measureText(defaultEllipsis, paint);
               if (currentX + ellipsisWidth <= lineMaxWidth) {
                 lastPart.setLine(ellipsis, 0, ellipsis.length() - defaultEllipsis.length());
                 lastPart.setWidth(ellipsisWidth - defaultEllipsisWidth2);
@@ -2228,7 +2228,7 @@ public class Text implements Runnable, Emoji.CountLimiter, CounterTextPart, List
 
   private float makeSpaceSize (Paint paint) {
     if (lastSpaceSize == 0f || lastSpacePaint != paint) {
-      lastSpaceSize = U.measureText(" ", paint);
+      lastSpaceSize = TextMeasureCache.measureText(" ", paint);
       lastSpacePaint = paint;
     }
     return lastSpaceSize;
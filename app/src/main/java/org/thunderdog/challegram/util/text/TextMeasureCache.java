@@ -0,0 +1,208 @@
+/*
+ * This file is a part of Telegram X
+ * Copyright © 2014 (tgx-android@pm.me)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ * File created on 17/10/2026
+ */
+package org.thunderdog.challegram.util.text;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import org.thunderdog.challegram.U;
+import org.thunderdog.challegram.util.text.bidi.BiDiEntity;
+import org.thunderdog.challegram.util.text.bidi.BiDiUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers widths of short text runs and advances of single code points, per paint style:
+ * typeface, size and flags. Paints are shared and resized on the fly, so caches are keyed
+ * by the style rather than by the {@link Paint} instance.
+ *
+ * Part of a text is measured with the rest of it as context (kerning, ligatures, shaping),
+ * so only calls measuring a whole short text are cached, and only when it has no right-to-left
+ * characters, so left-to-right and plain measurements of it agree. Safe to use from any thread.
+ */
+public final class TextMeasureCache {
+  private static final int MAX_RUN_LENGTH = 24;
+  private static final int RUN_CACHE_SIZE = 512;
+  private static final int MAX_STYLES_PER_TYPEFACE = 16;
+  private static final int ADVANCE_TABLE_SIZE = 0x0590; // Latin, Greek, Cyrillic, Armenian
+
+  private static final HashMap<Typeface, ArrayList<StyleCache>> caches = new HashMap<>();
+  private static int styleCount;
+  private static final AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong(), bypassCount = new AtomicLong();
+
+  private TextMeasureCache () { }
+
+  private static final class StyleCache {
+    private final float textSize, textScaleX, textSkewX, letterSpacing;
+    private final int flags;
+
+    private final float[] advances = new float[ADVANCE_TABLE_SIZE];
+    private final LruCache<String, Float> runs = new LruCache<>(RUN_CACHE_SIZE);
+
+    StyleCache (Paint paint) {
+      this.textSize = paint.getTextSize();
+      this.textScaleX = paint.getTextScaleX();
+      this.textSkewX = paint.getTextSkewX();
+      this.letterSpacing = getLetterSpacing(paint);
+      this.flags = paint.getFlags();
+      Arrays.fill(advances, -1f);
+    }
+
+    boolean matches (Paint paint) {
+      return textSize == paint.getTextSize() &&
+        flags == paint.getFlags() &&
+        textScaleX == paint.getTextScaleX() &&
+        textSkewX == paint.getTextSkewX() &&
+        letterSpacing == getLetterSpacing(paint);
+    }
+  }
+
+  private static float getLetterSpacing (Paint paint) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? paint.getLetterSpacing() : 0f;
+  }
+
+  // Called with lock on caches
+  private static StyleCache getCache (Paint paint) {
+    final Typeface typeface = paint.getTypeface();
+    ArrayList<StyleCache> styles = caches.get(typeface);
+    if (styles == null) {
+      styles = new ArrayList<>();
+      caches.put(typeface, styles);
+    }
+    for (StyleCache cache : styles) {
+      if (cache.matches(paint)) {
+        return cache;
+      }
+    }
+    if (styles.size() == MAX_STYLES_PER_TYPEFACE) {
+      styles.remove(0);
+    } else {
+      styleCount++;
+    }
+    StyleCache cache = new StyleCache(paint);
+    styles.add(cache);
+    return cache;
+  }
+
+  private static boolean isSimpleCodePoint (int codePoint) {
+    if (codePoint < ADVANCE_TABLE_SIZE) {
+      // Combining diacritical marks attach to the previous character
+      return codePoint < 0x0300 || codePoint >= 0x0370;
+    }
+    return (codePoint >= 0x3000 && codePoint < 0xA000) || // CJK
+      (codePoint >= 0xAC00 && codePoint < 0xD7A4); // Precomposed Hangul
+  }
+
+  private static boolean isSimpleRun (CharSequence in, int start, int end) {
+    for (int i = start; i < end; ) {
+      int codePoint = Character.codePointAt(in, i);
+      if (!isSimpleCodePoint(codePoint)) {
+        return false;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return true;
+  }
+
+  public static float measureText (@Nullable CharSequence in, @NonNull Paint paint) {
+    return in == null ? 0 : measureText(in, 0, in.length(), paint);
+  }
+
+  public static float measureText (@Nullable CharSequence in, int start, int end, @NonNull Paint paint) {
+    if (in == null || end <= start) {
+      return 0;
+    }
+    if (!isCacheable(in, start, end)) {
+      bypassCount.incrementAndGet();
+      return U.measureText(in, start, end, paint);
+    }
+    return measureCacheable(in, start, end, paint);
+  }
+
+  public static float measureTextRun (@BiDiEntity int bidiEntity, @Nullable CharSequence in, @NonNull Paint paint) {
+    return in == null ? 0 : measureTextRun(bidiEntity, in, 0, in.length(), paint);
+  }
+
+  public static float measureTextRun (@BiDiEntity int bidiEntity, @Nullable CharSequence in, int start, int end, @NonNull Paint paint) {
+    if (in == null || end <= start) {
+      return 0;
+    }
+    if ((BiDiUtils.isValid(bidiEntity) && BiDiUtils.isRtl(bidiEntity)) || !isCacheable(in, start, end)) {
+      bypassCount.incrementAndGet();
+      return BiDiUtils.measureTextRun(bidiEntity, in, start, end, paint);
+    }
+    // Cacheable runs have no right-to-left characters, measuring them as left-to-right text gives the same result
+    return measureCacheable(in, start, end, paint);
+  }
+
+  private static boolean isCacheable (CharSequence in, int start, int end) {
+    return start == 0 && end == in.length() && end <= MAX_RUN_LENGTH && isSimpleRun(in, start, end);
+  }
+
+  private static float measureCacheable (CharSequence in, int start, int end, Paint paint) {
+    final int codePoint = Character.codePointAt(in, start);
+    final boolean isAdvance = codePoint < ADVANCE_TABLE_SIZE && start + Character.charCount(codePoint) == end;
+    final String text = isAdvance ? null : in.subSequence(start, end).toString();
+    synchronized (caches) {
+      StyleCache cache = getCache(paint);
+      float width = isAdvance ? cache.advances[codePoint] : -1f;
+      if (!isAdvance) {
+        Float cachedWidth = cache.runs.get(text);
+        if (cachedWidth != null) {
+          width = cachedWidth;
+        }
+      }
+      if (width >= 0f) {
+        hitCount.incrementAndGet();
+        return width;
+      }
+    }
+    missCount.incrementAndGet();
+    final float width = U.measureText(in, start, end, paint);
+    synchronized (caches) {
+      StyleCache cache = getCache(paint);
+      if (isAdvance) {
+        cache.advances[codePoint] = width;
+      } else {
+        cache.runs.put(text, width);
+      }
+    }
+    return width;
+  }
+
+  /**
+   * Hit rate and number of cached paint styles, for the debug screen.
+   */
+  public static String getStats () {
+    final int styleCount;
+    synchronized (caches) {
+      styleCount = TextMeasureCache.styleCount;
+    }
+    long hits = hitCount.get(), misses = missCount.get(), bypasses = bypassCount.get();
+    long total = hits + misses;
+    return String.format(Locale.US, "hit rate %d%% (%d/%d), not cacheable %d, styles %d",
+      total > 0 ? hits * 100 / total : 0, hits, total, bypasses, styleCount
+    );
+  }
+}
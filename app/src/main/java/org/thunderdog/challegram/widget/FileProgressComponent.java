@@ -20,9 +20,7 @@ import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.animation.DecelerateInterpolator;
@@ -54,6 +52,7 @@ import org.thunderdog.challegram.theme.ColorId;
 import org.thunderdog.challegram.theme.Theme;
 import org.thunderdog.challegram.tool.DrawAlgorithms;
 import org.thunderdog.challegram.tool.Drawables;
+import org.thunderdog.challegram.tool.FrameDispatcher;
 import org.thunderdog.challegram.tool.Paints;
 import org.thunderdog.challegram.tool.Screen;
 import org.thunderdog.challegram.tool.UI;
@@ -82,28 +81,7 @@ public class FileProgressComponent implements TdlibFilesManager.FileListener, Fa
   public static final int STREAMING_UI_MODE_SMALL = 1;
   public static final int STREAMING_UI_MODE_EXTRA_SMALL = 2;
 
-  private static final int INVALIDATE_CONTENT_RECEIVER = 0;
-  private static final int CHANGE_CURRENT_STATE = 1;
-  private static final int SET_PROGRESS = 2;
-  private static final Handler handler = new Handler(Looper.getMainLooper()) {
-    @Override
-    public void handleMessage (Message msg) {
-      switch (msg.what) {
-        case INVALIDATE_CONTENT_RECEIVER: {
-          ((FileProgressComponent) msg.obj).invalidateContent();
-          break;
-        }
-        case CHANGE_CURRENT_STATE: {
-          ((FileProgressComponent) msg.obj).setCurrentState(msg.arg1, true);
-          break;
-        }
-        case SET_PROGRESS: {
-          ((FileProgressComponent) msg.obj).setProgress(Float.intBitsToFloat(msg.arg1), Float.intBitsToFloat(msg.arg2));
-          break;
-        }
-      }
-    }
-  };
+  private static final int FRAME_SET_PROGRESS = 0;
 
   public static final @DrawableRes int PLAY_ICON = R.drawable.baseline_play_arrow_36_white;
 
@@ -1640,11 +1618,12 @@ public class FileProgressComponent implements TdlibFilesManager.FileListener, Fa
     Td.copyTo(file, this.file);
     final float progress = TD.getFileProgress(file);
     float visualProgress = getVisualProgress(progress);
-    handler.sendMessage(Message.obtain(handler, SET_PROGRESS, Float.floatToIntBits(progress), Float.floatToIntBits(visualProgress), this));
+    // Only the latest progress is shown, state changes posted in between still apply in order
+    FrameDispatcher.instance().postCoalesced(FrameDispatcher.key(this, FRAME_SET_PROGRESS, 0), () -> setProgress(progress, visualProgress));
     if (triggerGenerationFinish) {
       isDownloaded = true;
       if (invalidateContentReceiver) {
-        handler.sendMessage(Message.obtain(handler, INVALIDATE_CONTENT_RECEIVER, this));
+        FrameDispatcher.instance().post(this::invalidateContent);
       }
     }
   }
@@ -1658,7 +1637,7 @@ public class FileProgressComponent implements TdlibFilesManager.FileListener, Fa
           Td.copyTo(downloadedFile, file);
         }
         if (invalidateContentReceiver) {
-          handler.sendMessage(Message.obtain(handler, INVALIDATE_CONTENT_RECEIVER, this));
+          FrameDispatcher.instance().post(this::invalidateContent);
         }
       }
     } else if (downloadedFile != null && file != null) {
@@ -1667,7 +1646,7 @@ public class FileProgressComponent implements TdlibFilesManager.FileListener, Fa
     if (isUI) {
       setCurrentState(state, shouldAnimate());
     } else {
-      handler.sendMessage(Message.obtain(handler, CHANGE_CURRENT_STATE, state, 0, this));
+      FrameDispatcher.instance().post(() -> setCurrentState(state, true));
     }
   }
 
@@ -1687,7 +1666,7 @@ public class FileProgressComponent implements TdlibFilesManager.FileListener, Fa
     if (this.file != null) {
       Td.copyTo(file, this.file);
       if (invalidateContentReceiver) {
-        handler.sendMessage(Message.obtain(handler, INVALIDATE_CONTENT_RECEIVER, this));
+        FrameDispatcher.instance().post(this::invalidateContent);
       }
     }
   }